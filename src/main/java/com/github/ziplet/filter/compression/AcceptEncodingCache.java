@@ -0,0 +1,122 @@
+/*
+ * Copyright 2004 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ziplet.filter.compression;
+
+import com.github.ziplet.filter.compression.statistics.CompressingFilterDetailedStats;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>Caches the content encoding chosen for previously seen "Accept-Encoding" header values. The
+ * cache holds at most a fixed number of entries, so that clients sending many distinct values can't
+ * grow it without bound.</p>
+ *
+ * <p>Lookups don't lock. Insertions are serialized, and when the cache is full evict an entry
+ * chosen by the CLOCK algorithm: entries are visited in insertion order, and one that has been read
+ * since it was last visited gets another chance.</p>
+ *
+ * @since 2.4.2
+ */
+final class AcceptEncodingCache {
+
+    private final ConcurrentMap<String, Entry> entries;
+    // The "clock": keys in the order they occupy slots; guarded by "this"
+    private final String[] slots;
+    private int hand;
+    private int size;
+
+    AcceptEncodingCache(int capacity) {
+        assert capacity > 0;
+        entries = new ConcurrentHashMap<String, Entry>(capacity * 4 / 3 + 1);
+        slots = new String[capacity];
+    }
+
+    /**
+     * @param acceptEncoding "Accept-Encoding" header value
+     * @param stats stats to notify of the hit or miss
+     * @return the cached encoding, or {@code null} if none is cached
+     */
+    String get(String acceptEncoding, CompressingFilterDetailedStats stats) {
+        Entry entry = entries.get(acceptEncoding);
+        if (entry == null) {
+            stats.notifyEncodingCacheMiss();
+            return null;
+        }
+        if (!entry.referenced) {
+            // only write when needed, to keep a popular entry's cache line clean
+            entry.referenced = true;
+        }
+        stats.notifyEncodingCacheHit();
+        return entry.encoding;
+    }
+
+    /**
+     * Caches an encoding for the header value, evicting another entry if the cache is full. Has no
+     * effect if the value was cached meanwhile by another thread.
+     */
+    synchronized void put(String acceptEncoding, String encoding,
+        CompressingFilterDetailedStats stats) {
+        if (entries.containsKey(acceptEncoding)) {
+            return;
+        }
+        int slot;
+        if (size < slots.length) {
+            slot = size;
+            size++;
+        } else {
+            slot = evict();
+            stats.notifyEncodingCacheEviction();
+        }
+        slots[slot] = acceptEncoding;
+        entries.put(acceptEncoding, new Entry(encoding));
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    @Override
+    public String toString() {
+        return "AcceptEncodingCache[capacity: " + slots.length + ']';
+    }
+
+    /**
+     * @return the slot freed
+     */
+    private int evict() {
+        while (true) {
+            int slot = hand;
+            hand = (hand + 1) % slots.length;
+            Entry entry = entries.get(slots[slot]);
+            if (entry.referenced) {
+                entry.referenced = false;
+            } else {
+                entries.remove(slots[slot]);
+                return slot;
+            }
+        }
+    }
+
+    private static final class Entry {
+
+        private final String encoding;
+        private volatile boolean referenced;
+
+        private Entry(String encoding) {
+            this.encoding = encoding;
+        }
+    }
+}
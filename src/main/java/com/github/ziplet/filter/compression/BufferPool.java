@@ -0,0 +1,71 @@
+/*
+ * Copyright 2004 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ziplet.filter.compression;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of equally sized byte arrays, so that the working buffers of each response don't have to
+ * be allocated anew. Borrowing never blocks; a new array is allocated if none is idle. At most
+ * {@code maxIdle} arrays are retained.
+ *
+ * @since 2.4.2
+ */
+final class BufferPool {
+
+    private final int bufferSize;
+    private final int maxIdle;
+    private final Queue<byte[]> idle = new ConcurrentLinkedQueue<byte[]>();
+    private final AtomicInteger numIdle = new AtomicInteger();
+
+    BufferPool(int bufferSize, int maxIdle) {
+        assert bufferSize > 0 && maxIdle >= 0;
+        this.bufferSize = bufferSize;
+        this.maxIdle = maxIdle;
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+
+    byte[] borrow() {
+        byte[] buffer = idle.poll();
+        if (buffer == null) {
+            return new byte[bufferSize];
+        }
+        numIdle.decrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * @param buffer array obtained from {@link #borrow()}; it must not be used after this
+     */
+    void release(byte[] buffer) {
+        assert buffer.length == bufferSize;
+        if (numIdle.incrementAndGet() <= maxIdle) {
+            idle.offer(buffer);
+        } else {
+            numIdle.decrementAndGet();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "BufferPool[bufferSize: " + bufferSize + ", maxIdle: " + maxIdle + ']';
+    }
+}
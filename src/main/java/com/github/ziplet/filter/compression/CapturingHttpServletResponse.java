@@ -0,0 +1,406 @@
+/*
+ * Copyright 2004 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ziplet.filter.compression;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * <p>Passes everything through to the response it wraps, while recording the status, headers and
+ * body, so that a {@link ResponseCache} can store the response and replay it later. It sits
+ * beneath a {@link CompressingHttpServletResponse}, so what it records is what the client is sent:
+ * the compressed body, and the headers the filter adjusted for it.</p>
+ *
+ * <p>The body is recorded in buffers borrowed from a {@link BufferPool}. Recording stops, and the
+ * response can't be cached, if it grows beyond a limit, or if the application does something that
+ * can't be replayed, like setting a cookie, sending an error or resetting the response. It also
+ * stops when the body begins, if the response as it stands then couldn't be cached, or when the
+ * filter decides not to compress it. The recorded body must be returned with {@link #release()}
+ * once the response is complete.</p>
+ *
+ * @since 2.4.2
+ */
+final class CapturingHttpServletResponse extends HttpServletResponseWrapper {
+
+    private static final String SET_COOKIE_HEADER = "Set-Cookie";
+    private final String cacheKey;
+    private final ResponseCache responseCache;
+    private final BufferPool bufferPool;
+    private final int maxBodyLength;
+    private final List<Header> headers = new ArrayList<Header>(8);
+    private final List<byte[]> bodyChunks = new ArrayList<byte[]>(4);
+    private int bodyLength;
+    private int status = SC_OK;
+    private Locale locale;
+    private boolean cacheable = true;
+    private boolean leadingFlight;
+    private CapturingServletOutputStream outputStream;
+
+    CapturingHttpServletResponse(HttpServletResponse response,
+        String cacheKey,
+        ResponseCache responseCache,
+        BufferPool bufferPool,
+        int maxBodyLength) {
+        super(response);
+        this.cacheKey = cacheKey;
+        this.responseCache = responseCache;
+        this.bufferPool = bufferPool;
+        this.maxBodyLength = maxBodyLength;
+    }
+
+    String getCacheKey() {
+        return cacheKey;
+    }
+
+    /**
+     * @return true if other requests wait for this response, by {@link
+     * ResponseCache#beginFlight(String, long)}
+     */
+    boolean isLeadingFlight() {
+        return leadingFlight;
+    }
+
+    void setLeadingFlight(boolean leadingFlight) {
+        this.leadingFlight = leadingFlight;
+    }
+
+    /**
+     * @return false if something happened to the response that can't be replayed from a cache
+     */
+    boolean isCacheable() {
+        return cacheable;
+    }
+
+    int getStatus() {
+        return status;
+    }
+
+    Locale getRecordedLocale() {
+        return locale;
+    }
+
+    /**
+     * @return headers set on the response, in order, excluding any later replaced
+     */
+    List<Header> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * @return the values of all headers with the given name, comma-separated, or {@code null} if
+     * there are none
+     */
+    String getHeaderValues(String name) {
+        StringBuilder values = null;
+        for (Header header : headers) {
+            if (header.name.equalsIgnoreCase(name)) {
+                if (values == null) {
+                    values = new StringBuilder();
+                } else {
+                    values.append(',');
+                }
+                values.append(header.value == null ? "" : header.value);
+            }
+        }
+        return values == null ? null : values.toString();
+    }
+
+    int getBodyLength() {
+        return bodyLength;
+    }
+
+    /**
+     * @return the recorded body, in buffers of {@link BufferPool#getBufferSize()} bytes, all full
+     * except perhaps the last
+     */
+    List<byte[]> getBodyChunks() {
+        return bodyChunks;
+    }
+
+    /**
+     * Returns the buffers holding the recorded body to the pool. The body can't be used after.
+     */
+    void release() {
+        for (byte[] chunk : bodyChunks) {
+            bufferPool.release(chunk);
+        }
+        bodyChunks.clear();
+        bodyLength = 0;
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+        if (outputStream == null) {
+            outputStream = new CapturingServletOutputStream(super.getOutputStream());
+        }
+        return outputStream;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        // CompressingHttpServletResponse always writes through getOutputStream()
+        abandon();
+        return super.getWriter();
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+        super.setHeader(name, value);
+        removeHeaders(name);
+        recordHeader(name, value);
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+        super.addHeader(name, value);
+        recordHeader(name, value);
+    }
+
+    @Override
+    public void setIntHeader(String name, int value) {
+        super.setIntHeader(name, value);
+        removeHeaders(name);
+        recordHeader(name, String.valueOf(value));
+    }
+
+    @Override
+    public void addIntHeader(String name, int value) {
+        super.addIntHeader(name, value);
+        recordHeader(name, String.valueOf(value));
+    }
+
+    @Override
+    public void setDateHeader(String name, long date) {
+        super.setDateHeader(name, date);
+        removeHeaders(name);
+        headers.add(new Header(name, date));
+    }
+
+    @Override
+    public void addDateHeader(String name, long date) {
+        super.addDateHeader(name, date);
+        headers.add(new Header(name, date));
+    }
+
+    @Override
+    public void addCookie(Cookie cookie) {
+        super.addCookie(cookie);
+        abandon();
+    }
+
+    @Override
+    public void setLocale(Locale locale) {
+        super.setLocale(locale);
+        this.locale = locale;
+    }
+
+    @Override
+    public void setStatus(int status) {
+        super.setStatus(status);
+        this.status = status;
+    }
+
+    @Override
+    @Deprecated
+    public void setStatus(int status, String message) {
+        super.setStatus(status, message);
+        this.status = status;
+    }
+
+    @Override
+    public void sendError(int status) throws IOException {
+        abandon();
+        super.sendError(status);
+    }
+
+    @Override
+    public void sendError(int status, String message) throws IOException {
+        abandon();
+        super.sendError(status, message);
+    }
+
+    @Override
+    public void sendRedirect(String location) throws IOException {
+        abandon();
+        super.sendRedirect(location);
+    }
+
+    @Override
+    public void reset() {
+        abandon();
+        super.reset();
+    }
+
+    @Override
+    public void resetBuffer() {
+        abandon();
+        super.resetBuffer();
+    }
+
+    @Override
+    public String toString() {
+        return "CapturingHttpServletResponse[cacheKey: " + cacheKey + ", cacheable: " + cacheable
+            + ']';
+    }
+
+    private void recordHeader(String name, String value) {
+        if (SET_COOKIE_HEADER.equalsIgnoreCase(name)) {
+            abandon();
+        }
+        headers.add(new Header(name, value));
+    }
+
+    private void removeHeaders(String name) {
+        for (Iterator<Header> it = headers.iterator(); it.hasNext(); ) {
+            if (it.next().name.equalsIgnoreCase(name)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Stops recording, as the response won't be cached, and returns the recorded body to the pool.
+     * Requests waiting for this one stop waiting.
+     */
+    void abandon() {
+        cacheable = false;
+        release();
+        if (leadingFlight) {
+            leadingFlight = false;
+            responseCache.endFlight(cacheKey);
+        }
+    }
+
+    /**
+     * @return false if the response couldn't be cached with the headers set so far, which are
+     * normally all of them once the body begins
+     */
+    private boolean isStorable() {
+        return responseCache == null || responseCache.getFreshnessLifetime(this) > 0L;
+    }
+
+    private void capture(int b) {
+        if (cacheable) {
+            if (bodyLength >= maxBodyLength || bodyLength == 0 && !isStorable()) {
+                abandon();
+                return;
+            }
+            int chunkSize = bufferPool.getBufferSize();
+            int offset = bodyLength % chunkSize;
+            if (offset == 0) {
+                bodyChunks.add(bufferPool.borrow());
+            }
+            bodyChunks.get(bodyChunks.size() - 1)[offset] = (byte) b;
+            bodyLength++;
+        }
+    }
+
+    private void capture(byte[] b, int offset, int length) {
+        if (cacheable) {
+            if (length > maxBodyLength - bodyLength || bodyLength == 0 && !isStorable()) {
+                abandon();
+                return;
+            }
+            int chunkSize = bufferPool.getBufferSize();
+            while (length > 0) {
+                int chunkOffset = bodyLength % chunkSize;
+                if (chunkOffset == 0) {
+                    bodyChunks.add(bufferPool.borrow());
+                }
+                int n = Math.min(length, chunkSize - chunkOffset);
+                System.arraycopy(b, offset, bodyChunks.get(bodyChunks.size() - 1), chunkOffset, n);
+                bodyLength += n;
+                offset += n;
+                length -= n;
+            }
+        }
+    }
+
+    /**
+     * A response header, as set by the application or the filter.
+     */
+    static final class Header {
+
+        final String name;
+        // null for date headers
+        final String value;
+        final long date;
+
+        Header(String name, String value) {
+            this.name = name;
+            this.value = value;
+            date = 0L;
+        }
+
+        Header(String name, long date) {
+            this.name = name;
+            value = null;
+            this.date = date;
+        }
+
+        void addTo(HttpServletResponse response) {
+            if (value == null) {
+                response.addDateHeader(name, date);
+            } else {
+                response.addHeader(name, value);
+            }
+        }
+    }
+
+    private final class CapturingServletOutputStream extends ServletOutputStream {
+
+        private final ServletOutputStream out;
+
+        private CapturingServletOutputStream(ServletOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            capture(b);
+        }
+
+        @Override
+        public void write(byte[] b) throws IOException {
+            write(b, 0, b.length);
+        }
+
+        @Override
+        public void write(byte[] b, int offset, int length) throws IOException {
+            out.write(b, offset, length);
+            capture(b, offset, length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
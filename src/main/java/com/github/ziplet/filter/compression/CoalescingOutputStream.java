@@ -0,0 +1,121 @@
+/*
+ * Copyright 2004 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ziplet.filter.compression;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * <p>Collects small writes into a buffer borrowed from a {@link BufferPool}, passing them on to the
+ * underlying stream in chunks the size of the buffer. Writes at least as large as the buffer are
+ * passed on directly.</p>
+ *
+ * <p>This sits in front of the compressing stream, where every write otherwise means a separate
+ * call into the native {@link java.util.zip.Deflater}; writes through a {@link java.io.PrintWriter}
+ * in particular tend to be small.</p>
+ *
+ * @since 2.4.2
+ */
+final class CoalescingOutputStream extends OutputStream {
+
+    private final OutputStream out;
+    private final BufferPool bufferPool;
+    private byte[] buffer;
+    private int count;
+
+    CoalescingOutputStream(OutputStream out, BufferPool bufferPool) {
+        assert out != null && bufferPool != null;
+        this.out = out;
+        this.bufferPool = bufferPool;
+        buffer = bufferPool.borrow();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        checkReleased();
+        if (count == buffer.length) {
+            drain();
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkReleased();
+        if (len >= buffer.length) {
+            drain();
+            out.write(b, off, len);
+            return;
+        }
+        if (len > buffer.length - count) {
+            drain();
+        }
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        checkReleased();
+        drain();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (buffer != null) {
+            try {
+                drain();
+                out.close();
+            } finally {
+                release();
+            }
+        }
+    }
+
+    /**
+     * Returns the buffer to the pool, discarding anything not yet written. Has no effect if the
+     * stream was already closed or released.
+     */
+    void release() {
+        if (buffer != null) {
+            bufferPool.release(buffer);
+            buffer = null;
+            count = 0;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CoalescingOutputStream[" + out + ']';
+    }
+
+    /**
+     * Writes out any buffered data, without flushing the underlying stream.
+     */
+    void drain() throws IOException {
+        if (count > 0) {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+    }
+
+    private void checkReleased() throws IOException {
+        if (buffer == null) {
+            throw new IOException("Stream is already closed");
+        }
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2004 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ziplet.filter.compression;
+
+import com.github.ziplet.filter.compression.statistics.CompressingFilterDetailedStats;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>A bounded pool of {@link Deflater} and {@link Inflater} instances. Each of these holds a
+ * sizable amount of native zlib memory which is only returned when {@code end()} is called, or when
+ * the instance is eventually finalized. Instances are therefore reset and reused across responses
+ * and requests, and are explicitly ended when they are no longer retained.</p>
+ *
+ * <p>At most {@code maxActive} deflaters, and separately {@code maxActive} inflaters, may be
+ * borrowed at once. A caller that finds the pool exhausted waits up to {@code timeoutMillis} for
+ * an instance to be returned, after which the borrow methods return {@code null}.</p>
+ *
+ * <p>Deflaters are keyed by level, strategy and "nowrap" setting; see {@link #deflaterKey(int, int,
+ * boolean)}. At most {@code maxActive} are kept idle in all. When that many are idle, one returned
+ * replaces an idle one configured otherwise, so that after the compression level changes, those
+ * of the old level don't keep the new ones out of the pool.</p>
+ *
+ * @since 2.4.2
+ */
+final class CodecPool {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CodecPool.class);
+    private static final int NUM_LEVELS = Deflater.BEST_COMPRESSION + 2; // -1 through 9
+    private static final int NUM_STRATEGIES = Deflater.HUFFMAN_ONLY + 1;
+    private final int maxActive;
+    private final long timeoutMillis;
+    private final Semaphore deflaterPermits;
+    private final Semaphore inflaterPermits;
+    private final Queue<Deflater>[] idleDeflaters;
+    private final Queue<Inflater>[] idleInflaters;
+    private final AtomicInteger numIdleDeflaters = new AtomicInteger();
+    private final AtomicInteger numIdleInflaters = new AtomicInteger();
+    private volatile boolean closed;
+
+    @SuppressWarnings("unchecked")
+    CodecPool(int maxActive, long timeoutMillis) {
+        assert maxActive > 0 && timeoutMillis >= 0L;
+        this.maxActive = maxActive;
+        this.timeoutMillis = timeoutMillis;
+        deflaterPermits = new Semaphore(maxActive);
+        inflaterPermits = new Semaphore(maxActive);
+        idleDeflaters = new Queue[NUM_LEVELS * NUM_STRATEGIES * 2];
+        for (int i = 0; i < idleDeflaters.length; i++) {
+            idleDeflaters[i] = new ConcurrentLinkedQueue<Deflater>();
+        }
+        idleInflaters = new Queue[2];
+        for (int i = 0; i < idleInflaters.length; i++) {
+            idleInflaters[i] = new ConcurrentLinkedQueue<Inflater>();
+        }
+    }
+
+    /**
+     * @param level compression level, from -1 to 9
+     * @param strategy compression strategy, one of {@link Deflater#DEFAULT_STRATEGY}, {@link
+     * Deflater#FILTERED} or {@link Deflater#HUFFMAN_ONLY}
+     * @param nowrap whether the deflater omits the zlib header and checksum, as gzip and zip do
+     * @return key identifying deflaters configured this way
+     */
+    static int deflaterKey(int level, int strategy, boolean nowrap) {
+        assert level >= Deflater.DEFAULT_COMPRESSION && level <= Deflater.BEST_COMPRESSION;
+        assert strategy >= Deflater.DEFAULT_STRATEGY && strategy <= Deflater.HUFFMAN_ONLY;
+        return ((strategy * NUM_LEVELS) + level + 1) * 2 + (nowrap ? 1 : 0);
+    }
+
+    static int levelOf(int deflaterKey) {
+        return (deflaterKey / 2) % NUM_LEVELS - 1;
+    }
+
+    static int strategyOf(int deflaterKey) {
+        return deflaterKey / 2 / NUM_LEVELS;
+    }
+
+    private static boolean nowrapOf(int deflaterKey) {
+        return (deflaterKey & 1) != 0;
+    }
+
+    /**
+     * @param deflaterKey key from {@link #deflaterKey(int, int, boolean)}
+     * @param stats stats to notify of pool activity
+     * @return a reset {@link Deflater} configured as described by the key, or {@code null} if the
+     * pool stayed exhausted for the configured timeout
+     */
+    Deflater borrowDeflater(int deflaterKey, CompressingFilterDetailedStats stats) {
+        if (!acquire(deflaterPermits, stats)) {
+            return null;
+        }
+        Deflater deflater = idleDeflaters[deflaterKey].poll();
+        if (deflater == null) {
+            stats.notifyCodecPoolMiss();
+            deflater = new Deflater(levelOf(deflaterKey), nowrapOf(deflaterKey));
+            deflater.setStrategy(strategyOf(deflaterKey));
+        } else {
+            numIdleDeflaters.decrementAndGet();
+            stats.notifyCodecPoolHit();
+        }
+        return deflater;
+    }
+
+    /**
+     * Returns a {@link Deflater} obtained from {@link #borrowDeflater(int,
+     * CompressingFilterDetailedStats)}. It may be in any state; it is reset, and restored to the
+     * level and strategy given by the key, before it is reused.
+     */
+    void releaseDeflater(Deflater deflater, int deflaterKey) {
+        try {
+            if (closed) {
+                deflater.end();
+            } else if (numIdleDeflaters.incrementAndGet() <= maxActive
+                || endIdleDeflater(deflaterKey)) {
+                deflater.reset();
+                deflater.setLevel(levelOf(deflaterKey));
+                deflater.setStrategy(strategyOf(deflaterKey));
+                idleDeflaters[deflaterKey].offer(deflater);
+            } else {
+                numIdleDeflaters.decrementAndGet();
+                deflater.end();
+            }
+        } finally {
+            deflaterPermits.release();
+        }
+    }
+
+    /**
+     * Ends the idle deflaters of the given level, which is no longer used.
+     */
+    void endIdleDeflaters(int level) {
+        for (int key = 0; key < idleDeflaters.length; key++) {
+            if (levelOf(key) == level) {
+                endIdleDeflaters(idleDeflaters[key]);
+            }
+        }
+    }
+
+    private void endIdleDeflaters(Queue<Deflater> idle) {
+        Deflater deflater;
+        while ((deflater = idle.poll()) != null) {
+            numIdleDeflaters.decrementAndGet();
+            deflater.end();
+        }
+    }
+
+    /**
+     * Ends one idle deflater not configured as given by the key, if there is one.
+     */
+    private boolean endIdleDeflater(int deflaterKey) {
+        for (int key = 0; key < idleDeflaters.length; key++) {
+            if (key != deflaterKey) {
+                Deflater deflater = idleDeflaters[key].poll();
+                if (deflater != null) {
+                    numIdleDeflaters.decrementAndGet();
+                    deflater.end();
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param nowrap whether the inflater expects no zlib header and checksum, as gzip and zip do
+     * @param stats stats to notify of pool activity
+     * @return a reset {@link Inflater}, or {@code null} if the pool stayed exhausted for the
+     * configured timeout
+     */
+    Inflater borrowInflater(boolean nowrap, CompressingFilterDetailedStats stats) {
+        if (!acquire(inflaterPermits, stats)) {
+            return null;
+        }
+        Inflater inflater = idleInflaters[nowrap ? 1 : 0].poll();
+        if (inflater == null) {
+            stats.notifyCodecPoolMiss();
+            inflater = new Inflater(nowrap);
+        } else {
+            numIdleInflaters.decrementAndGet();
+            stats.notifyCodecPoolHit();
+        }
+        return inflater;
+    }
+
+    /**
+     * Returns an {@link Inflater} obtained from {@link #borrowInflater(boolean,
+     * CompressingFilterDetailedStats)}.
+     */
+    void releaseInflater(Inflater inflater, boolean nowrap) {
+        try {
+            if (closed) {
+                inflater.end();
+            } else if (numIdleInflaters.incrementAndGet() <= maxActive) {
+                inflater.reset();
+                idleInflaters[nowrap ? 1 : 0].offer(inflater);
+            } else {
+                numIdleInflaters.decrementAndGet();
+                inflater.end();
+            }
+        } finally {
+            inflaterPermits.release();
+        }
+    }
+
+    /**
+     * Ends all idle instances. Instances still borrowed are ended as they are returned.
+     */
+    void close() {
+        closed = true;
+        for (Queue<Deflater> idle : idleDeflaters) {
+            endIdleDeflaters(idle);
+        }
+        for (Queue<Inflater> idle : idleInflaters) {
+            Inflater inflater;
+            while ((inflater = idle.poll()) != null) {
+                numIdleInflaters.decrementAndGet();
+                inflater.end();
+            }
+        }
+    }
+
+    private boolean acquire(Semaphore permits, CompressingFilterDetailedStats stats) {
+        if (permits.tryAcquire()) {
+            return true;
+        }
+        if (timeoutMillis > 0L) {
+            stats.notifyCodecPoolWait();
+            try {
+                if (permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        LOGGER.debug("Codec pool exhausted");
+        stats.notifyCodecPoolExhausted();
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "CodecPool[maxActive: " + maxActive + ", timeoutMillis: " + timeoutMillis + ']';
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2004 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ziplet.filter.compression;
+
+/**
+ * <p>Recognizes data in formats that are compressed already, like images, fonts, video and
+ * archives, from the signature bytes they start with. Compressing them again costs time and gains
+ * nothing, but they're often served with a generic content type like {@code
+ * application/octet-stream}, so that the content type alone doesn't tell.</p>
+ *
+ * @since 2.4.2
+ */
+final class CompressedFormats {
+
+    /**
+     * Number of leading bytes that are enough to recognize any of the formats.
+     */
+    static final int MAX_SIGNATURE_END = 12;
+
+    private static final Signature[] SIGNATURES = {
+        new Signature("gzip", 0, 0x1F, 0x8B, 0x08),
+        new Signature("zip", 0, 'P', 'K', 0x03, 0x04),
+        new Signature("bzip2", 0, 'B', 'Z', 'h'),
+        new Signature("xz", 0, 0xFD, '7', 'z', 'X', 'Z', 0x00),
+        new Signature("zstd", 0, 0x28, 0xB5, 0x2F, 0xFD),
+        new Signature("7z", 0, '7', 'z', 0xBC, 0xAF, 0x27, 0x1C),
+        new Signature("rar", 0, 'R', 'a', 'r', '!', 0x1A, 0x07),
+        new Signature("png", 0, 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A),
+        new Signature("jpeg", 0, 0xFF, 0xD8, 0xFF),
+        new Signature("gif", 0, 'G', 'I', 'F', '8'),
+        new Signature("webp", 8, 'W', 'E', 'B', 'P'),
+        new Signature("woff", 0, 'w', 'O', 'F', 'F'),
+        new Signature("woff2", 0, 'w', 'O', 'F', '2'),
+        // MP4, QuickTime, HEIF and AVIF
+        new Signature("iso-bmff", 4, 'f', 't', 'y', 'p'),
+        new Signature("webm", 0, 0x1A, 0x45, 0xDF, 0xA3),
+        new Signature("ogg", 0, 'O', 'g', 'g', 'S'),
+        new Signature("mp3", 0, 'I', 'D', '3'),
+    };
+
+    private CompressedFormats() {
+    }
+
+    /**
+     * @param b the start of the data, or all of it if shorter
+     * @return the name of the compressed format the data is in, or {@code null} if it's not
+     * recognized
+     */
+    static String detect(byte[] b, int offset, int length) {
+        for (Signature signature : SIGNATURES) {
+            if (signature.matches(b, offset, length)) {
+                return signature.name;
+            }
+        }
+        return null;
+    }
+
+    private static final class Signature {
+
+        private final String name;
+        private final int start;
+        private final byte[] bytes;
+
+        private Signature(String name, int start, int... bytes) {
+            this.name = name;
+            this.start = start;
+            this.bytes = new byte[bytes.length];
+            for (int i = 0; i < bytes.length; i++) {
+                this.bytes[i] = (byte) bytes[i];
+            }
+            assert start + bytes.length <= MAX_SIGNATURE_END;
+        }
+
+        private boolean matches(byte[] b, int offset, int length) {
+            if (length < start + bytes.length) {
+                return false;
+            }
+            for (int i = 0; i < bytes.length; i++) {
+                if (b[offset + start + i] != bytes[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -93,6 +93,12 @@ final class CompressedHttpServletRequest extends HttpServletRequestWrapper {
         return compressedSIS;
     }
 
+    void release() {
+        if (compressedSIS != null) {
+            compressedSIS.release();
+        }
+    }
+
     @Override
     public String getHeader(String header) {
         return isFilteredHeader(header) ? null : super.getHeader(header);
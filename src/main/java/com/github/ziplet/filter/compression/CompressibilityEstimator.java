@@ -0,0 +1,116 @@
+/*
+ * Copyright 2004 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ziplet.filter.compression;
+
+import java.util.Arrays;
+
+/**
+ * <p>Guesses how well data will compress from a sample of its start, much faster than compressing
+ * it. The estimate combines the data's byte entropy, which bounds what Huffman coding can do, with
+ * the share of it that repeats earlier 4-byte sequences, which LZ77 matching removes.</p>
+ *
+ * <p>It's meant to spot data that won't compress at all, like encrypted or random tokens, or
+ * compresses little, like base64; the ratio it gives for compressible text is only rough.</p>
+ *
+ * <p>The sample is read in place. An estimator can be reused, though not concurrently, so that its
+ * tables aren't allocated for each estimate.</p>
+ *
+ * @since 2.4.2
+ */
+final class CompressibilityEstimator {
+
+    /**
+     * Samples shorter than this aren't judged.
+     */
+    static final int MIN_SAMPLE = 256;
+    private static final int MAX_SAMPLE = 4096;
+    private static final int HASH_BITS = 10;
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_MATCH = 258;
+    // roughly what deflate spends on a match's length and distance codes
+    private static final int BITS_PER_MATCH = 24;
+    private final int[] counts = new int[256];
+    // last offset of each hashed 4-byte sequence, plus 1, so that 0 means none
+    private final int[] lastPositions = new int[1 << HASH_BITS];
+
+    /**
+     * @param b data whose start, up to a few kilobytes, is the sample; it should be at least
+     * {@link #MIN_SAMPLE} bytes
+     * @return estimated ratio of the sample's length to its compressed length
+     */
+    double estimateRatio(byte[] b, int offset, int length) {
+        int sampleLength = Math.min(length, MAX_SAMPLE);
+        if (sampleLength == 0) {
+            return 1.0;
+        }
+        Arrays.fill(counts, 0);
+        Arrays.fill(lastPositions, 0);
+        int end = offset + sampleLength;
+        int literals = 0;
+        int matches = 0;
+        int i = offset;
+        while (i < end) {
+            int matchLength = 0;
+            if (i + MIN_MATCH <= end) {
+                int hash = hash(b, i);
+                int candidate = lastPositions[hash] - 1;
+                lastPositions[hash] = i + 1;
+                if (candidate >= 0) {
+                    matchLength = getMatchLength(b, candidate, i, end);
+                }
+            }
+            if (matchLength >= MIN_MATCH) {
+                matches++;
+                i += matchLength;
+            } else {
+                counts[b[i] & 0xFF]++;
+                literals++;
+                i++;
+            }
+        }
+        double literalBits = 0.0;
+        for (int count : counts) {
+            if (count > 0) {
+                literalBits -= count * (Math.log((double) count / literals) / Math.log(2.0));
+            }
+        }
+        double compressedBits = literalBits + (double) matches * BITS_PER_MATCH;
+        if (compressedBits <= 0.0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return sampleLength * 8.0 / compressedBits;
+    }
+
+    @Override
+    public String toString() {
+        return "CompressibilityEstimator";
+    }
+
+    private static int hash(byte[] b, int position) {
+        int value = (b[position] & 0xFF) | (b[position + 1] & 0xFF) << 8
+            | (b[position + 2] & 0xFF) << 16 | (b[position + 3] & 0xFF) << 24;
+        return (value * 0x9E3779B1) >>> (32 - HASH_BITS);
+    }
+
+    private static int getMatchLength(byte[] b, int from, int to, int end) {
+        int max = Math.min(MAX_MATCH, end - to);
+        int length = 0;
+        while (length < max && b[from + length] == b[to + length]) {
+            length++;
+        }
+        return length;
+    }
+}
@@ -82,7 +82,8 @@ import org.slf4j.LoggerFactory;
  * CPU), or -1 (platform default, currently equivalent to 6). Defaults to -1.</li>
  *
  * <li><strong>statsEnabled</strong> (optional): enables collection of statistics. See {@link
- * CompressingFilterStats}. Defaults to false.</li>
+ * CompressingFilterStats}. Defaults to false. The stats can be served in Prometheus or JSON format
+ * by {@link com.github.ziplet.filter.compression.statistics.CompressingFilterStatsServlet}.</li>
  *
  * <li><strong>includeContentTypes</strong> (optional): if specified, this is treated as a
  * comma-separated list of content types (e.g. {@code text/html,text/xml}). The filter will attempt
@@ -96,7 +97,9 @@ import org.slf4j.LoggerFactory;
  * <li><strong>excludeContentTypes</strong> (optional): same as above, but specifies a list of
  * content types to <strong>not</strong> compress. Everything else will be compressed. However note
  * that any content type that indicates a compressed format (e.g. application/gzip,
- * application/x-compress) will not be compressed in any event.</li>
+ * application/x-compress) will not be compressed in any event. Neither will a response whose
+ * first bytes identify a compressed format, like PNG, JPEG, WebP, WOFF2, ZIP or MP4, whatever its
+ * content type.</li>
  *
  * <li><strong>includePathPatterns</strong> (optional): if specified, this is treated as a
  * comma-separated list of regular expressions (of the type accepted by {@link Pattern}) which match
@@ -124,6 +127,128 @@ import org.slf4j.LoggerFactory;
  * Requests with {@code User-Agent} headers whose value matches one of these regular expressions
  * result in a response that does not contain the {@code Vary-header} Since version 1.8</li>
  *
+ * <li><strong>codecPoolSize</strong> (optional): the most {@link java.util.zip.Deflater}s, and
+ * separately {@link java.util.zip.Inflater}s, that may be in use at once. Instances are reused
+ * across requests rather than created and ended each time. Defaults to 256.</li>
+ *
+ * <li><strong>codecPoolTimeout</strong> (optional): how long, in milliseconds, a request waits for a
+ * pooled {@link java.util.zip.Deflater} or {@link java.util.zip.Inflater} when all are in use.
+ * After that the response is sent uncompressed. Defaults to 50.</li>
+ *
+ * <li><strong>compressionBufferSize</strong> (optional): size in bytes of the buffers used when
+ * compressing a response. Small writes are collected into chunks of this size before they are
+ * compressed, and compressed output is passed to the container in chunks of up to this size.
+ * Defaults to 8192.</li>
+ *
+ * <li><strong>streamingPathPatterns</strong> (optional): a comma-separated list of regular
+ * expressions, like {@code includePathPatterns}, matching paths whose responses are streamed. For
+ * these, {@link java.io.OutputStream#flush()} and {@link HttpServletResponse#flushBuffer()} write
+ * out everything compressed so far with {@link java.util.zip.Deflater#SYNC_FLUSH} and flush the
+ * container's stream, so the client can decompress it right away. Useful for server-sent events,
+ * long polling or incrementally written JSON; it costs a little compression per flush.</li>
+ *
+ * <li><strong>streamingContentTypes</strong> (optional): same as above, but a comma-separated list
+ * of content types (e.g. {@code text/event-stream}) whose responses are streamed.</li>
+ *
+ * <li><strong>autoFlushMillis</strong> (optional): for streamed responses (see {@code
+ * streamingPathPatterns}), data that has waited this many milliseconds without being flushed is
+ * flushed automatically, even if still below {@code compressionThreshold}. 0 disables this.
+ * Defaults to 0.</li>
+ *
+ * <li><strong>encodingCacheSize</strong> (optional): the most distinct "Accept-Encoding" header
+ * values for which the chosen content encoding is remembered. Beyond this, less recently used
+ * values are forgotten. Defaults to 256.</li>
+ *
+ * <li><strong>jmxEnabled</strong> (optional): if true, registers a {@link
+ * CompressingFilterMXBean} with the platform MBean server, exposing stats and allowing the
+ * compression threshold and level to be changed at runtime. Defaults to false.</li>
+ *
+ * <li><strong>responseCacheSize</strong> (optional): if positive, compressed responses which a
+ * shared cache could store are cached, and later requests for them are answered without invoking
+ * the rest of the chain. This is the memory, in bytes, to use for the cached bodies; it is
+ * allocated off the Java heap, as needed, so {@code -XX:MaxDirectMemorySize} must allow for it.
+ * Responses requested more often are kept in preference to others. Responses are cached per
+ * scheme, host, port, URI, query string and content encoding; since a cached response is served
+ * without asking the application, a changed resource may be served from the cache until the
+ * cached response's lifetime ends. Defaults to 0.</li>
+ *
+ * <li><strong>responseCacheTtl</strong> (optional): seconds for which cached responses that don't
+ * set "max-age" or "s-maxage" are used. Defaults to 0, so that such responses are not
+ * cached.</li>
+ *
+ * <li><strong>responseCacheDirectory</strong> (optional): if set, and responseCacheSize is
+ * positive, cached responses are also stored in files in this directory, which is created if
+ * needed, and are served from there when no longer in memory, including after a restart. It must
+ * not be shared with another filter.</li>
+ *
+ * <li><strong>responseCacheDiskSize</strong> (optional): disk space, in bytes, to use in
+ * responseCacheDirectory. Must be at least 196608. Defaults to 1073741824 (1GB).</li>
+ *
+ * <li><strong>responseCacheSingleFlightTimeout</strong> (optional): if positive, when a response
+ * which may be cached isn't, and another request is already producing it, a request waits up to
+ * this many milliseconds for that one to finish and then is answered from the cache, rather than
+ * also running the chain and compressing. If the other response wasn't cached, or the wait times
+ * out, the request is processed on its own. Defaults to 0.</li>
+ *
+ * <li><strong>servePrecompressed</strong> (optional): if true, a GET or HEAD request for a static
+ * resource such as "app.js" is answered with a precompressed variant beside it, "app.js.br",
+ * "app.js.zst" or "app.js.gz", in the encoding the request prefers among those it accepts,
+ * without invoking the rest of the chain. Variants older than the resource are ignored. Resources
+ * are found through {@code ServletContext.getRealPath()}, so the application must be deployed as a
+ * directory. Defaults to false.</li>
+ *
+ * <li><strong>generateETags</strong> (optional): if true, a compressed response for which the
+ * application sets no ETag is given a strong one, from the checksum the gzip or deflate format
+ * already computes over the uncompressed body and its length, like {@code "3f2a9c1d-5e21-gzip"}.
+ * It only reaches the client if the compressed response fits in the container's buffer, but is
+ * stored with responses in the response cache, which then answers requests that revalidate with
+ * it. Defaults to false.</li>
+ *
+ * <li><strong>fullBufferSize</strong> (optional): if greater than 0, the compressed output of
+ * a response is held back, in pooled buffers, up to this many bytes, and sent only once it is
+ * complete, with an exact Content-Length instead of chunked. Responses which grow beyond this and
+ * fullBufferSpillSize are sent chunked from that point, as usual. Streaming responses are never
+ * held back. Defaults to 0.</li>
+ *
+ * <li><strong>fullBufferSpillSize</strong> (optional): how many more bytes of compressed output
+ * may be held back in a temporary file, in the web application's temporary directory, once
+ * fullBufferSize is reached. Defaults to 0.</li>
+ *
+ * <li><strong>bestOfSize</strong> (optional): if greater than 0, a response is held back
+ * both compressed and uncompressed while it is no longer than this many bytes, and sent
+ * compressed, with an exact Content-Length, only if that makes it smaller. Longer responses are
+ * sent compressed as usual. Streaming responses are never held back. Defaults to 0.</li>
+ *
+ * <li><strong>minCompressionRatio</strong> (optional): if greater than 0, when a response
+ * reaches the compression threshold, how well it compresses is estimated from its first few
+ * kilobytes, and it isn't compressed if that is less than this ratio of uncompressed to
+ * compressed length, like 1.1. Defaults to 0.</li>
+ *
+ * <li><strong>adaptiveCompressionRatio</strong> (optional): if greater than 0, gzip and deflate
+ * compression watches how well each 64KB of a response compresses, and where that is less than
+ * this ratio, like 1.1, it stops looking for repeated strings and only Huffman codes the data,
+ * which is much faster, trying full compression again every 256KB. Defaults to 0.</li>
+ *
+ * <li><strong>progressivePathPatterns</strong> (optional): a comma-separated list of regular
+ * expressions, like includePathPatterns, matching paths whose responses are sent progressively:
+ * the first progressiveSize bytes are compressed at the fastest level and sync-flushed to the
+ * client right away, so it can start rendering, and the rest is compressed at the configured
+ * level. Gzip and deflate only. These responses aren't held back by fullBufferSize or
+ * bestOfSize.</li>
+ *
+ * <li><strong>progressiveSize</strong> (optional): how many uncompressed bytes at the start of a
+ * progressive response are compressed fast and flushed. Defaults to 16384.</li>
+ *
+ * <li><strong>thresholdHoldMillis</strong> (optional): if greater than 0, a response that has
+ * been written but hasn't reached compressionThreshold within this many milliseconds is sent
+ * anyway, so that clients of slow pages see it start. Timed by the same timer as
+ * autoFlushMillis, not a timer per response. Defaults to 0, waiting for the threshold, a flush or
+ * the end of the response.</li>
+ *
+ * <li><strong>thresholdHoldPolicy</strong> (optional): how such a response is sent: "compress"
+ * compresses it and sync-flushes what has been written so far, so the client can read it, and
+ * "raw" sends it uncompressed. Defaults to "compress".</li>
+ *
  * <li><strong>javaUtilLogger</strong> (optional): if specified, the named {@code
  * java.util.logging.Logger} will also receive log messages from this filter.</li>
  *
@@ -173,7 +298,7 @@ import org.slf4j.LoggerFactory;
  *
  * <h3>Caveats and Notes</h3>
  *
- * <p>The filter requires Java 5 and J2EE 1.4 or better.</p>
+ * <p>The filter requires Java 7 and J2EE 1.4 or better.</p>
  *
  * <p>Note that if this filter decides that it should try to compress the response, it <em>will</em>
  * close the response (whether or not it ends up compressing the response). No more can be written
@@ -191,7 +316,10 @@ import org.slf4j.LoggerFactory;
  * This is because the compressed response must be considered a separate entity by caches. It simply
  * appends, for example, "-gzip" to the ETag header value when compressing with gzip. This is not
  * guaranteed to work in all containers, in the sense that some containers may not properly
- * associated this ETag with the compressed content and simply return the response again.</p>
+ * associated this ETag with the compressed content and simply return the response again. When a
+ * request's {@code If-None-Match} header names such an ETag, the suffix is removed before the
+ * application sees it, so that it can answer "304 Not Modified"; that response keeps the
+ * suffix.</p>
  *
  * <p>The filter always sets the {@code Vary} response header to indicate that a different response
  * may be returned based on the {@code Accept-Encoding} header of the request.</p>
@@ -240,8 +368,16 @@ public final class CompressingFilter implements Filter {
         ServletResponse response,
         FilterChain chain) throws IOException, ServletException {
 
-        ServletRequest chainRequest = getRequest(request);
+        if (servePrecompressed(request, response)) {
+            return;
+        }
         ServletResponse chainResponse = getResponse(request, response);
+        if (chainResponse != null
+            && serveCachedResponse((CompressingHttpServletResponse) chainResponse, request,
+            response)) {
+            return;
+        }
+        ServletRequest chainRequest = getRequest(request);
 
         boolean attemptingToDecompressRequest = chainRequest != null;
         boolean attemptingToCompressResponse = chainResponse != null;
@@ -259,8 +395,31 @@ public final class CompressingFilter implements Filter {
             context.getStats().incrementTotalRequestsNotCompressed();
         }
 
+        ServletRequest filteredRequest = chainRequest;
+        if (attemptingToCompressResponse && chainRequest instanceof HttpServletRequest) {
+            filteredRequest = ((CompressingHttpServletResponse) chainResponse)
+                .removeETagSuffixes((HttpServletRequest) chainRequest);
+        }
+
         request.setAttribute(ALREADY_APPLIED_KEY, Boolean.TRUE);
-        chain.doFilter(chainRequest, chainResponse);
+        boolean chainCompleted = false;
+        try {
+            // a response written from the cache after waiting for another request is complete
+            if (!attemptingToCompressResponse || !serveAfterFlight(
+                (CompressingHttpServletResponse) chainResponse, request, response)) {
+                chain.doFilter(filteredRequest, chainResponse);
+            }
+            chainCompleted = true;
+        } finally {
+            // Pooled (de)compressors must be returned even if the chain failed
+            if (attemptingToDecompressRequest) {
+                ((CompressedHttpServletRequest) chainRequest).release();
+            }
+            if (!chainCompleted && attemptingToCompressResponse) {
+                ((CompressingHttpServletResponse) chainResponse).release();
+                cacheResponse((CompressingHttpServletResponse) chainResponse, false);
+            }
+        }
 
         if (attemptingToCompressResponse) {
 
@@ -272,12 +431,17 @@ public final class CompressingFilter implements Filter {
             // has been written to the stream, it's almost certainly not valid or even possible to write more
             // to the stream after this filter anyway.
             LOGGER.debug("Closing the response (if not already closed)...");
+            boolean closed = false;
             try {
                 // This will also flush
                 compressingResponse.close();
+                closed = true;
             } catch (IOException ioe) {
                 // underlying stream might have been closed -- ignore IOException here
                 LOGGER.debug("Error while flushing buffer", ioe);
+            } finally {
+                // also releases requests waiting for this one
+                cacheResponse(compressingResponse, closed && compressingResponse.isCompressing());
             }
 
             if (compressingResponse.isCompressing()) {
@@ -292,6 +456,20 @@ public final class CompressingFilter implements Filter {
     }
 
     private ServletRequest getRequest(ServletRequest request) {
+        String contentEncoding = getRequestContentEncoding(request);
+        if (contentEncoding == null) {
+            return null;
+        }
+        return new CompressedHttpServletRequest((HttpServletRequest) request,
+            CompressingStreamFactory.getFactoryForContentEncoding(contentEncoding),
+            context);
+    }
+
+    /**
+     * @return the content encoding in which the request body is to be decompressed, or {@code
+     * null} if it isn't
+     */
+    private static String getRequestContentEncoding(ServletRequest request) {
         if (!(request instanceof HttpServletRequest)) {
             LOGGER.debug("Can't compress non-HTTP request");
             return null;
@@ -309,10 +487,19 @@ public final class CompressingFilter implements Filter {
             LOGGER.debug("Can't decompress request with encoding: " + contentEncoding);
             return null;
         }
+        return contentEncoding;
+    }
 
-        return new CompressedHttpServletRequest(httpRequest,
-            CompressingStreamFactory.getFactoryForContentEncoding(contentEncoding),
-            context);
+    /**
+     * Counts the request in the stats, as the chain does, when the response is written without
+     * invoking it.
+     */
+    private void countRequestNotPassedOn(ServletRequest request) {
+        if (getRequestContentEncoding(request) != null) {
+            context.getStats().incrementNumRequestsCompressed();
+        } else {
+            context.getStats().incrementTotalRequestsNotCompressed();
+        }
     }
 
     private ServletResponse getResponse(ServletRequest request,
@@ -353,8 +540,9 @@ public final class CompressingFilter implements Filter {
         // on the request "Accept-Encoding" header, below) - this is why we have to add the Vary Header now:
         setVaryHeader(httpResponse, userAgent);
 
-        String contentEncoding = CompressingStreamFactory.getBestContentEncoding(httpRequest);
+        String contentEncoding = CompressingStreamFactory.getBestContentEncoding(httpRequest, context);
         assert contentEncoding != null;
+        FlightRecorderEvents.negotiated(httpRequest, contentEncoding);
 
         if (CompressingStreamFactory.NO_ENCODING.equals(contentEncoding)) {
             LOGGER.debug("Compression not supported or declined by request");
@@ -369,10 +557,157 @@ public final class CompressingFilter implements Filter {
         CompressingStreamFactory compressingStreamFactory =
             CompressingStreamFactory.getFactoryForContentEncoding(contentEncoding);
 
-        return new CompressingHttpServletResponse(httpResponse,
+        boolean streaming = isStreamingPath(requestURI);
+        boolean progressive =
+            !streaming && context.getProgressiveSize() > 0L && isProgressivePath(requestURI);
+        HttpServletResponse targetResponse = httpResponse;
+        ResponseCache responseCache = context.getResponseCache();
+        if (responseCache != null && !streaming) {
+            String cacheKey = ResponseCache.getKey(httpRequest, contentEncoding);
+            if (cacheKey != null) {
+                targetResponse =
+                    responseCache.capture(httpResponse, cacheKey, context.getBufferPool());
+            }
+        }
+
+        return new CompressingHttpServletResponse(targetResponse,
             compressingStreamFactory,
             contentEncoding,
-            context);
+            context,
+            streaming,
+            progressive);
+    }
+
+    /**
+     * Writes a precompressed variant of the requested static resource, if there is one in an
+     * encoding the request accepts.
+     *
+     * @return true if the response was written, and the chain must not be invoked
+     */
+    private boolean servePrecompressed(ServletRequest request, ServletResponse response)
+        throws IOException {
+        PrecompressedResources precompressedResources = context.getPrecompressedResources();
+        if (precompressedResources == null || response.isCommitted()
+            || request.getAttribute(ALREADY_APPLIED_KEY) != null
+            || !(request instanceof HttpServletRequest)
+            || !(response instanceof HttpServletResponse)) {
+            return false;
+        }
+        HttpServletRequest httpRequest = (HttpServletRequest) request;
+        String method = httpRequest.getMethod();
+        String acceptEncoding =
+            httpRequest.getHeader(CompressingHttpServletResponse.ACCEPT_ENCODING_HEADER);
+        // Ranges are left to the container
+        if (!("GET".equals(method) || "HEAD".equals(method)) || acceptEncoding == null
+            || httpRequest.getHeader("Range") != null) {
+            return false;
+        }
+        String userAgent = httpRequest.getHeader("User-Agent");
+        if (!isCompressablePath(httpRequest.getRequestURI())
+            || !isCompressableUserAgent(userAgent)) {
+            return false;
+        }
+        String path = httpRequest.getServletPath();
+        if (httpRequest.getPathInfo() != null) {
+            path += httpRequest.getPathInfo();
+        }
+        PrecompressedResources.Variant variant = precompressedResources.find(path, acceptEncoding);
+        if (variant == null) {
+            return false;
+        }
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Serving precompressed " + variant);
+        }
+        HttpServletResponse httpResponse = (HttpServletResponse) response;
+        setVaryHeader(httpResponse, userAgent);
+        PrecompressedResources.serve(variant, httpRequest, httpResponse);
+        countRequestNotPassedOn(request);
+        context.getStats().incrementNumResponsesCompressed();
+        return true;
+    }
+
+    /**
+     * Writes the response from the response cache, if it is cacheable and cached.
+     *
+     * @return true if the response was written, and the chain must not be invoked
+     */
+    private boolean serveCachedResponse(CompressingHttpServletResponse compressingResponse,
+        ServletRequest request,
+        ServletResponse response) throws IOException {
+        if (!(compressingResponse.getResponse() instanceof CapturingHttpServletResponse)) {
+            return false;
+        }
+        CapturingHttpServletResponse capture =
+            (CapturingHttpServletResponse) compressingResponse.getResponse();
+        ResponseCache responseCache = context.getResponseCache();
+        String cacheKey = capture.getCacheKey();
+        HttpServletResponse httpResponse = (HttpServletResponse) response;
+        String ifNoneMatch = ((HttpServletRequest) request).getHeader(ETags.IF_NONE_MATCH_HEADER);
+        if (!responseCache.serve(cacheKey, ifNoneMatch, httpResponse, context.getBufferPool(),
+            context.getStats())) {
+            return false;
+        }
+        LOGGER.debug("Served response from the response cache");
+        countRequestNotPassedOn(request);
+        context.getStats().incrementNumResponsesCompressed();
+        return true;
+    }
+
+    /**
+     * Called when the response wasn't in the response cache: if another request is producing it,
+     * waits for that request and then writes the response from the cache. Otherwise, this request
+     * produces it, and others wait for it until it is cached, or turns out not to be cacheable.
+     *
+     * @return true if the response was written, and the chain must not be invoked
+     */
+    private boolean serveAfterFlight(CompressingHttpServletResponse compressingResponse,
+        ServletRequest request,
+        ServletResponse response) throws IOException {
+        long timeoutMillis = context.getSingleFlightTimeoutMillis();
+        if (timeoutMillis <= 0L
+            || !(compressingResponse.getResponse() instanceof CapturingHttpServletResponse)) {
+            return false;
+        }
+        CapturingHttpServletResponse capture =
+            (CapturingHttpServletResponse) compressingResponse.getResponse();
+        ResponseCache responseCache = context.getResponseCache();
+        String cacheKey = capture.getCacheKey();
+        if (responseCache.beginFlight(cacheKey, timeoutMillis)) {
+            capture.setLeadingFlight(true);
+            return false;
+        }
+        // If the other request's response wasn't cached, or it took too long, this one is
+        // produced independently
+        String ifNoneMatch = ((HttpServletRequest) request).getHeader(ETags.IF_NONE_MATCH_HEADER);
+        if (!responseCache.serve(cacheKey, ifNoneMatch, (HttpServletResponse) response,
+            context.getBufferPool(), context.getStats())) {
+            return false;
+        }
+        LOGGER.debug("Served response from the response cache after waiting for it");
+        return true;
+    }
+
+    /**
+     * Stores the response in the response cache if it was captured for it, and may be cached.
+     *
+     * @param complete true if the response was compressed, and completely written
+     */
+    private void cacheResponse(CompressingHttpServletResponse compressingResponse,
+        boolean complete) {
+        if (compressingResponse.getResponse() instanceof CapturingHttpServletResponse) {
+            CapturingHttpServletResponse capture =
+                (CapturingHttpServletResponse) compressingResponse.getResponse();
+            try {
+                if (complete) {
+                    context.getResponseCache().put(capture, context.getStats());
+                }
+            } finally {
+                capture.release();
+                if (capture.isLeadingFlight()) {
+                    context.getResponseCache().endFlight(capture.getCacheKey());
+                }
+            }
+        }
     }
 
     /**
@@ -412,6 +747,9 @@ public final class CompressingFilter implements Filter {
 
     public void destroy() {
         LOGGER.info("CompressingFilter is being destroyed...");
+        if (context != null) {
+            context.destroy();
+        }
     }
 
     /**
@@ -434,6 +772,28 @@ public final class CompressingFilter implements Filter {
         return !context.isIncludePathPatterns();
     }
 
+    private boolean isStreamingPath(String path) {
+        if (path != null) {
+            for (Pattern pattern : context.getStreamingPathPatterns()) {
+                if (pattern.matcher(path).matches()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean isProgressivePath(String path) {
+        if (path != null) {
+            for (Pattern pattern : context.getProgressivePathPatterns()) {
+                if (pattern.matcher(path).matches()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     private boolean isCompressableUserAgent(String userAgent) {
         if (userAgent != null) {
             for (Pattern pattern : context.getUserAgentPatterns()) {
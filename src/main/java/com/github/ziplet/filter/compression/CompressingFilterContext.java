@@ -15,13 +15,18 @@
  */
 package com.github.ziplet.filter.compression;
 
+import com.github.ziplet.filter.compression.statistics.CompressingFilterDetailedStats;
 import com.github.ziplet.filter.compression.statistics.CompressingFilterEmptyStats;
 import com.github.ziplet.filter.compression.statistics.CompressingFilterStats;
 import com.github.ziplet.filter.compression.statistics.CompressingFilterStatsImpl;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.regex.Pattern;
 import java.util.zip.Deflater;
 import javax.servlet.FilterConfig;
@@ -43,10 +48,20 @@ final class CompressingFilterContext {
     private static final Logger LOGGER = LoggerFactory.getLogger(CompressingFilterContext.class);
     private static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
     private static final int DEFAULT_COMPRESSION_LEVEL = Deflater.DEFAULT_COMPRESSION;
+    private static final int DEFAULT_CODEC_POOL_SIZE = 256;
+    private static final int DEFAULT_CODEC_POOL_TIMEOUT = 50;
+    private static final int DEFAULT_COMPRESSION_BUFFER_SIZE = 8192;
+    private static final int TIMER_WHEEL_BUCKETS = 256;
+    private static final int DEFAULT_ENCODING_CACHE_SIZE = 256;
+    private static final int DEFAULT_PROGRESSIVE_SIZE = 16384;
+    private static final long DEFAULT_RESPONSE_CACHE_DISK_SIZE = 1024L * 1024L * 1024L;
     private static final Pattern COMMA = Pattern.compile(",");
+    // Servlet spec: the java.io.File where the web application may put temporary files
+    private static final String TEMP_DIRECTORY_ATTRIBUTE = "javax.servlet.context.tempdir";
     private final boolean debug;
-    private final int compressionThreshold;
-    private final int compressionLevel;
+    // may be changed through JMX, for new responses
+    private volatile int compressionThreshold;
+    private volatile int compressionLevel;
     private final ServletContext servletContext;
     private final boolean includeContentTypes;
     private final Collection<String> contentTypes;
@@ -57,7 +72,35 @@ final class CompressingFilterContext {
     private final boolean includeUserAgentPatterns;
     private final Collection<Pattern> userAgentPatterns;
     private final Collection<Pattern> noVaryHeaderPatterns;
+    private final Collection<Pattern> streamingPathPatterns;
+    private final Collection<String> streamingContentTypes;
+    private final Collection<Pattern> progressivePathPatterns;
+    private final int progressiveSize;
+    private final long autoFlushMillis;
+    private final long thresholdHoldMillis;
+    private final boolean thresholdHoldCompress;
+    private final TimerWheel timerWheel;
+    private final CodecPool codecPool;
+    private final BufferPool bufferPool;
+    // estimators not in use, so that their tables are reused; no more than were ever in use at once
+    private final Queue<CompressibilityEstimator> idleEstimators =
+        new ConcurrentLinkedQueue<CompressibilityEstimator>();
+    private final CompressingFilterManagement management;
+    private final AcceptEncodingCache acceptEncodingCache;
+    private final ResponseCache responseCache;
+    private final long singleFlightTimeoutMillis;
+    private final PrecompressedResources precompressedResources;
+    private final boolean generateETags;
+    private final long fullBufferSize;
+    private final long fullBufferSpillSize;
+    private final File tempDirectory;
+    private final long bestOfSize;
+    private final double minCompressionRatio;
+    private final double adaptiveCompressionRatio;
     private CompressingFilterStats stats;
+    // stats, or an adapter if stats don't take the detailed notifications
+    private CompressingFilterDetailedStats detailedStats;
+    private boolean statsEnabled;
 
     CompressingFilterContext(FilterConfig filterConfig, CompressingFilterStats stats)
         throws ServletException {
@@ -83,15 +126,95 @@ final class CompressingFilterContext {
             LOGGER.debug("Using compression level: " + compressionLevel);
         }
 
+        int codecPoolSize = readIntValue(filterConfig, "codecPoolSize", DEFAULT_CODEC_POOL_SIZE);
+        if (codecPoolSize <= 0) {
+            throw new ServletException("Codec pool size must be positive");
+        }
+        int codecPoolTimeout = readIntValue(filterConfig, "codecPoolTimeout",
+            DEFAULT_CODEC_POOL_TIMEOUT);
+        codecPool = new CodecPool(codecPoolSize, (long) codecPoolTimeout);
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Using codec pool: " + codecPool);
+        }
+
+        int compressionBufferSize = readIntValue(filterConfig, "compressionBufferSize",
+            DEFAULT_COMPRESSION_BUFFER_SIZE);
+        if (compressionBufferSize <= 0) {
+            throw new ServletException("Compression buffer size must be positive");
+        }
+        // One buffer per response being compressed, and so per borrowed Deflater
+        bufferPool = new BufferPool(compressionBufferSize, codecPoolSize);
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Using buffer pool: " + bufferPool);
+        }
+
+        int encodingCacheSize = readIntValue(filterConfig, "encodingCacheSize",
+            DEFAULT_ENCODING_CACHE_SIZE);
+        if (encodingCacheSize <= 0) {
+            throw new ServletException("Encoding cache size must be positive");
+        }
+        acceptEncodingCache = new AcceptEncodingCache(encodingCacheSize);
+
+        long responseCacheSize = readLongValue(filterConfig, "responseCacheSize", 0L);
+        int responseCacheTtl;
+        if (responseCacheSize > 0L) {
+            if (responseCacheSize < ResponseCache.BLOCK_SIZE) {
+                throw new ServletException(
+                    "Response cache size must be at least " + ResponseCache.BLOCK_SIZE);
+            }
+            responseCacheTtl = readIntValue(filterConfig, "responseCacheTtl", 0);
+            singleFlightTimeoutMillis =
+                readIntValue(filterConfig, "responseCacheSingleFlightTimeout", 0);
+        } else {
+            responseCacheTtl = 0;
+            singleFlightTimeoutMillis = 0L;
+        }
+
         servletContext = filterConfig.getServletContext();
         assert this.servletContext != null;
 
+        generateETags = readBooleanValue(filterConfig, "generateETags");
+
+        fullBufferSize = readLongValue(filterConfig, "fullBufferSize", 0L);
+        fullBufferSpillSize = readLongValue(filterConfig, "fullBufferSpillSize", 0L);
+        Object tempDirectoryAttribute = servletContext.getAttribute(TEMP_DIRECTORY_ATTRIBUTE);
+        tempDirectory =
+            tempDirectoryAttribute instanceof File ? (File) tempDirectoryAttribute : null;
+        if (fullBufferSize > 0L && LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Compressed responses are held back up to " + fullBufferSize
+                + " bytes in memory and " + fullBufferSpillSize + " bytes in " + tempDirectory);
+        }
+
+        bestOfSize = readLongValue(filterConfig, "bestOfSize", 0L);
+        if (bestOfSize > 0L && LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Responses up to " + bestOfSize
+                + " bytes are sent compressed only if that is smaller");
+        }
+
+        minCompressionRatio = readDoubleValue(filterConfig, "minCompressionRatio", 0.0);
+        if (minCompressionRatio > 0.0 && LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Responses estimated to compress less than " + minCompressionRatio
+                + ":1 are not compressed");
+        }
+
+        adaptiveCompressionRatio = readDoubleValue(filterConfig, "adaptiveCompressionRatio", 0.0);
+        if (adaptiveCompressionRatio > 0.0 && LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Parts of responses compressing less than " + adaptiveCompressionRatio
+                + ":1 are Huffman coded only");
+        }
+
+        if (readBooleanValue(filterConfig, "servePrecompressed")) {
+            precompressedResources = new PrecompressedResources(servletContext);
+            LOGGER.debug("Serving precompressed variants of static resources");
+        } else {
+            precompressedResources = null;
+        }
+
         if (readBooleanValue(filterConfig, "statsEnabled")) {
-            stats = new CompressingFilterStatsImpl();
-            ensureStatsInContext();
+            setCompressingFilterStats(new CompressingFilterStatsImpl());
             LOGGER.debug("Stats are enabled");
         } else {
-            stats = new CompressingFilterEmptyStats();
+            setCompressingFilterStats(new CompressingFilterEmptyStats());
             LOGGER.debug("Stats are disabled");
         }
 
@@ -164,12 +287,89 @@ final class CompressingFilterContext {
                 + " only these User-Agent patterns: " + userAgentPatterns);
         }
 
+        streamingPathPatterns =
+            parsePatterns(filterConfig.getInitParameter("streamingPathPatterns"));
+        streamingContentTypes =
+            parseContentTypes(filterConfig.getInitParameter("streamingContentTypes"));
+        if (LOGGER.isDebugEnabled()
+            && !(streamingPathPatterns.isEmpty() && streamingContentTypes.isEmpty())) {
+            LOGGER.debug("Filter will stream responses matching these path patterns: "
+                + streamingPathPatterns + " or content types: " + streamingContentTypes);
+        }
+
+        progressivePathPatterns =
+            parsePatterns(filterConfig.getInitParameter("progressivePathPatterns"));
+        progressiveSize = readIntValue(filterConfig, "progressiveSize", DEFAULT_PROGRESSIVE_SIZE);
+        if (!progressivePathPatterns.isEmpty() && LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Filter will compress the first " + progressiveSize
+                + " bytes fast for responses matching these path patterns: "
+                + progressivePathPatterns);
+        }
+
+        autoFlushMillis = readIntValue(filterConfig, "autoFlushMillis", 0);
+        thresholdHoldMillis = readIntValue(filterConfig, "thresholdHoldMillis", 0);
+        thresholdHoldCompress = readThresholdHoldCompressValue(filterConfig);
+
+        // Only now that all parameters are valid, create what holds files and threads, which
+        // destroy() releases
+        if (responseCacheSize > 0L) {
+            responseCache = new ResponseCache(responseCacheSize,
+                responseCacheTtl * 1000L,
+                readDiskResponseCache(filterConfig));
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Using response cache: " + responseCache);
+            }
+        } else {
+            responseCache = null;
+        }
+
+        long minDelayMillis = Math.min(
+            autoFlushMillis > 0L ? autoFlushMillis : Long.MAX_VALUE,
+            thresholdHoldMillis > 0L ? thresholdHoldMillis : Long.MAX_VALUE);
+        if (minDelayMillis < Long.MAX_VALUE) {
+            // Ticks are a fraction of the delay, so timeouts are at most a little late
+            timerWheel = new TimerWheel(Math.max(1L, minDelayMillis / 4L), TIMER_WHEEL_BUCKETS);
+            if (LOGGER.isDebugEnabled()) {
+                if (autoFlushMillis > 0L) {
+                    LOGGER.debug("Streaming responses are flushed after " + autoFlushMillis
+                        + "ms using " + timerWheel);
+                }
+                if (thresholdHoldMillis > 0L) {
+                    LOGGER.debug("Responses below the compression threshold are sent "
+                        + (thresholdHoldCompress ? "compressed" : "uncompressed") + " after "
+                        + thresholdHoldMillis + "ms using " + timerWheel);
+                }
+            }
+        } else {
+            timerWheel = null;
+        }
+
+        if (readBooleanValue(filterConfig, "jmxEnabled")) {
+            String filterName = filterConfig.getFilterName();
+            management = CompressingFilterManagement.register(this,
+                servletContext.getContextPath(),
+                filterName == null ? CompressingFilter.class.getSimpleName() : filterName);
+        } else {
+            management = null;
+        }
     }
 
     private static boolean readBooleanValue(FilterConfig filterConfig, String parameter) {
         return Boolean.valueOf(filterConfig.getInitParameter(parameter));
     }
 
+    private static boolean readThresholdHoldCompressValue(FilterConfig filterConfig)
+        throws ServletException {
+        String policy = filterConfig.getInitParameter("thresholdHoldPolicy");
+        if (policy == null || "compress".equalsIgnoreCase(policy)) {
+            return true;
+        }
+        if ("raw".equalsIgnoreCase(policy)) {
+            return false;
+        }
+        throw new ServletException("Invalid thresholdHoldPolicy: " + policy);
+    }
+
     private static int readCompressionThresholdValue(FilterConfig filterConfig)
         throws ServletException {
         String compressionThresholdString = filterConfig.getInitParameter("compressionThreshold");
@@ -216,6 +416,88 @@ final class CompressingFilterContext {
         return value;
     }
 
+    /**
+     * Reads a non-negative integer parameter.
+     */
+    private static int readIntValue(FilterConfig filterConfig, String parameter, int defaultValue)
+        throws ServletException {
+        String valueString = filterConfig.getInitParameter(parameter);
+        if (valueString == null) {
+            return defaultValue;
+        }
+        int value;
+        try {
+            value = Integer.parseInt(valueString);
+        } catch (NumberFormatException nfe) {
+            throw new ServletException("Invalid " + parameter + ": " + valueString, nfe);
+        }
+        if (value < 0) {
+            throw new ServletException(parameter + " cannot be negative");
+        }
+        return value;
+    }
+
+    private static DiskResponseCache readDiskResponseCache(FilterConfig filterConfig)
+        throws ServletException {
+        String directory = filterConfig.getInitParameter("responseCacheDirectory");
+        if (directory == null) {
+            return null;
+        }
+        long diskSize = readLongValue(filterConfig, "responseCacheDiskSize",
+            DEFAULT_RESPONSE_CACHE_DISK_SIZE);
+        if (diskSize < DiskResponseCache.MIN_SIZE) {
+            throw new ServletException(
+                "Response cache disk size must be at least " + DiskResponseCache.MIN_SIZE);
+        }
+        try {
+            return new DiskResponseCache(new File(directory), diskSize);
+        } catch (IOException ioe) {
+            throw new ServletException("Can't open response cache directory " + directory, ioe);
+        }
+    }
+
+    /**
+     * Reads a non-negative long integer parameter.
+     */
+    private static long readLongValue(FilterConfig filterConfig, String parameter,
+        long defaultValue) throws ServletException {
+        String valueString = filterConfig.getInitParameter(parameter);
+        if (valueString == null) {
+            return defaultValue;
+        }
+        long value;
+        try {
+            value = Long.parseLong(valueString);
+        } catch (NumberFormatException nfe) {
+            throw new ServletException("Invalid " + parameter + ": " + valueString, nfe);
+        }
+        if (value < 0L) {
+            throw new ServletException(parameter + " cannot be negative");
+        }
+        return value;
+    }
+
+    /**
+     * Reads a non-negative decimal parameter.
+     */
+    private static double readDoubleValue(FilterConfig filterConfig, String parameter,
+        double defaultValue) throws ServletException {
+        String valueString = filterConfig.getInitParameter(parameter);
+        if (valueString == null) {
+            return defaultValue;
+        }
+        double value;
+        try {
+            value = Double.parseDouble(valueString);
+        } catch (NumberFormatException nfe) {
+            throw new ServletException("Invalid " + parameter + ": " + valueString, nfe);
+        }
+        if (!(value >= 0.0)) {
+            throw new ServletException(parameter + " cannot be negative");
+        }
+        return value;
+    }
+
     private static Collection<String> parseContentTypes(String contentTypesString) {
         if (contentTypesString == null) {
             return Collections.emptyList();
@@ -244,6 +526,15 @@ final class CompressingFilterContext {
 
     public void setCompressingFilterStats(CompressingFilterStats stats) {
         this.stats = stats;
+        if (stats == null || stats instanceof CompressingFilterDetailedStats) {
+            detailedStats = (CompressingFilterDetailedStats) stats;
+        } else {
+            detailedStats = new DetailedStatsAdapter(stats);
+        }
+        statsEnabled = stats != null && !(stats instanceof CompressingFilterEmptyStats);
+        if (stats != null) {
+            ensureStatsInContext();
+        }
     }
 
     boolean isDebug() {
@@ -254,16 +545,102 @@ final class CompressingFilterContext {
         return compressionThreshold;
     }
 
+    void setCompressionThreshold(int compressionThreshold) {
+        if (compressionThreshold < 0) {
+            throw new IllegalArgumentException("Compression threshold cannot be negative");
+        }
+        this.compressionThreshold = compressionThreshold;
+    }
+
     int getCompressionLevel() {
         return compressionLevel;
     }
 
-    public CompressingFilterStats getStats() {
-        if (stats == null) {
+    void setCompressionLevel(int compressionLevel) {
+        if (compressionLevel < -1 || compressionLevel > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Compression level must be -1, or between 0 and "
+                + Deflater.BEST_COMPRESSION);
+        }
+        int oldCompressionLevel = this.compressionLevel;
+        this.compressionLevel =
+            compressionLevel == -1 ? DEFAULT_COMPRESSION_LEVEL : compressionLevel;
+        if (this.compressionLevel != oldCompressionLevel) {
+            codecPool.endIdleDeflaters(oldCompressionLevel);
+        }
+    }
+
+    CodecPool getCodecPool() {
+        return codecPool;
+    }
+
+    int getCompressionBufferSize() {
+        return bufferPool.getBufferSize();
+    }
+
+    BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    CompressibilityEstimator borrowEstimator() {
+        CompressibilityEstimator estimator = idleEstimators.poll();
+        return estimator == null ? new CompressibilityEstimator() : estimator;
+    }
+
+    /**
+     * @param estimator estimator obtained from {@link #borrowEstimator()}; it must not be used
+     * after this
+     */
+    void releaseEstimator(CompressibilityEstimator estimator) {
+        idleEstimators.offer(estimator);
+    }
+
+    AcceptEncodingCache getAcceptEncodingCache() {
+        return acceptEncodingCache;
+    }
+
+    /**
+     * @return the cache of compressed responses, or {@code null} if responses aren't cached
+     */
+    ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    /**
+     * @return true if compressed responses without an ETag are given one computed from the
+     * compressor's checksum
+     */
+    boolean isGenerateETags() {
+        return generateETags;
+    }
+
+    /**
+     * @return precompressed variants of static resources, or {@code null} if they aren't served
+     */
+    PrecompressedResources getPrecompressedResources() {
+        return precompressedResources;
+    }
+
+    /**
+     * @return how long to wait for a concurrent request producing the same uncached response, or 0
+     * to not coalesce requests
+     */
+    long getSingleFlightTimeoutMillis() {
+        return singleFlightTimeoutMillis;
+    }
+
+    public CompressingFilterDetailedStats getStats() {
+        if (detailedStats == null) {
             throw new IllegalStateException("Stats are not enabled");
         }
-        ensureStatsInContext();
-        return stats;
+        return detailedStats;
+    }
+
+    /**
+     * @return true if stats are actually collected, so that it's worth counting bytes as they are
+     * compressed or decompressed
+     */
+    boolean isStatsEnabled() {
+        return statsEnabled;
     }
 
     boolean isIncludeContentTypes() {
@@ -294,6 +671,125 @@ final class CompressingFilterContext {
         return noVaryHeaderPatterns;
     }
 
+    Iterable<Pattern> getStreamingPathPatterns() {
+        return streamingPathPatterns;
+    }
+
+    Collection<String> getStreamingContentTypes() {
+        return streamingContentTypes;
+    }
+
+    Iterable<Pattern> getProgressivePathPatterns() {
+        return progressivePathPatterns;
+    }
+
+    /**
+     * @return number of bytes at the start of a response matching {@link
+     * #getProgressivePathPatterns()} to compress fast and send right away
+     */
+    long getProgressiveSize() {
+        return progressiveSize;
+    }
+
+    /**
+     * @return milliseconds after which unflushed data in a streaming response is flushed, or 0 if
+     * it is not flushed automatically
+     */
+    long getAutoFlushMillis() {
+        return autoFlushMillis;
+    }
+
+    /**
+     * @return milliseconds after which a response that hasn't reached the compression threshold
+     * starts being sent anyway, or 0 if it waits until the threshold, a flush or the end
+     */
+    long getThresholdHoldMillis() {
+        return thresholdHoldMillis;
+    }
+
+    /**
+     * @return true if a response sent after {@link #getThresholdHoldMillis()} is compressed, false
+     * if it is sent uncompressed
+     */
+    boolean isThresholdHoldCompress() {
+        return thresholdHoldCompress;
+    }
+
+    /**
+     * @return timer wheel shared by all responses, or {@code null} if no timeouts are configured
+     */
+    TimerWheel getTimerWheel() {
+        return timerWheel;
+    }
+
+    /**
+     * @return most bytes of a compressed response to hold in memory, so as to send its length, or
+     * 0 if compressed responses are sent as they are produced
+     */
+    long getFullBufferSize() {
+        return fullBufferSize;
+    }
+
+    /**
+     * @return most bytes of a compressed response to hold in a temporary file, beyond {@link
+     * #getFullBufferSize()}
+     */
+    long getFullBufferSpillSize() {
+        return fullBufferSpillSize;
+    }
+
+    /**
+     * @return the web application's temporary directory, or {@code null} if the container doesn't
+     * provide one
+     */
+    File getTempDirectory() {
+        return tempDirectory;
+    }
+
+    /**
+     * @return the length up to which a response is held back both compressed and uncompressed, so
+     * as to send whichever is smaller, or 0 if compressed responses are always sent compressed
+     */
+    long getBestOfSize() {
+        return bestOfSize;
+    }
+
+    /**
+     * @return the estimated compression ratio below which a response isn't compressed, or 0 if
+     * compressibility isn't estimated
+     */
+    double getMinCompressionRatio() {
+        return minCompressionRatio;
+    }
+
+    /**
+     * @return the compression ratio below which parts of a compressed response are Huffman coded
+     * only, or 0 if the compression strategy isn't adapted
+     */
+    double getAdaptiveCompressionRatio() {
+        return adaptiveCompressionRatio;
+    }
+
+    /**
+     * Releases resources held by the filter, when it is destroyed.
+     */
+    void destroy() {
+        if (management != null) {
+            management.unregister();
+        }
+        codecPool.close();
+        if (responseCache != null) {
+            try {
+                responseCache.close();
+            } catch (IOException ioe) {
+                LOGGER.info("Can't close response cache", ioe);
+            }
+        }
+        if (timerWheel != null) {
+            timerWheel.stop();
+        }
+    }
+
     @Override
     public String toString() {
         return "CompressingFilterContext";
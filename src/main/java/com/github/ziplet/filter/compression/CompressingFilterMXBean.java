@@ -0,0 +1,99 @@
+/*
+ * Copyright 2004 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ziplet.filter.compression;
+
+import com.github.ziplet.filter.compression.statistics.LatencyHistogram;
+import java.util.Map;
+
+/**
+ * <p>Management interface of a {@link CompressingFilter}, registered with the platform MBean server
+ * when the filter's "jmxEnabled" parameter is true. The object name is like
+ * {@code com.github.ziplet:type=CompressingFilter,context="/app",name="CompressingFilter"}, using
+ * the servlet context path and filter name.</p>
+ *
+ * <p>The compression threshold and level can be changed; changes apply to responses started
+ * afterwards. Statistics are those of {@link
+ * com.github.ziplet.filter.compression.statistics.CompressingFilterStatsImpl}, and are all zero
+ * unless the filter's "statsEnabled" parameter is true.</p>
+ *
+ * @since 2.4.2
+ */
+public interface CompressingFilterMXBean {
+
+    int getCompressionThreshold();
+
+    /**
+     * @param compressionThreshold new threshold, in bytes; not negative
+     */
+    void setCompressionThreshold(int compressionThreshold);
+
+    int getCompressionLevel();
+
+    /**
+     * @param compressionLevel new level, from 0 to 9, or -1 for the default
+     */
+    void setCompressionLevel(int compressionLevel);
+
+    boolean isStatsEnabled();
+
+    long getNumResponsesCompressed();
+
+    long getTotalResponsesNotCompressed();
+
+    long getResponseInputBytes();
+
+    long getResponseCompressedBytes();
+
+    double getResponseAverageCompressionRatio();
+
+    long getNumRequestsCompressed();
+
+    long getTotalRequestsNotCompressed();
+
+    long getRequestInputBytes();
+
+    long getRequestCompressedBytes();
+
+    double getRequestAverageCompressionRatio();
+
+    long getCodecPoolHits();
+
+    long getCodecPoolMisses();
+
+    long getCodecPoolWaits();
+
+    long getCodecPoolExhaustions();
+
+    long getEncodingCacheHits();
+
+    long getEncodingCacheMisses();
+
+    long getEncodingCacheEvictions();
+
+    long getResponseCacheHits();
+
+    long getResponseCacheMisses();
+
+    long getResponseCacheEvictions();
+
+    long getCompressedFormatsDetected();
+
+    Map<String, LatencyHistogram> getResponseCompressionTimes();
+
+    Map<String, LatencyHistogram> getResponseTotalTimes();
+
+    Map<String, LatencyHistogram> getRequestDecompressionTimes();
+}
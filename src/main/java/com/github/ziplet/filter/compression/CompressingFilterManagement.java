@@ -0,0 +1,211 @@
+/*
+ * Copyright 2004 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ziplet.filter.compression;
+
+import com.github.ziplet.filter.compression.statistics.CompressingFilterStats;
+import com.github.ziplet.filter.compression.statistics.CompressingFilterStatsImpl;
+import com.github.ziplet.filter.compression.statistics.LatencyHistogram;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Implements {@link CompressingFilterMXBean} on top of a {@link CompressingFilterContext}, and
+ * registers it with the platform MBean server.
+ *
+ * @since 2.4.2
+ */
+final class CompressingFilterManagement implements CompressingFilterMXBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CompressingFilterManagement.class);
+    private static final String DOMAIN = "com.github.ziplet";
+    // stands in for stats that aren't collected, and so are all zero
+    private static final CompressingFilterStatsImpl NO_STATS = new CompressingFilterStatsImpl();
+    private final CompressingFilterContext context;
+    private final ObjectName objectName;
+
+    private CompressingFilterManagement(CompressingFilterContext context, ObjectName objectName) {
+        this.context = context;
+        this.objectName = objectName;
+    }
+
+    /**
+     * @return the registered MBean, or {@code null} if it could not be registered, for example
+     * because another filter with the same name was already registered in the same context
+     */
+    static CompressingFilterManagement register(CompressingFilterContext context,
+        String contextPath, String filterName) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        String contextName = contextPath == null || contextPath.length() == 0 ? "/" : contextPath;
+        try {
+            ObjectName objectName = new ObjectName(DOMAIN + ":type=CompressingFilter,context="
+                + ObjectName.quote(contextName) + ",name=" + ObjectName.quote(filterName));
+            CompressingFilterManagement management =
+                new CompressingFilterManagement(context, objectName);
+            server.registerMBean(management, objectName);
+            LOGGER.debug("Registered MBean {}", objectName);
+            return management;
+        } catch (JMException jme) {
+            LOGGER.warn("Could not register CompressingFilter MBean", jme);
+            return null;
+        }
+    }
+
+    void unregister() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException jme) {
+            LOGGER.warn("Could not unregister MBean " + objectName, jme);
+        }
+    }
+
+    ObjectName getObjectName() {
+        return objectName;
+    }
+
+    public int getCompressionThreshold() {
+        return context.getCompressionThreshold();
+    }
+
+    public void setCompressionThreshold(int compressionThreshold) {
+        context.setCompressionThreshold(compressionThreshold);
+        LOGGER.info("Compression threshold set to {} by JMX", compressionThreshold);
+    }
+
+    public int getCompressionLevel() {
+        return context.getCompressionLevel();
+    }
+
+    public void setCompressionLevel(int compressionLevel) {
+        context.setCompressionLevel(compressionLevel);
+        LOGGER.info("Compression level set to {} by JMX", compressionLevel);
+    }
+
+    public boolean isStatsEnabled() {
+        return context.isStatsEnabled();
+    }
+
+    public long getNumResponsesCompressed() {
+        return getStats().getNumResponsesCompressed();
+    }
+
+    public long getTotalResponsesNotCompressed() {
+        return getStats().getTotalResponsesNotCompressed();
+    }
+
+    public long getResponseInputBytes() {
+        return getStats().getResponseInputBytes();
+    }
+
+    public long getResponseCompressedBytes() {
+        return getStats().getResponseCompressedBytes();
+    }
+
+    public double getResponseAverageCompressionRatio() {
+        return getStats().getResponseAverageCompressionRatio();
+    }
+
+    public long getNumRequestsCompressed() {
+        return getStats().getNumRequestsCompressed();
+    }
+
+    public long getTotalRequestsNotCompressed() {
+        return getStats().getTotalRequestsNotCompressed();
+    }
+
+    public long getRequestInputBytes() {
+        return getStats().getRequestInputBytes();
+    }
+
+    public long getRequestCompressedBytes() {
+        return getStats().getRequestCompressedBytes();
+    }
+
+    public double getRequestAverageCompressionRatio() {
+        return getStats().getRequestAverageCompressionRatio();
+    }
+
+    public long getCodecPoolHits() {
+        return getStats().getCodecPoolHits();
+    }
+
+    public long getCodecPoolMisses() {
+        return getStats().getCodecPoolMisses();
+    }
+
+    public long getCodecPoolWaits() {
+        return getStats().getCodecPoolWaits();
+    }
+
+    public long getCodecPoolExhaustions() {
+        return getStats().getCodecPoolExhaustions();
+    }
+
+    public long getEncodingCacheHits() {
+        return getStats().getEncodingCacheHits();
+    }
+
+    public long getEncodingCacheMisses() {
+        return getStats().getEncodingCacheMisses();
+    }
+
+    public long getEncodingCacheEvictions() {
+        return getStats().getEncodingCacheEvictions();
+    }
+
+    public long getResponseCacheHits() {
+        return getStats().getResponseCacheHits();
+    }
+
+    public long getResponseCacheMisses() {
+        return getStats().getResponseCacheMisses();
+    }
+
+    public long getResponseCacheEvictions() {
+        return getStats().getResponseCacheEvictions();
+    }
+
+    public long getCompressedFormatsDetected() {
+        return getStats().getCompressedFormatsDetected();
+    }
+
+    public Map<String, LatencyHistogram> getResponseCompressionTimes() {
+        return getStats().getResponseCompressionTimes();
+    }
+
+    public Map<String, LatencyHistogram> getResponseTotalTimes() {
+        return getStats().getResponseTotalTimes();
+    }
+
+    public Map<String, LatencyHistogram> getRequestDecompressionTimes() {
+        return getStats().getRequestDecompressionTimes();
+    }
+
+    @Override
+    public String toString() {
+        return "CompressingFilterManagement[" + objectName + ']';
+    }
+
+    private CompressingFilterStatsImpl getStats() {
+        CompressingFilterStats stats = context.getStats();
+        return stats instanceof CompressingFilterStatsImpl ? (CompressingFilterStatsImpl) stats
+            : NO_STATS;
+    }
+}
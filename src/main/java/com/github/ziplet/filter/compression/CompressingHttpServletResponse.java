@@ -19,6 +19,7 @@ import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpServletResponseWrapper;
 import org.slf4j.Logger;
@@ -33,6 +34,11 @@ import org.slf4j.LoggerFactory;
 final class CompressingHttpServletResponse extends HttpServletResponseWrapper {
 
     static final String ACCEPT_ENCODING_HEADER = "Accept-Encoding";
+    // Reasons for not compressing a response, for Flight Recorder events
+    private static final String ABORT_CONTENT_TYPE = "Content-Type excluded";
+    private static final String ABORT_CONTENT_LENGTH = "Content-Length below threshold";
+    private static final String ABORT_NO_TRANSFORM = "no-transform";
+    private static final String ABORT_ALREADY_ENCODED = "already encoded";
     static final String CONTENT_ENCODING_HEADER = "Content-Encoding";
     private static final Logger LOGGER = LoggerFactory
         .getLogger(CompressingHttpServletResponse.class);
@@ -57,14 +63,23 @@ final class CompressingHttpServletResponse extends HttpServletResponseWrapper {
     private boolean savedContentLengthSet;
     private String savedContentEncoding;
     private String savedETag;
+    // the request revalidated the compressed response, so a 304 response is for it
+    private boolean revalidatingCompressed;
+    private boolean notModified;
     private boolean contentTypeOK;
     private boolean noTransformSet;
+    private boolean streaming;
+    private final boolean progressive;
 
     CompressingHttpServletResponse(HttpServletResponse httpResponse,
         CompressingStreamFactory compressingStreamFactory,
         String contentEncoding,
-        CompressingFilterContext context) {
+        CompressingFilterContext context,
+        boolean streaming,
+        boolean progressive) {
         super(httpResponse);
+        this.streaming = streaming;
+        this.progressive = progressive;
         this.httpResponse = httpResponse;
         this.compressedContentEncoding = contentEncoding;
         compressing = false;
@@ -128,12 +143,12 @@ final class CompressingHttpServletResponse extends HttpServletResponseWrapper {
             if (value.contains("no-transform")) {
                 LOGGER.debug("Aborting compression due to no-transform directive");
                 noTransformSet = true;
-                maybeAbortCompression();
+                maybeAbortCompression(ABORT_NO_TRANSFORM);
             }
         } else if (CONTENT_ENCODING_HEADER.equalsIgnoreCase(name)) {
             savedContentEncoding = value;
             if (!isCompressableEncoding(value)) {
-                maybeAbortCompression();
+                maybeAbortCompression(ABORT_ALREADY_ENCODED);
             }
         } else if (CONTENT_LENGTH_HEADER.equalsIgnoreCase(name)) {
             setContentLengthLong(Long.parseLong(value));
@@ -187,12 +202,12 @@ final class CompressingHttpServletResponse extends HttpServletResponseWrapper {
             if (value.contains("no-transform")) {
                 LOGGER.debug("Aborting compression due to no-transform directive");
                 noTransformSet = true;
-                maybeAbortCompression();
+                maybeAbortCompression(ABORT_NO_TRANSFORM);
             }
         } else if (CONTENT_ENCODING_HEADER.equalsIgnoreCase(name)) {
             savedContentEncoding = value;
             if (!isCompressableEncoding(value)) {
-                maybeAbortCompression();
+                maybeAbortCompression(ABORT_ALREADY_ENCODED);
             }
         } else if (CONTENT_LENGTH_HEADER.equalsIgnoreCase(name)) {
             setContentLengthLong(Long.parseLong(value));
@@ -210,10 +225,10 @@ final class CompressingHttpServletResponse extends HttpServletResponseWrapper {
         }
     }
 
-    private void maybeAbortCompression() {
+    private void maybeAbortCompression(String reason) {
         if (compressingSOS != null) {
             try {
-                compressingSOS.abortCompression();
+                compressingSOS.abortCompression(reason);
             } catch (IOException ioe) {
                 // Can't throw this, hmm...
                 LOGGER.info("Unexpected error while aborting compression", ioe);
@@ -223,9 +238,10 @@ final class CompressingHttpServletResponse extends HttpServletResponseWrapper {
 
     private void setETagHeader() {
         if (savedETag != null) {
-            if (compressing && !savedETag.startsWith("W")) {
-        	String etag = savedETag.replaceFirst("(\"?)$", "-" + compressedContentEncoding + "$1");
-                httpResponse.setHeader(ETAG_HEADER, etag);
+            if ((compressing || notModified && revalidatingCompressed)
+                && !savedETag.startsWith("W")) {
+                httpResponse.setHeader(ETAG_HEADER,
+                    ETags.addSuffix(savedETag, compressedContentEncoding));
             } else {
                 httpResponse.setHeader(ETAG_HEADER, savedETag);
             }
@@ -259,7 +275,7 @@ final class CompressingHttpServletResponse extends HttpServletResponseWrapper {
     }
 
     @Override
-    public void flushBuffer() {
+    public void flushBuffer() throws IOException {
         flushWriter(); // make sure nothing is buffered in the writer, if applicable
         if (compressingSOS != null) {
             compressingSOS.flush();
@@ -289,6 +305,25 @@ final class CompressingHttpServletResponse extends HttpServletResponseWrapper {
         httpResponse.resetBuffer();
     }
 
+    @Override
+    public void setStatus(int sc) {
+        super.setStatus(sc);
+        if (sc == SC_NOT_MODIFIED) {
+            notModified = true;
+            setETagHeader();
+        }
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public void setStatus(int sc, String sm) {
+        super.setStatus(sc, sm);
+        if (sc == SC_NOT_MODIFIED) {
+            notModified = true;
+            setETagHeader();
+        }
+    }
+
     @Override
     public void setContentLength(int contentLength) {
         // since servlet spec 3.1 we can use setContentLengthLong to accommodate long pages
@@ -314,10 +349,24 @@ final class CompressingHttpServletResponse extends HttpServletResponseWrapper {
     @Override
     public void setContentType(String contentType) {
         contentTypeOK = isCompressableContentType(contentType);
+        if (!streaming && isStreamingContentType(contentType)) {
+            LOGGER.debug("Streaming response due to Content-Type: " + contentType);
+            streaming = true;
+            stopCapturing();
+            if (compressingSOS != null) {
+                try {
+                    // it may have been set up to hold back data
+                    compressingSOS.startStreaming();
+                } catch (IOException ioe) {
+                    // Can't throw this either
+                    LOGGER.info("Unexpected error while starting to stream", ioe);
+                }
+            }
+        }
         httpResponse.setContentType(contentType);
         if (!contentTypeOK && compressingSOS != null) {
             LOGGER.debug("Aborting compression since Content-Type is excluded: " + contentType);
-            maybeAbortCompression();
+            maybeAbortCompression(ABORT_CONTENT_TYPE);
         }
     }
 
@@ -330,12 +379,48 @@ final class CompressingHttpServletResponse extends HttpServletResponseWrapper {
         return compressing;
     }
 
+    /**
+     * Removes the suffix given to the ETags of compressed responses from the request's
+     * "If-None-Match" header, so that the application recognizes its own ETags. If there were
+     * any, a "304 Not Modified" response keeps the suffix, as it is about the compressed response.
+     *
+     * @return the request to pass down the chain
+     */
+    HttpServletRequest removeETagSuffixes(HttpServletRequest request) {
+        HttpServletRequest result = ETags.removeSuffixes(request, compressedContentEncoding);
+        revalidatingCompressed = result != request;
+        return result;
+    }
+
+    /**
+     * @return true if flushes should push compressed data to the client immediately, as
+     * configured by the {@code streamingPathPatterns} and {@code streamingContentTypes} filter init
+     * parameters
+     */
+    boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * @return true if the start of the response should be compressed fast and sent right away, as
+     * configured by the {@code progressivePathPatterns} filter init parameter
+     */
+    boolean isProgressive() {
+        return progressive;
+    }
+
     void close() throws IOException {
         if (compressingSOS != null && !compressingSOS.isClosed()) {
             compressingSOS.close();
         }
     }
 
+    void release() {
+        if (compressingSOS != null) {
+            compressingSOS.release();
+        }
+    }
+
     private void setCompressionResponseHeaders() {
         LOGGER.debug("Setting compression-related headers");
         String fullContentEncodingHeader = savedContentEncoding == null
@@ -361,6 +446,38 @@ final class CompressingHttpServletResponse extends HttpServletResponseWrapper {
         assert !compressing;
         LOGGER.debug("Committing response without compression");
         setNonCompressionResponseHeaders();
+        // only compressed responses are cached
+        stopCapturing();
+    }
+
+    /**
+     * Frees what the response cache recorded of the response so far, if it can no longer be
+     * cached.
+     */
+    private void stopCapturing() {
+        if (httpResponse instanceof CapturingHttpServletResponse) {
+            ((CapturingHttpServletResponse) httpResponse).abandon();
+        }
+    }
+
+    /**
+     * Sets an ETag computed from the compressor's checksum, if enabled and the application didn't
+     * set one, and the length of the compressed response, if it was held back until now. The ETag
+     * only reaches the client if the response hasn't been committed yet, but is cached with the
+     * response by the response cache in any case.
+     *
+     * @param compressedLength length of the compressed response, or -1 if some of it has been
+     * written already
+     */
+    void compressionFinished(String entityTag, long compressedLength) {
+        if (entityTag != null && savedETag == null && context.isGenerateETags()) {
+            httpResponse.setHeader(ETAG_HEADER,
+                ETags.addSuffix(entityTag, compressedContentEncoding));
+        }
+        if (compressedLength >= 0L) {
+            LOGGER.debug("Setting length of compressed response: " + compressedLength);
+            httpResponse.setHeader(CONTENT_LENGTH_HEADER, String.valueOf(compressedLength));
+        }
     }
 
     void switchToCompression() {
@@ -427,6 +544,16 @@ final class CompressingHttpServletResponse extends HttpServletResponseWrapper {
         return context.isIncludeContentTypes() ? isContained : !isContained;
     }
 
+    private boolean isStreamingContentType(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        int semicolonIndex = contentType.indexOf((int) ';');
+        String contentTypeOnly =
+            semicolonIndex >= 0 ? contentType.substring(0, semicolonIndex) : contentType;
+        return context.getStreamingContentTypes().contains(contentTypeOnly.trim());
+    }
+
     private CompressingServletOutputStream getCompressingServletOutputStream() throws IOException {
         if (compressingSOS == null) {
             compressingSOS =
@@ -439,29 +566,33 @@ final class CompressingHttpServletResponse extends HttpServletResponseWrapper {
         if (!compressingSOS.isClosed()) {
             // Do we already know we don't want to compress?
             // Is there a reason we know compression will be used, already?
-            if (mustNotCompress()) {
-                compressingSOS.abortCompression();
+            String reason = getReasonNotToCompress();
+            if (reason != null) {
+                compressingSOS.abortCompression(reason);
             }
         }
 
         return compressingSOS;
     }
 
-    private boolean mustNotCompress() {
+    /**
+     * @return why the response must not be compressed, or {@code null} if it may be
+     */
+    private String getReasonNotToCompress() {
         if (!contentTypeOK) {
             LOGGER.debug("Will not compress since configuration excludes this content type");
-            return true;
+            return ABORT_CONTENT_TYPE;
         }
         if (savedContentLengthSet
             && savedContentLength < (long) context.getCompressionThreshold()) {
             LOGGER.debug("Will not compress since page has set a content length which is less than "
                 + "the compression threshold: " + savedContentLength);
-            return true;
+            return ABORT_CONTENT_LENGTH;
         }
         if (noTransformSet) {
             LOGGER.debug("Will not compress since no-transform was specified");
-            return true;
+            return ABORT_NO_TRANSFORM;
         }
-        return !isCompressableEncoding(savedContentEncoding);
+        return isCompressableEncoding(savedContentEncoding) ? null : ABORT_ALREADY_ENCODED;
     }
 }
@@ -28,4 +28,10 @@ import java.io.InputStream;
 interface CompressingInputStream {
 
     InputStream getCompressingInputStream() throws IOException;
+
+    /**
+     * Returns any pooled resources held by the stream. The stream must not be used afterwards. Has
+     * no effect if the stream was already closed.
+     */
+    void release();
 }
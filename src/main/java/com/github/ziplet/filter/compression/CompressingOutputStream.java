@@ -32,4 +32,42 @@ interface CompressingOutputStream {
     OutputStream getCompressingOutputStream();
 
     void finish() throws IOException;
+
+    /**
+     * Compresses and writes out everything written so far, ending the current block with {@link
+     * java.util.zip.Deflater#SYNC_FLUSH} so that the client can decompress it right away, then
+     * flushes the underlying stream. Used by streaming responses.
+     *
+     * @since 2.4.2
+     */
+    void flush() throws IOException;
+
+    /**
+     * @return total time spent in the compressor so far, in nanoseconds
+     * @since 2.4.2
+     */
+    long getCompressionNanos();
+
+    /**
+     * @return a strong entity tag for the uncompressed data, from the checksum which the compressed
+     * format carries and the length; or {@code null} if the format has no checksum, or the stream
+     * hasn't been finished
+     * @since 2.4.2
+     */
+    String getEntityTag();
+
+    /**
+     * Compresses the first bytes of data at the fastest level, then writes them out as by {@link
+     * #flush()} and goes on at the configured level. Must be called before data is written.
+     *
+     * @param length number of bytes to compress fast
+     * @since 2.4.2
+     */
+    void compressStartFast(long length);
+
+    /**
+     * Returns any pooled resources held by the stream, without finishing it. The stream must not be
+     * used afterwards. Has no effect if the stream was already closed.
+     */
+    void release();
 }
@@ -27,15 +27,16 @@ import javax.servlet.ServletInputStream;
  */
 final class CompressingServletInputStream extends ServletInputStream {
 
+    private final CompressingInputStream compressingInputStream;
     private final InputStream compressingStream;
     private boolean closed;
 
     CompressingServletInputStream(InputStream rawStream,
         CompressingStreamFactory compressingStreamFactory,
         CompressingFilterContext context) throws IOException {
-        this.compressingStream =
-            compressingStreamFactory.getCompressingStream(rawStream, context)
-                .getCompressingInputStream();
+        this.compressingInputStream =
+            compressingStreamFactory.getCompressingStream(rawStream, context);
+        this.compressingStream = compressingInputStream.getCompressingInputStream();
     }
 
     @Override
@@ -95,6 +96,13 @@ final class CompressingServletInputStream extends ServletInputStream {
         return compressingStream.markSupported();
     }
 
+    /**
+     * Returns pooled resources held by the stream, whether or not it has been read fully or closed.
+     */
+    void release() {
+        compressingInputStream.release();
+    }
+
     private void checkClosed() {
         if (closed) {
             throw new IllegalStateException("Stream is already closed");
@@ -36,6 +36,7 @@ final class CompressingServletOutputStream extends ServletOutputStream {
     private final CompressingFilterContext context;
     private ThresholdOutputStream thresholdOutputStream;
     private boolean closed;
+    private boolean closing;
     private boolean aborted;
 
     CompressingServletOutputStream(OutputStream rawStream,
@@ -75,13 +76,19 @@ final class CompressingServletOutputStream extends ServletOutputStream {
     }
 
     @Override
-    public void flush() {
-        // do nothing actually
+    public void flush() throws IOException {
+        // do nothing actually, unless the response is streaming; then, push out what has been
+        // written so far. Don't bother if about to close anyway.
+        if (!closed && !closing && thresholdOutputStream != null
+            && compressingResponse.isStreaming()) {
+            thresholdOutputStream.syncFlush();
+        }
     }
 
     @Override
     public void close() throws IOException {
         if (!closed) {
+            closing = true;
             compressingResponse.flushBuffer();
             closed = true;
             if (thresholdOutputStream == null) {
@@ -103,6 +110,16 @@ final class CompressingServletOutputStream extends ServletOutputStream {
         return closed;
     }
 
+    /**
+     * Abandons the stream, returning any pooled resources it holds, without writing anything more.
+     */
+    void release() {
+        closed = true;
+        if (thresholdOutputStream != null) {
+            thresholdOutputStream.release();
+        }
+    }
+
     void reset() {
         // can't reset rawStream, so do nothing if compressionDisabled, else:
         if (thresholdOutputStream != null) {
@@ -115,15 +132,31 @@ final class CompressingServletOutputStream extends ServletOutputStream {
         thresholdOutputStream.switchToOutputStream2();
     }
 
-    void abortCompression() throws IOException {
+    /**
+     * @param reason why the response won't be compressed
+     */
+    void abortCompression(String reason) throws IOException {
         assert thresholdOutputStream == null;
         // remember that this was called, in case thresholdOutputStream has not been set up yet,
         // so that when it is we can invoke forceOutputStream1()
         checkWriteState();
         thresholdOutputStream.forceOutputStream1();
+        if (!aborted) {
+            FlightRecorderEvents.compressionAborted(reason);
+        }
         aborted = true;
     }
 
+    /**
+     * Called when the response turns out to be streaming after the stream was set up.
+     */
+    void startStreaming() throws IOException {
+        if (thresholdOutputStream != null && !closed) {
+            thresholdOutputStream.startStreaming(context.getTimerWheel(),
+                context.getAutoFlushMillis());
+        }
+    }
+
     boolean isAborted() {
         return aborted;
     }
@@ -135,6 +168,24 @@ final class CompressingServletOutputStream extends ServletOutputStream {
                     compressingStreamFactory,
                     context,
                     new ResponseBufferCommitmentCallback(compressingResponse));
+            if (compressingResponse.isStreaming() && context.getAutoFlushMillis() > 0L) {
+                thresholdOutputStream.enableAutoFlush(context.getTimerWheel(),
+                    context.getAutoFlushMillis());
+            }
+            if (context.getThresholdHoldMillis() > 0L) {
+                thresholdOutputStream.enableThresholdHold(context.getTimerWheel(),
+                    context.getThresholdHoldMillis(), context.isThresholdHoldCompress());
+            }
+            if (compressingResponse.isProgressive()) {
+                thresholdOutputStream.enableProgressive(context.getProgressiveSize());
+            } else if (!compressingResponse.isStreaming()) {
+                if (context.getFullBufferSize() > 0L) {
+                    thresholdOutputStream.enableFullBuffering();
+                }
+                if (context.getBestOfSize() > 0L) {
+                    thresholdOutputStream.enableBestOf(context.getBestOfSize());
+                }
+            }
         }
     }
 
@@ -162,6 +213,10 @@ final class CompressingServletOutputStream extends ServletOutputStream {
             response.switchToCompression();
         }
 
+        public void compressingStreamFinished(String entityTag, long compressedLength) {
+            response.compressionFinished(entityTag, compressedLength);
+        }
+
         @Override
         public String toString() {
             return "ResponseBufferCommitmentCallback";
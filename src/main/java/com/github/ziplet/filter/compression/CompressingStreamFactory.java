@@ -15,23 +15,17 @@
  */
 package com.github.ziplet.filter.compression;
 
-import com.github.ziplet.filter.compression.statistics.CompressingFilterStats;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.List;
 import java.util.Map;
-import java.util.regex.Pattern;
 import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
-import java.util.zip.InflaterInputStream;
+import java.util.zip.Inflater;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 import javax.servlet.http.HttpServletRequest;
@@ -44,7 +38,9 @@ import javax.servlet.http.HttpServletRequest;
  *
  * <p>This class contains implementations based on several popular compression algorithms, such as
  * gzip. For example, the gzip implementation can decorate an {@link OutputStream} using an instance
- * of {@link GZIPOutputStream} and in that way add gzip compression to the stream.</p>
+ * of {@link PooledGZIPOutputStream}, which writes the same format as {@link GZIPOutputStream}, and
+ * in that way add gzip compression to the stream. The {@link Deflater} and {@link Inflater}
+ * instances behind these streams come from the context's {@link CodecPool}.</p>
  *
  * @author Sean Owen
  */
@@ -79,31 +75,28 @@ abstract class CompressingStreamFactory {
      */
     private static final String ANY_ENCODING = "*";
     /**
-     * Ordered list of preferred encodings, from most to least preferred
+     * Preferred encodings, from most to least preferred
      */
-    private static final List<String> supportedEncodings;
+    private static final String[] SUPPORTED_ENCODINGS = {
+        GZIP_ENCODING, DEFLATE_ENCODING, COMPRESS_ENCODING, X_GZIP_ENCODING, X_COMPRESS_ENCODING,
+        NO_ENCODING
+    };
+    /**
+     * Bitmask with a bit set for each index of {@link #SUPPORTED_ENCODINGS}
+     */
+    private static final int ALL_SUPPORTED_ENCODINGS = (1 << SUPPORTED_ENCODINGS.length) - 1;
     /**
-     * Cache mapping previously seen "Accept-Encoding" header Strings to an appropriate instance of
-     * {@link CompressingStreamFactory}.
+     * q-values are parsed as thousandths, so this is q=1
      */
-    private static final Map<String, String> bestEncodingCache =
-        Collections.synchronizedMap(new HashMap<String, String>(101));
+    private static final int Q_ONE = 1000;
+    /**
+     * Limit on the integer part of parsed q-values, which should be at most 1 anyway
+     */
+    private static final int Q_MAX = 1000;
     /**
      * Maps content type String to appropriate implementation of {@link CompressingStreamFactory}.
      */
     private static final Map<String, CompressingStreamFactory> factoryMap;
-    private static final Pattern COMMA = Pattern.compile(",");
-
-    static {
-        List<String> temp = new ArrayList<String>(6);
-        temp.add(GZIP_ENCODING);
-        temp.add(DEFLATE_ENCODING);
-        temp.add(COMPRESS_ENCODING);
-        temp.add(X_GZIP_ENCODING);
-        temp.add(X_COMPRESS_ENCODING);
-        temp.add(NO_ENCODING);
-        supportedEncodings = Collections.unmodifiableList(temp);
-    }
 
     static {
         Map<String, CompressingStreamFactory> temp = new HashMap<String, CompressingStreamFactory>(
@@ -120,20 +113,53 @@ abstract class CompressingStreamFactory {
         CompressingFilterContext context,
         StatsField field) {
         assert outputStream != null;
-        OutputStream result;
-        CompressingFilterStats stats = context.getStats();
-        result = new StatsOutputStream(outputStream, stats, field);
-        return result;
+        if (!context.isStatsEnabled()) {
+            return outputStream;
+        }
+        return new StatsOutputStream(outputStream, context.getStats(), field);
     }
 
     private static InputStream maybeWrapStatsInputStream(InputStream inputStream,
         CompressingFilterContext context,
         StatsField field) {
         assert inputStream != null;
-        InputStream result;
-        CompressingFilterStats stats = context.getStats();
-        result = new StatsInputStream(inputStream, stats, field);
-        return result;
+        if (!context.isStatsEnabled()) {
+            return inputStream;
+        }
+        return new StatsInputStream(inputStream, context.getStats(), field);
+    }
+
+    /**
+     * Reports the bytes counted so far, if the stream was wrapped to count them. Used when a request
+     * body may not have been read to the end.
+     */
+    private static void maybeReportBytesRead(InputStream inputStream) {
+        if (inputStream instanceof StatsInputStream) {
+            ((StatsInputStream) inputStream).reportBytesRead();
+        }
+    }
+
+    private static void maybeEnableAdaptiveStrategy(PooledDeflaterOutputStream outputStream,
+        CompressingFilterContext context) {
+        double adaptiveCompressionRatio = context.getAdaptiveCompressionRatio();
+        if (adaptiveCompressionRatio > 0.0) {
+            outputStream.enableAdaptiveStrategy(adaptiveCompressionRatio);
+        }
+    }
+
+    private static void notifyResponseCompressed(CompressingFilterContext context,
+        String contentEncoding, long deflateNanos, long startNanos) {
+        if (context.isStatsEnabled()) {
+            context.getStats().notifyResponseCompressed(contentEncoding, deflateNanos,
+                System.nanoTime() - startNanos);
+        }
+    }
+
+    private static void notifyRequestDecompressed(CompressingFilterContext context,
+        String contentEncoding, long inflateNanos) {
+        if (context.isStatsEnabled()) {
+            context.getStats().notifyRequestDecompressed(contentEncoding, inflateNanos);
+        }
     }
 
     private static boolean isSupportedResponseContentEncoding(String contentEncoding) {
@@ -157,12 +183,15 @@ abstract class CompressingStreamFactory {
 
     /**
      * Determines best content encoding for the response, based on the request -- in particular,
-     * based on its "Accept-Encoding" header.
+     * based on its "Accept-Encoding" header. Results are cached in the context's {@link
+     * AcceptEncodingCache}.
      *
      * @param httpRequest request
+     * @param context filter context
      * @return best content encoding
      */
-    static String getBestContentEncoding(HttpServletRequest httpRequest) {
+    static String getBestContentEncoding(HttpServletRequest httpRequest,
+        CompressingFilterContext context) {
 
         String forcedEncoding = (String) httpRequest
             .getAttribute(CompressingFilter.FORCE_ENCODING_KEY);
@@ -181,24 +210,18 @@ abstract class CompressingStreamFactory {
 
             } else {
 
-                bestEncoding = bestEncodingCache.get(acceptEncodingHeader);
+                AcceptEncodingCache cache = context.getAcceptEncodingCache();
+                bestEncoding = cache.get(acceptEncodingHeader, context.getStats());
 
                 if (bestEncoding == null) {
 
                     // No cached value; must parse header to determine best encoding
-                    // I don't synchronize on bestEncodingCache; it's not worth it to avoid the rare case where
-                    // two thread get in here and both parse the header. It's only a tiny bit of extra work, and
-                    // avoids the synchronization overhead.
+                    // Two threads may both get in here and parse the same header. It's only a tiny bit of
+                    // extra work, and keeps the common, cached case free of locking.
 
-                    if (acceptEncodingHeader.indexOf((int) ',') >= 0) {
-                        // multiple encodings are accepted
-                        bestEncoding = selectBestEncoding(acceptEncodingHeader);
-                    } else {
-                        // one encoding is accepted
-                        bestEncoding = parseBestEncoding(acceptEncodingHeader);
-                    }
+                    bestEncoding = selectBestEncoding(acceptEncodingHeader);
 
-                    bestEncodingCache.put(acceptEncodingHeader, bestEncoding);
+                    cache.put(acceptEncodingHeader, bestEncoding, context.getStats());
                 }
             }
         }
@@ -211,148 +234,288 @@ abstract class CompressingStreamFactory {
         return bestEncoding;
     }
 
-    private static String parseBestEncoding(String acceptEncodingHeader) {
-        ContentEncodingQ contentEncodingQ = parseContentEncodingQ(acceptEncodingHeader);
-        String contentEncoding = contentEncodingQ.getContentEncoding();
-        if (contentEncodingQ.getQ() > 0.0) {
-            if (ANY_ENCODING.equals(contentEncoding)) {
-                return supportedEncodings.get(0);
-            } else if (supportedEncodings.contains(contentEncoding)) {
-                return contentEncoding;
-            }
-        }
-        return NO_ENCODING;
-    }
-
-    private static String selectBestEncoding(String acceptEncodingHeader) {
-        // multiple encodings are accepted; determine best one
+    /**
+     * <p>Chooses the most preferred supported encoding among those with the highest q-value in an
+     * "Accept-Encoding" header. Encodings given a q-value of 0 are unacceptable; if none is
+     * acceptable but "*" is, the most preferred encoding not ruled out is chosen.</p>
+     *
+     * <p>This scans the header once, in place, with an {@link AcceptEncodingScanner} and no other
+     * objects: q-values are kept as thousandths in an {@code int}, and sets of encodings as
+     * bitmasks over the indices of {@link #SUPPORTED_ENCODINGS}. An unparseable q-value is
+     * ignored, so defaults to 1.</p>
+     */
+    static String selectBestEncoding(String acceptEncodingHeader) {
 
-        Collection<String> bestEncodings = new HashSet<String>(3);
-        double bestQ = 0.0;
-        Collection<String> unacceptableEncodings = new HashSet<String>(3);
+        int bestQ = 0;
+        int bestEncodings = 0;
+        int unacceptableEncodings = 0;
         boolean willAcceptAnything = false;
 
-        for (String token : COMMA.split(acceptEncodingHeader)) {
-            ContentEncodingQ contentEncodingQ = parseContentEncodingQ(token);
-            String contentEncoding = contentEncodingQ.getContentEncoding();
-            double q = contentEncodingQ.getQ();
-            if (ANY_ENCODING.equals(contentEncoding)) {
-                willAcceptAnything = q > 0.0;
-            } else if (supportedEncodings.contains(contentEncoding)) {
-                if (q > 0.0) {
-                    if (q == bestQ) {
-                        bestEncodings.add(contentEncoding);
-                    } else if (q > bestQ) {
-                        bestQ = q;
-                        bestEncodings.clear();
-                        bestEncodings.add(contentEncoding);
+        AcceptEncodingScanner scanner = new AcceptEncodingScanner(acceptEncodingHeader);
+        while (scanner.next()) {
+            int q = scanner.q;
+            if (scanner.isAnyEncoding()) {
+                willAcceptAnything = q > 0;
+            } else {
+                int encodingIndex =
+                    indexOfEncoding(acceptEncodingHeader, scanner.tokenStart, scanner.tokenEnd);
+                if (encodingIndex >= 0) {
+                    int encodingBit = 1 << encodingIndex;
+                    if (q > 0) {
+                        if (q == bestQ) {
+                            bestEncodings |= encodingBit;
+                        } else if (q > bestQ) {
+                            bestQ = q;
+                            bestEncodings = encodingBit;
+                        }
+                    } else {
+                        unacceptableEncodings |= encodingBit;
                     }
-                } else {
-                    unacceptableEncodings.add(contentEncoding);
                 }
             }
         }
 
-        if (bestEncodings.isEmpty()) {
+        if (bestEncodings == 0) {
             // nothing was acceptable to us
-            if (willAcceptAnything) {
-                if (unacceptableEncodings.isEmpty()) {
-                    return supportedEncodings.get(0);
-                } else {
-                    for (String encoding : supportedEncodings) {
-                        if (!unacceptableEncodings.contains(encoding)) {
-                            return encoding;
-                        }
-                    }
-                }
-            }
-        } else {
-            for (String encoding : supportedEncodings) {
-                if (bestEncodings.contains(encoding)) {
-                    return encoding;
-                }
+            int acceptableEncodings = ALL_SUPPORTED_ENCODINGS & ~unacceptableEncodings;
+            if (willAcceptAnything && acceptableEncodings != 0) {
+                return SUPPORTED_ENCODINGS[Integer.numberOfTrailingZeros(acceptableEncodings)];
             }
+            return NO_ENCODING;
         }
-
-        return NO_ENCODING;
+        return SUPPORTED_ENCODINGS[Integer.numberOfTrailingZeros(bestEncodings)];
     }
 
-    private static ContentEncodingQ parseContentEncodingQ(String contentEncodingString) {
+    /**
+     * Finds the q-value an "Accept-Encoding" header gives an encoding, whether or not this filter
+     * can produce it, such as one only available precompressed. An encoding not named is given the
+     * q-value of "*", if present.
+     *
+     * @return the q-value in thousandths; 0 if the encoding isn't acceptable
+     */
+    static int getQValue(String acceptEncodingHeader, String encoding) {
+        int anyQ = 0;
+        AcceptEncodingScanner scanner = new AcceptEncodingScanner(acceptEncodingHeader);
+        while (scanner.next()) {
+            int tokenLength = scanner.tokenEnd - scanner.tokenStart;
+            if (tokenLength == encoding.length() && acceptEncodingHeader.regionMatches(true,
+                scanner.tokenStart, encoding, 0, tokenLength)) {
+                return scanner.q;
+            }
+            if (scanner.isAnyEncoding()) {
+                anyQ = scanner.q;
+            }
+        }
+        return anyQ;
+    }
 
-        double q = 1.0;
+    /**
+     * Steps through the entries of an "Accept-Encoding" header, like "gzip;q=0.5", in place. Both
+     * {@link #selectBestEncoding(String)} and {@link #getQValue(String, String)} read the header
+     * with it, so they agree on whitespace, parameters and "*".
+     */
+    private static final class AcceptEncodingScanner {
+
+        private final String header;
+        private final int length;
+        private int index;
+        // the current entry's coding, without whitespace, and its q-value in thousandths
+        int tokenStart;
+        int tokenEnd;
+        int q;
+
+        AcceptEncodingScanner(String header) {
+            this.header = header;
+            length = header.length();
+        }
 
-        int qvalueStartIndex = contentEncodingString.indexOf((int) ';');
-        String contentEncoding;
-        if (qvalueStartIndex >= 0) {
-            contentEncoding = contentEncodingString.substring(0, qvalueStartIndex).trim();
-            String qvalueString = contentEncodingString.substring(qvalueStartIndex + 1).trim();
-            if (qvalueString.startsWith("q=")) {
-                try {
-                    q = Double.parseDouble(qvalueString.substring(2));
-                } catch (NumberFormatException nfe) {
-                    // That's bad -- browser sent an invalid number. All we can do is ignore it, and
-                    // pretend that no q value was specified, so that it effectively defaults to 1.0
+        /**
+         * @return true if there was another entry, now the current one
+         */
+        boolean next() {
+            if (index >= length) {
+                return false;
+            }
+            tokenStart = skipWhitespace(header, index, length);
+            int end = tokenStart;
+            while (end < length) {
+                char c = header.charAt(end);
+                if (c == ',' || c == ';') {
+                    break;
                 }
+                end++;
             }
-        } else {
-            contentEncoding = contentEncodingString.trim();
+            index = end;
+            q = Q_ONE;
+            if (index < length && header.charAt(index) == ';') {
+                int paramsEnd = header.indexOf((int) ',', index);
+                if (paramsEnd < 0) {
+                    paramsEnd = length;
+                }
+                q = parseQ(header, index + 1, paramsEnd);
+                index = paramsEnd;
+            }
+            index++; // past the comma
+            tokenEnd = trimWhitespace(header, tokenStart, end);
+            return true;
         }
 
-        return new ContentEncodingQ(contentEncoding, q);
+        boolean isAnyEncoding() {
+            return tokenEnd - tokenStart == ANY_ENCODING.length()
+                && header.startsWith(ANY_ENCODING, tokenStart);
+        }
     }
 
-    abstract CompressingOutputStream getCompressingStream(OutputStream servletOutputStream,
-        CompressingFilterContext context) throws IOException;
-
-    abstract CompressingInputStream getCompressingStream(InputStream servletInputStream,
-        CompressingFilterContext context) throws IOException;
-
-    private static final class ContentEncodingQ {
-
-        private final String contentEncoding;
-        private final double q;
-
-        private ContentEncodingQ(String contentEncoding, double q) {
-            assert contentEncoding != null && contentEncoding.length() > 0;
-            this.contentEncoding = contentEncoding;
-            this.q = q;
+    /**
+     * Parses parameters like " q=0.5" between {@code start} and {@code end}.
+     *
+     * @return the q-value in thousandths, or {@link #Q_ONE} if there isn't exactly one valid
+     * q-value
+     */
+    private static int parseQ(String header, int start, int end) {
+        int index = skipWhitespace(header, start, end);
+        end = trimWhitespace(header, index, end);
+        if (end - index < 3 || header.charAt(index) != 'q' || header.charAt(index + 1) != '=') {
+            return Q_ONE;
+        }
+        index += 2;
+        boolean negative = false;
+        char sign = header.charAt(index);
+        if (sign == '+' || sign == '-') {
+            negative = sign == '-';
+            index++;
+        }
+        int q = 0;
+        boolean digitSeen = false;
+        boolean nonZeroDigitSeen = false;
+        while (index < end && isDigit(header.charAt(index))) {
+            int digit = header.charAt(index) - '0';
+            if (q < Q_MAX) {
+                q = q * 10 + digit;
+            }
+            digitSeen = true;
+            nonZeroDigitSeen |= digit != 0;
+            index++;
+        }
+        q = Math.min(q, Q_MAX) * Q_ONE;
+        if (index < end && header.charAt(index) == '.') {
+            index++;
+            for (int scale = Q_ONE / 10; index < end && isDigit(header.charAt(index)); scale /= 10) {
+                int digit = header.charAt(index) - '0';
+                q += digit * scale; // digits past the thousandths add nothing
+                digitSeen = true;
+                nonZeroDigitSeen |= digit != 0;
+                index++;
+            }
+        }
+        if (!digitSeen || index != end) {
+            return Q_ONE;
         }
+        if (negative) {
+            return 0;
+        }
+        // a tiny but positive q-value still means acceptable
+        return q == 0 && nonZeroDigitSeen ? 1 : q;
+    }
 
-        String getContentEncoding() {
-            return contentEncoding;
+    /**
+     * @return index into {@link #SUPPORTED_ENCODINGS} of the encoding named by the given part of
+     * the header, or -1 if it isn't supported
+     */
+    private static int indexOfEncoding(String header, int start, int end) {
+        int length = end - start;
+        for (int i = 0; i < SUPPORTED_ENCODINGS.length; i++) {
+            String encoding = SUPPORTED_ENCODINGS[i];
+            if (encoding.length() == length && header.regionMatches(start, encoding, 0, length)) {
+                return i;
+            }
         }
+        return -1;
+    }
 
-        double getQ() {
-            return q;
+    private static int skipWhitespace(String s, int start, int end) {
+        while (start < end && Character.isWhitespace(s.charAt(start))) {
+            start++;
         }
+        return start;
+    }
 
-        @Override
-        public String toString() {
-            return contentEncoding + ";q=" + q;
+    private static int trimWhitespace(String s, int start, int end) {
+        while (end > start && Character.isWhitespace(s.charAt(end - 1))) {
+            end--;
         }
+        return end;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
     }
 
+    /**
+     * @return a {@link CompressingOutputStream} writing to the given stream, or {@code null} if no
+     * {@link Deflater} could be obtained from the context's {@link CodecPool} in time, in which case
+     * the response should not be compressed
+     */
+    abstract CompressingOutputStream getCompressingStream(OutputStream servletOutputStream,
+        CompressingFilterContext context) throws IOException;
+
+    abstract CompressingInputStream getCompressingStream(InputStream servletInputStream,
+        CompressingFilterContext context) throws IOException;
+
     private static class GZIPCompressingStreamFactory extends CompressingStreamFactory {
 
         @Override
         CompressingOutputStream getCompressingStream(final OutputStream outputStream,
             final CompressingFilterContext context) throws IOException {
-            return new CompressingOutputStream() {
-                private final DeflaterOutputStream gzipOutputStream =
-                    new LevelGZIPOutputStream(
-                        CompressingStreamFactory.maybeWrapStatsOutputStream(
-                            outputStream, context, StatsField.RESPONSE_COMPRESSED_BYTES),
-                        context.getCompressionLevel());
-                private final OutputStream statsOutputStream =
+            final long startNanos = System.nanoTime();
+            int deflaterKey = CodecPool
+                .deflaterKey(context.getCompressionLevel(), Deflater.DEFAULT_STRATEGY, true);
+            Deflater deflater = context.getCodecPool().borrowDeflater(deflaterKey,
+                context.getStats());
+            if (deflater == null) {
+                return null;
+            }
+            final PooledDeflaterOutputStream gzipOutputStream =
+                new PooledGZIPOutputStream(
                     CompressingStreamFactory.maybeWrapStatsOutputStream(
-                        gzipOutputStream, context, StatsField.RESPONSE_INPUT_BYTES);
-
+                        outputStream, context, StatsField.RESPONSE_COMPRESSED_BYTES),
+                    deflater,
+                    context.getCompressionBufferSize(),
+                    context.getCodecPool(),
+                    deflaterKey);
+            maybeEnableAdaptiveStrategy(gzipOutputStream, context);
+            final OutputStream statsOutputStream =
+                CompressingStreamFactory.maybeWrapStatsOutputStream(
+                    gzipOutputStream, context, StatsField.RESPONSE_INPUT_BYTES);
+            return new CompressingOutputStream() {
                 public OutputStream getCompressingOutputStream() {
                     return statsOutputStream;
                 }
 
                 public void finish() throws IOException {
                     gzipOutputStream.finish();
+                    notifyResponseCompressed(context, GZIP_ENCODING,
+                        gzipOutputStream.getDeflateNanos(), startNanos);
+                }
+
+                public void flush() throws IOException {
+                    gzipOutputStream.syncFlush();
+                }
+
+                public long getCompressionNanos() {
+                    return gzipOutputStream.getDeflateNanos();
+                }
+
+                public String getEntityTag() {
+                    return gzipOutputStream.getEntityTag();
+                }
+
+                public void compressStartFast(long length) {
+                    gzipOutputStream.compressStartFast(length);
+                }
+
+                public void release() {
+                    gzipOutputStream.release();
                 }
             };
         }
@@ -361,24 +524,34 @@ abstract class CompressingStreamFactory {
         CompressingInputStream getCompressingStream(final InputStream inputStream,
             final CompressingFilterContext context) {
             return new CompressingInputStream() {
+                private PooledInflaterInputStream gzipInputStream;
+                private InputStream compressedStatsStream;
+                private InputStream statsStream;
+
                 public InputStream getCompressingInputStream() throws IOException {
-                    return CompressingStreamFactory.maybeWrapStatsInputStream(
-                        new GZIPInputStream(
-                            CompressingStreamFactory.maybeWrapStatsInputStream(
-                                inputStream, context, StatsField.REQUEST_COMPRESSED_BYTES)),
+                    compressedStatsStream = CompressingStreamFactory.maybeWrapStatsInputStream(
+                        inputStream, context, StatsField.REQUEST_COMPRESSED_BYTES);
+                    gzipInputStream = new PooledGZIPInputStream(
+                        compressedStatsStream,
+                        context.getCodecPool().borrowInflater(true, context.getStats()),
+                        context.getCodecPool());
+                    statsStream = CompressingStreamFactory.maybeWrapStatsInputStream(
+                        gzipInputStream,
                         context,
                         StatsField.REQUEST_INPUT_BYTES);
+                    return statsStream;
                 }
-            };
-        }
 
-        private static class LevelGZIPOutputStream extends GZIPOutputStream {
-
-            public LevelGZIPOutputStream(OutputStream out, int compressionLevel)
-                throws IOException {
-                super(out);
-                def.setLevel(compressionLevel);
-            }
+                public void release() {
+                    if (gzipInputStream != null) {
+                        gzipInputStream.release();
+                        maybeReportBytesRead(compressedStatsStream);
+                        maybeReportBytesRead(statsStream);
+                        notifyRequestDecompressed(context, GZIP_ENCODING,
+                            gzipInputStream.getInflateNanos());
+                    }
+                }
+            };
         }
     }
 
@@ -387,21 +560,54 @@ abstract class CompressingStreamFactory {
         @Override
         CompressingOutputStream getCompressingStream(final OutputStream outputStream,
             final CompressingFilterContext context) {
-            return new CompressingOutputStream() {
-                private final DeflaterOutputStream zipOutputStream =
-                    new ZipOutputStream(
-                        CompressingStreamFactory.maybeWrapStatsOutputStream(
-                            outputStream, context, StatsField.RESPONSE_COMPRESSED_BYTES));
-                private final OutputStream statsOutputStream =
+            final long startNanos = System.nanoTime();
+            int deflaterKey = CodecPool
+                .deflaterKey(Deflater.DEFAULT_COMPRESSION, Deflater.DEFAULT_STRATEGY, true);
+            Deflater deflater = context.getCodecPool().borrowDeflater(deflaterKey,
+                context.getStats());
+            if (deflater == null) {
+                return null;
+            }
+            final PooledZipOutputStream zipOutputStream =
+                new PooledZipOutputStream(
                     CompressingStreamFactory.maybeWrapStatsOutputStream(
-                        zipOutputStream, context, StatsField.RESPONSE_INPUT_BYTES);
-
+                        outputStream, context, StatsField.RESPONSE_COMPRESSED_BYTES),
+                    deflater,
+                    context.getCompressionBufferSize(),
+                    context.getCodecPool(),
+                    deflaterKey);
+            final OutputStream statsOutputStream =
+                CompressingStreamFactory.maybeWrapStatsOutputStream(
+                    zipOutputStream, context, StatsField.RESPONSE_INPUT_BYTES);
+            return new CompressingOutputStream() {
                 public OutputStream getCompressingOutputStream() {
                     return statsOutputStream;
                 }
 
                 public void finish() throws IOException {
                     zipOutputStream.finish();
+                    notifyResponseCompressed(context, COMPRESS_ENCODING,
+                        zipOutputStream.getDeflateNanos(), startNanos);
+                }
+
+                public void flush() throws IOException {
+                    zipOutputStream.syncFlush();
+                }
+
+                public long getCompressionNanos() {
+                    return zipOutputStream.getDeflateNanos();
+                }
+
+                public String getEntityTag() {
+                    return null;
+                }
+
+                public void compressStartFast(long length) {
+                    // the zip format is only offered for completeness; not worth it here
+                }
+
+                public void release() {
+                    zipOutputStream.release();
                 }
             };
         }
@@ -410,16 +616,180 @@ abstract class CompressingStreamFactory {
         CompressingInputStream getCompressingStream(final InputStream inputStream,
             final CompressingFilterContext context) {
             return new CompressingInputStream() {
+                private PooledZipInputStream zipInputStream;
+                private InputStream compressedStatsStream;
+                private InputStream statsStream;
+
                 public InputStream getCompressingInputStream() {
-                    return CompressingStreamFactory.maybeWrapStatsInputStream(
-                        new ZipInputStream(
-                            CompressingStreamFactory.maybeWrapStatsInputStream(
-                                inputStream, context, StatsField.REQUEST_COMPRESSED_BYTES)),
+                    compressedStatsStream = CompressingStreamFactory.maybeWrapStatsInputStream(
+                        inputStream, context, StatsField.REQUEST_COMPRESSED_BYTES);
+                    zipInputStream = new PooledZipInputStream(
+                        compressedStatsStream,
+                        context.getCodecPool().borrowInflater(true, context.getStats()),
+                        context.getCodecPool());
+                    statsStream = CompressingStreamFactory.maybeWrapStatsInputStream(
+                        zipInputStream,
                         context,
                         StatsField.REQUEST_INPUT_BYTES);
+                    return statsStream;
+                }
+
+                public void release() {
+                    if (zipInputStream != null) {
+                        zipInputStream.release();
+                        maybeReportBytesRead(compressedStatsStream);
+                        maybeReportBytesRead(statsStream);
+                        notifyRequestDecompressed(context, COMPRESS_ENCODING,
+                            zipInputStream.getInflateNanos());
+                    }
                 }
             };
         }
+
+        /**
+         * {@link ZipOutputStream} always creates its own {@link Deflater}; this swaps in a pooled
+         * one, ending the original right away rather than leaving it to finalization. The output
+         * buffer is likewise replaced with one of the configured size.
+         */
+        private static final class PooledZipOutputStream extends ZipOutputStream {
+
+            private final CodecPool codecPool;
+            private final int deflaterKey;
+            private boolean released;
+            private long deflateNanos;
+
+            private PooledZipOutputStream(OutputStream out, Deflater deflater, int bufferSize,
+                CodecPool codecPool, int deflaterKey) {
+                super(out);
+                def.end();
+                def = deflater;
+                buf = new byte[bufferSize];
+                this.codecPool = codecPool;
+                this.deflaterKey = deflaterKey;
+            }
+
+            @Override
+            public synchronized void write(byte[] b, int off, int len) throws IOException {
+                if (released) {
+                    throw new IOException("Stream is already closed");
+                }
+                super.write(b, off, len);
+            }
+
+            @Override
+            protected void deflate() throws IOException {
+                long start = System.nanoTime();
+                int len = def.deflate(buf, 0, buf.length);
+                deflateNanos += System.nanoTime() - start;
+                if (len > 0) {
+                    out.write(buf, 0, len);
+                }
+            }
+
+            void syncFlush() throws IOException {
+                if (released) {
+                    throw new IOException("Stream is already closed");
+                }
+                deflateNanos += PooledDeflaterOutputStream.syncFlush(def, buf, out);
+            }
+
+            long getDeflateNanos() {
+                return deflateNanos;
+            }
+
+            @Override
+            public void close() throws IOException {
+                // ZipOutputStream.close() would end the pooled deflater
+                if (!released) {
+                    try {
+                        finish();
+                        out.close();
+                    } finally {
+                        release();
+                    }
+                }
+            }
+
+            void release() {
+                if (!released) {
+                    released = true;
+                    codecPool.releaseDeflater(def, deflaterKey);
+                }
+            }
+        }
+
+        /**
+         * {@link ZipInputStream} always creates its own {@link Inflater}; this swaps in a pooled
+         * one, ending the original right away rather than leaving it to finalization.
+         */
+        private static final class PooledZipInputStream extends ZipInputStream {
+
+            private final CodecPool codecPool;
+            private final boolean pooled;
+            private boolean released;
+            private long inflateNanos;
+
+            private PooledZipInputStream(InputStream in, Inflater inflater,
+                CodecPool codecPool) {
+                super(in);
+                if (inflater != null) {
+                    inf.end();
+                    inf = inflater;
+                }
+                this.codecPool = codecPool;
+                pooled = inflater != null;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (released) {
+                    throw new IOException("Stream closed");
+                }
+                long start = System.nanoTime();
+                try {
+                    return super.read(b, off, len);
+                } finally {
+                    inflateNanos += System.nanoTime() - start;
+                }
+            }
+
+            @Override
+            protected void fill() throws IOException {
+                long start = System.nanoTime();
+                try {
+                    super.fill();
+                } finally {
+                    inflateNanos -= System.nanoTime() - start;
+                }
+            }
+
+            long getInflateNanos() {
+                return inflateNanos;
+            }
+
+            @Override
+            public void close() throws IOException {
+                // ZipInputStream.close() would end the pooled inflater
+                if (!released) {
+                    try {
+                        in.close();
+                    } finally {
+                        release();
+                    }
+                }
+            }
+
+            void release() {
+                if (!released) {
+                    released = true;
+                    if (pooled) {
+                        codecPool.releaseInflater(inf, true);
+                    } else {
+                        inf.end();
+                    }
+                }
+            }
+        }
     }
 
     private static class DeflateCompressingStreamFactory extends CompressingStreamFactory {
@@ -427,22 +797,55 @@ abstract class CompressingStreamFactory {
         @Override
         CompressingOutputStream getCompressingStream(final OutputStream outputStream,
             final CompressingFilterContext context) {
-            return new CompressingOutputStream() {
-                private final DeflaterOutputStream deflaterOutputStream =
-                    new DeflaterOutputStream(
-                        CompressingStreamFactory.maybeWrapStatsOutputStream(
-                            outputStream, context, StatsField.RESPONSE_COMPRESSED_BYTES),
-                        new Deflater(context.getCompressionLevel()));
-                private final OutputStream statsOutputStream =
+            final long startNanos = System.nanoTime();
+            int deflaterKey = CodecPool
+                .deflaterKey(context.getCompressionLevel(), Deflater.DEFAULT_STRATEGY, false);
+            Deflater deflater = context.getCodecPool().borrowDeflater(deflaterKey,
+                context.getStats());
+            if (deflater == null) {
+                return null;
+            }
+            final PooledDeflaterOutputStream deflaterOutputStream =
+                new PooledDeflaterOutputStream(
                     CompressingStreamFactory.maybeWrapStatsOutputStream(
-                        deflaterOutputStream, context, StatsField.RESPONSE_INPUT_BYTES);
-
+                        outputStream, context, StatsField.RESPONSE_COMPRESSED_BYTES),
+                    deflater,
+                    context.getCompressionBufferSize(),
+                    context.getCodecPool(),
+                    deflaterKey);
+            maybeEnableAdaptiveStrategy(deflaterOutputStream, context);
+            final OutputStream statsOutputStream =
+                CompressingStreamFactory.maybeWrapStatsOutputStream(
+                    deflaterOutputStream, context, StatsField.RESPONSE_INPUT_BYTES);
+            return new CompressingOutputStream() {
                 public OutputStream getCompressingOutputStream() {
                     return statsOutputStream;
                 }
 
                 public void finish() throws IOException {
                     deflaterOutputStream.finish();
+                    notifyResponseCompressed(context, DEFLATE_ENCODING,
+                        deflaterOutputStream.getDeflateNanos(), startNanos);
+                }
+
+                public void flush() throws IOException {
+                    deflaterOutputStream.syncFlush();
+                }
+
+                public long getCompressionNanos() {
+                    return deflaterOutputStream.getDeflateNanos();
+                }
+
+                public String getEntityTag() {
+                    return deflaterOutputStream.getEntityTag();
+                }
+
+                public void compressStartFast(long length) {
+                    deflaterOutputStream.compressStartFast(length);
+                }
+
+                public void release() {
+                    deflaterOutputStream.release();
                 }
             };
         }
@@ -451,15 +854,35 @@ abstract class CompressingStreamFactory {
         CompressingInputStream getCompressingStream(final InputStream inputStream,
             final CompressingFilterContext context) {
             return new CompressingInputStream() {
+                private PooledInflaterInputStream inflaterInputStream;
+                private InputStream compressedStatsStream;
+                private InputStream statsStream;
+
                 public InputStream getCompressingInputStream() {
-                    return CompressingStreamFactory.maybeWrapStatsInputStream(
-                        new InflaterInputStream(
-                            CompressingStreamFactory.maybeWrapStatsInputStream(
-                                inputStream, context, StatsField.REQUEST_COMPRESSED_BYTES)),
+                    compressedStatsStream = CompressingStreamFactory.maybeWrapStatsInputStream(
+                        inputStream, context, StatsField.REQUEST_COMPRESSED_BYTES);
+                    inflaterInputStream = new PooledInflaterInputStream(
+                        compressedStatsStream,
+                        context.getCodecPool().borrowInflater(false, context.getStats()),
+                        context.getCodecPool(),
+                        false);
+                    statsStream = CompressingStreamFactory.maybeWrapStatsInputStream(
+                        inflaterInputStream,
                         context,
                         StatsField.REQUEST_INPUT_BYTES);
+                    return statsStream;
+                }
+
+                public void release() {
+                    if (inflaterInputStream != null) {
+                        inflaterInputStream.release();
+                        maybeReportBytesRead(compressedStatsStream);
+                        maybeReportBytesRead(statsStream);
+                        notifyRequestDecompressed(context, DEFLATE_ENCODING,
+                            inflaterInputStream.getInflateNanos());
+                    }
                 }
             };
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2004 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ziplet.filter.compression;
+
+import com.github.ziplet.filter.compression.statistics.CompressingFilterDetailedStats;
+import com.github.ziplet.filter.compression.statistics.CompressingFilterStats;
+
+/**
+ * Lets the filter report to a {@link CompressingFilterStats} which doesn't implement {@link
+ * CompressingFilterDetailedStats}, ignoring the notifications it doesn't know about.
+ *
+ * @since 2.4.2
+ */
+final class DetailedStatsAdapter implements CompressingFilterDetailedStats {
+
+    private final CompressingFilterStats stats;
+
+    DetailedStatsAdapter(CompressingFilterStats stats) {
+        assert stats != null;
+        this.stats = stats;
+    }
+
+    public void incrementNumResponsesCompressed() {
+        stats.incrementNumResponsesCompressed();
+    }
+
+    public void incrementTotalResponsesNotCompressed() {
+        stats.incrementTotalResponsesNotCompressed();
+    }
+
+    public void incrementNumRequestsCompressed() {
+        stats.incrementNumRequestsCompressed();
+    }
+
+    public void incrementTotalRequestsNotCompressed() {
+        stats.incrementTotalRequestsNotCompressed();
+    }
+
+    public void notifyRequestBytesRead(long read) {
+        stats.notifyRequestBytesRead(read);
+    }
+
+    public void notifyCompressedRequestBytesRead(long read) {
+        stats.notifyCompressedRequestBytesRead(read);
+    }
+
+    public void notifyResponseBytesWritten(long written) {
+        stats.notifyResponseBytesWritten(written);
+    }
+
+    public void notifyCompressedResponseBytesWritten(long written) {
+        stats.notifyCompressedResponseBytesWritten(written);
+    }
+
+    public void notifyCodecPoolHit() {
+    }
+
+    public void notifyCodecPoolMiss() {
+    }
+
+    public void notifyCodecPoolWait() {
+    }
+
+    public void notifyCodecPoolExhausted() {
+    }
+
+    public void notifyEncodingCacheHit() {
+    }
+
+    public void notifyEncodingCacheMiss() {
+    }
+
+    public void notifyEncodingCacheEviction() {
+    }
+
+    public void notifyResponseCacheHit() {
+    }
+
+    public void notifyResponseCacheMiss() {
+    }
+
+    public void notifyResponseCacheEviction() {
+    }
+
+    public void notifyCompressedFormatDetected() {
+    }
+
+    public void notifyResponseCompressed(String contentEncoding, long compressionNanos,
+        long totalNanos) {
+    }
+
+    public void notifyRequestDecompressed(String contentEncoding, long decompressionNanos) {
+    }
+
+    public String getStatsKey() {
+        return stats.getStatsKey();
+    }
+
+    @Override
+    public String toString() {
+        return "DetailedStatsAdapter[" + stats + ']';
+    }
+}
@@ -0,0 +1,631 @@
+/*
+ * Copyright 2004 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ziplet.filter.compression;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.CRC32;
+import javax.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>The persistent tier of a {@link ResponseCache}: cached responses are appended to segment
+ * files in a directory, and survive restarts, so that a new instance starts with the responses its
+ * predecessor cached. The directory must not be shared with another filter.</p>
+ *
+ * <p>The segment being appended to is memory-mapped. Each record holds the response's headers and
+ * compressed body, and a CRC32 so that records torn by a crash are recognized. When a segment is
+ * full it is sealed, and a compact index of its records (key, offset and expiry time) is written
+ * beside it, so that on startup the index of all segments is rebuilt without reading them; the
+ * last segment, and any without an index, are scanned instead.</p>
+ *
+ * <p>Disk use is bounded by a fixed number of fixed-size segments. When there are too many, the
+ * oldest is compacted, much as by the CLOCK algorithm: fresh responses requested since they were
+ * written are copied to the current segment, and it is deleted with the rest. Bodies are sent with
+ * {@link FileChannel#transferTo(long, long, WritableByteChannel)}; since the servlet API exposes
+ * only an {@link OutputStream}, the data passes through the JVM rather than going straight from
+ * the page cache to the socket.</p>
+ *
+ * @since 2.4.2
+ */
+final class DiskResponseCache {
+
+    /**
+     * Smallest disk space that can be used.
+     */
+    static final long MIN_SIZE = 3L * 64L * 1024L;
+    private static final Logger LOGGER = LoggerFactory.getLogger(DiskResponseCache.class);
+    private static final int RECORD_MAGIC = 0x5a495031;
+    private static final int INDEX_MAGIC = 0x5a495831;
+    private static final int RECORD_HEADER_SIZE = 16;
+    private static final long MIN_SEGMENT_SIZE = MIN_SIZE / 3L;
+    private static final long MAX_SEGMENT_SIZE = 64L * 1024L * 1024L;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String INDEX_SUFFIX = ".idx";
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSealedSegments;
+    // All below guarded by "this"
+    private final Map<String, Location> index = new HashMap<String, Location>();
+    // oldest first
+    private final Deque<Segment> sealed = new ArrayDeque<Segment>();
+    private Segment active;
+    private boolean closed;
+
+    /**
+     * Opens the cache in the directory, creating it if needed, and loads the index of the
+     * responses cached there.
+     *
+     * @param maxBytes disk space to use, at least {@link #MIN_SIZE}
+     */
+    DiskResponseCache(File directory, long maxBytes) throws IOException {
+        this.directory = directory;
+        segmentSize = (int) Math.min(MAX_SEGMENT_SIZE, Math.max(MIN_SEGMENT_SIZE, maxBytes / 16L));
+        // While compacting, there is a full set of sealed segments, the one being compacted, and
+        // the current one
+        maxSealedSegments = Math.max(1, (int) (maxBytes / segmentSize) - 2);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create response cache directory " + directory);
+        }
+        int nextId = 0;
+        long now = System.currentTimeMillis();
+        int[] ids = listSegmentIds(directory);
+        for (int i = 0; i < ids.length; i++) {
+            Segment segment = new Segment(ids[i], false);
+            if (i < ids.length - maxSealedSegments) {
+                // the oldest ones no longer fit, so they aren't loaded into the index at all
+                segment.closeAndDelete();
+            } else {
+                load(segment, now);
+                sealed.addLast(segment);
+            }
+            nextId = ids[i] + 1;
+        }
+        active = new Segment(nextId, true);
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Loaded " + index.size() + " cached responses from " + directory);
+        }
+    }
+
+    /**
+     * Appends the captured response to the cache.
+     */
+    void put(CapturingHttpServletResponse capture, long storedMillis, long expiresMillis) {
+        byte[] meta;
+        try {
+            meta = encodeMeta(capture, storedMillis, expiresMillis);
+        } catch (IOException ioe) {
+            // like a header too long for writeUTF()
+            LOGGER.debug("Can't store response on disk", ioe);
+            return;
+        }
+        int length = capture.getBodyLength();
+        List<byte[]> chunks = capture.getBodyChunks();
+        int recordLength = RECORD_HEADER_SIZE + meta.length + length;
+        if (recordLength > segmentSize) {
+            return;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(meta);
+        int remaining = length;
+        for (byte[] chunk : chunks) {
+            int n = Math.min(chunk.length, remaining);
+            crc.update(chunk, 0, n);
+            remaining -= n;
+        }
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            try {
+                if (active.writePosition + recordLength > segmentSize) {
+                    roll();
+                }
+                // casts, so as to link to the methods Java 7 has, not later covariant overrides
+                ByteBuffer buffer = ((ByteBuffer) active.map).duplicate();
+                ((Buffer) buffer).position(active.writePosition);
+                buffer.putInt(RECORD_MAGIC).putInt(meta.length).putInt(length)
+                    .putInt((int) crc.getValue());
+                buffer.put(meta);
+                remaining = length;
+                for (byte[] chunk : chunks) {
+                    int n = Math.min(chunk.length, remaining);
+                    buffer.put(chunk, 0, n);
+                    remaining -= n;
+                }
+                add(capture.getCacheKey(), new Location(active, active.writePosition,
+                    expiresMillis));
+                active.writePosition = buffer.position();
+            } catch (IOException ioe) {
+                LOGGER.info("Can't store response in " + directory, ioe);
+            }
+        }
+    }
+
+    /**
+     * Writes the cached response for the key, if there is a fresh one.
+     *
+     * @param ifNoneMatch the request's "If-None-Match" header, or {@code null}
+     * @return true if the response was written
+     */
+    boolean serve(String key, String ifNoneMatch, HttpServletResponse response, long now)
+        throws IOException {
+        Location location;
+        synchronized (this) {
+            location = closed ? null : index.get(key);
+            if (location == null) {
+                return false;
+            }
+            if (now >= location.expiresMillis) {
+                index.remove(key);
+                return false;
+            }
+            location.referenced = true;
+            location.segment.readers++;
+        }
+        Segment segment = location.segment;
+        try {
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            readFully(segment.channel, header, location.offset);
+            ((Buffer) header).flip();
+            if (header.getInt() != RECORD_MAGIC) {
+                return false;
+            }
+            int metaLength = header.getInt();
+            int length = header.getInt();
+            ByteBuffer meta = ByteBuffer.allocate(metaLength);
+            readFully(segment.channel, meta, location.offset + RECORD_HEADER_SIZE);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(meta.array()));
+            if (!key.equals(in.readUTF())) {
+                return false;
+            }
+            long storedMillis = in.readLong();
+            in.readLong();
+            String contentType = readOptionalUTF(in);
+            String localeTag = readOptionalUTF(in);
+            int numHeaders = in.readInt();
+            List<CapturingHttpServletResponse.Header> headers =
+                new ArrayList<CapturingHttpServletResponse.Header>(numHeaders);
+            for (int i = 0; i < numHeaders; i++) {
+                String name = in.readUTF();
+                headers.add(in.readBoolean()
+                    ? new CapturingHttpServletResponse.Header(name, in.readLong())
+                    : new CapturingHttpServletResponse.Header(name, in.readUTF()));
+            }
+            if (ResponseCache.writeHeaders(response,
+                ifNoneMatch,
+                contentType,
+                localeTag == null ? null : Locale.forLanguageTag(localeTag),
+                headers,
+                now - storedMillis,
+                length)) {
+                transfer(segment.channel,
+                    location.offset + RECORD_HEADER_SIZE + metaLength,
+                    length,
+                    response.getOutputStream());
+            }
+        } finally {
+            release(segment);
+        }
+        return true;
+    }
+
+    synchronized int getEntryCount() {
+        return index.size();
+    }
+
+    /**
+     * Seals the current segment, so that its responses are found when the directory is opened
+     * again, and closes the files.
+     */
+    synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (active.writePosition > 0) {
+            seal(active);
+            sealed.addLast(active);
+        } else {
+            drop(active);
+        }
+        active = null;
+        for (Segment segment : sealed) {
+            segment.closing = true;
+            if (segment.readers == 0) {
+                segment.channel.close();
+            }
+        }
+        index.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "DiskResponseCache[directory: " + directory + ", segments: "
+            + (maxSealedSegments + 2) + " x " + segmentSize + " bytes]";
+    }
+
+    private void add(String key, Location location) {
+        index.put(key, location);
+        location.segment.keys.add(key);
+    }
+
+    /**
+     * Seals the current segment and starts another, compacting the oldest if there are too many.
+     */
+    private void roll() throws IOException {
+        seal(active);
+        sealed.addLast(active);
+        active = new Segment(active.id + 1, true);
+        long now = System.currentTimeMillis();
+        while (sealed.size() > maxSealedSegments) {
+            compact(sealed.removeFirst(), now);
+        }
+    }
+
+    private void seal(Segment segment) throws IOException {
+        segment.map.force();
+        segment.map = null;
+        writeIndexFile(segment);
+    }
+
+    private void writeIndexFile(Segment segment) throws IOException {
+        File indexFile = indexFileFor(segment.id);
+        DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(indexFile)));
+        try {
+            List<String> keys = new ArrayList<String>(segment.keys.size());
+            for (String key : segment.keys) {
+                Location location = index.get(key);
+                if (location != null && location.segment == segment) {
+                    keys.add(key);
+                }
+            }
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(keys.size());
+            for (String key : keys) {
+                Location location = index.get(key);
+                out.writeUTF(key);
+                out.writeInt(location.offset);
+                out.writeLong(location.expiresMillis);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Copies fresh responses requested since they were written into the current segment, while
+     * there is space, and deletes the segment.
+     */
+    private void compact(Segment segment, long now) throws IOException {
+        for (String key : segment.keys) {
+            Location location = index.get(key);
+            if (location == null || location.segment != segment) {
+                continue;
+            }
+            if (!location.referenced || now >= location.expiresMillis
+                || !copyToActive(key, location)) {
+                index.remove(key);
+            }
+        }
+        drop(segment);
+    }
+
+    private boolean copyToActive(String key, Location location) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        readFully(location.segment.channel, header, location.offset);
+        ((Buffer) header).flip();
+        header.getInt();
+        int recordLength = RECORD_HEADER_SIZE + header.getInt() + header.getInt();
+        if (active.writePosition + recordLength > segmentSize) {
+            return false;
+        }
+        ByteBuffer buffer = ((ByteBuffer) active.map).duplicate();
+        ((Buffer) buffer).position(active.writePosition);
+        ((Buffer) buffer).limit(active.writePosition + recordLength);
+        readFully(location.segment.channel, buffer, location.offset);
+        // it must be requested again to survive the next compaction
+        add(key, new Location(active, active.writePosition, location.expiresMillis));
+        active.writePosition += recordLength;
+        return true;
+    }
+
+    /**
+     * Deletes the segment's files, once it is no longer being read.
+     */
+    private void drop(Segment segment) throws IOException {
+        segment.closing = true;
+        segment.deleted = true;
+        if (segment.readers == 0) {
+            segment.closeAndDelete();
+        }
+    }
+
+    private synchronized void release(Segment segment) throws IOException {
+        segment.readers--;
+        if (segment.closing && segment.readers == 0) {
+            if (segment.deleted) {
+                segment.closeAndDelete();
+            } else {
+                segment.channel.close();
+            }
+        }
+    }
+
+    /**
+     * Adds the responses in the segment to the index, from its index file if it has a valid one,
+     * or else by reading its records, and then writes its index file.
+     */
+    private void load(Segment segment, long now) throws IOException {
+        File indexFile = indexFileFor(segment.id);
+        if (indexFile.isFile()) {
+            try {
+                loadIndexFile(segment, indexFile, now);
+                return;
+            } catch (IOException ioe) {
+                LOGGER.info("Ignoring invalid response cache index " + indexFile, ioe);
+            }
+        }
+        scan(segment, now);
+        writeIndexFile(segment);
+    }
+
+    private void loadIndexFile(Segment segment, File indexFile, long now) throws IOException {
+        DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(indexFile)));
+        try {
+            if (in.readInt() != INDEX_MAGIC) {
+                throw new IOException("Not an index file");
+            }
+            int count = in.readInt();
+            List<String> keys = new ArrayList<String>(count);
+            List<Location> locations = new ArrayList<Location>(count);
+            for (int i = 0; i < count; i++) {
+                keys.add(in.readUTF());
+                locations.add(new Location(segment, in.readInt(), in.readLong()));
+            }
+            // only once the whole file is known to be valid
+            for (int i = 0; i < count; i++) {
+                if (now < locations.get(i).expiresMillis) {
+                    add(keys.get(i), locations.get(i));
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads records from the start of the segment, until one is incomplete or corrupt.
+     */
+    private void scan(Segment segment, long now) throws IOException {
+        long size = segment.channel.size();
+        int position = 0;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        while (position + RECORD_HEADER_SIZE <= size) {
+            ((Buffer) header).clear();
+            readFully(segment.channel, header, position);
+            ((Buffer) header).flip();
+            int magic = header.getInt();
+            int metaLength = header.getInt();
+            int length = header.getInt();
+            int crc = header.getInt();
+            if (magic != RECORD_MAGIC || metaLength < 0 || length < 0
+                || position + (long) RECORD_HEADER_SIZE + metaLength + length > size) {
+                break;
+            }
+            ByteBuffer record = ByteBuffer.allocate(metaLength + length);
+            readFully(segment.channel, record, position + RECORD_HEADER_SIZE);
+            CRC32 actualCrc = new CRC32();
+            actualCrc.update(record.array(), 0, record.capacity());
+            if ((int) actualCrc.getValue() != crc) {
+                break;
+            }
+            DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(record.array(), 0, metaLength));
+            String key = in.readUTF();
+            in.readLong();
+            long expiresMillis = in.readLong();
+            if (now < expiresMillis) {
+                add(key, new Location(segment, position, expiresMillis));
+            }
+            position += RECORD_HEADER_SIZE + metaLength + length;
+        }
+        segment.writePosition = position;
+    }
+
+    private File segmentFileFor(int id) {
+        return new File(directory, id + SEGMENT_SUFFIX);
+    }
+
+    private File indexFileFor(int id) {
+        return new File(directory, id + INDEX_SUFFIX);
+    }
+
+    private static int[] listSegmentIds(File directory) {
+        String[] names = directory.list(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (names == null) {
+            return new int[0];
+        }
+        int[] ids = new int[names.length];
+        int count = 0;
+        for (String name : names) {
+            try {
+                ids[count] = Integer.parseInt(
+                    name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                count++;
+            } catch (NumberFormatException nfe) {
+                // not ours
+            }
+        }
+        ids = Arrays.copyOf(ids, count);
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    private static byte[] encodeMeta(CapturingHttpServletResponse capture, long storedMillis,
+        long expiresMillis) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(capture.getCacheKey());
+        out.writeLong(storedMillis);
+        out.writeLong(expiresMillis);
+        writeOptionalUTF(out, capture.getContentType());
+        Locale locale = capture.getRecordedLocale();
+        writeOptionalUTF(out, locale == null ? null : locale.toLanguageTag());
+        List<CapturingHttpServletResponse.Header> headers = capture.getHeaders();
+        out.writeInt(headers.size());
+        for (CapturingHttpServletResponse.Header header : headers) {
+            out.writeUTF(header.name);
+            out.writeBoolean(header.value == null);
+            if (header.value == null) {
+                out.writeLong(header.date);
+            } else {
+                out.writeUTF(header.value);
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void writeOptionalUTF(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readOptionalUTF(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+        throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            position += n;
+        }
+    }
+
+    /**
+     * Copies part of a file to the stream, by {@link FileChannel#transferTo(long, long,
+     * WritableByteChannel)}.
+     */
+    static void transfer(FileChannel channel, long position, long length, OutputStream out)
+        throws IOException {
+        WritableByteChannel target = Channels.newChannel(out);
+        while (length > 0L) {
+            long n = channel.transferTo(position, length, target);
+            if (n <= 0L) {
+                throw new EOFException();
+            }
+            position += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Where a response is stored.
+     */
+    private static final class Location {
+
+        private final Segment segment;
+        private final int offset;
+        private final long expiresMillis;
+        // requested since it was written, or last compacted; guarded by the cache
+        private boolean referenced;
+
+        private Location(Segment segment, int offset, long expiresMillis) {
+            this.segment = segment;
+            this.offset = offset;
+            this.expiresMillis = expiresMillis;
+        }
+    }
+
+    /**
+     * A segment file. All but the current one are only read.
+     */
+    private final class Segment {
+
+        private final int id;
+        private final FileChannel channel;
+        // keys of responses written to this segment, perhaps since overwritten
+        private final List<String> keys = new ArrayList<String>();
+        // All below guarded by the cache
+        private MappedByteBuffer map;
+        private int writePosition;
+        private int readers;
+        private boolean closing;
+        private boolean deleted;
+
+        private Segment(int id, boolean create) throws IOException {
+            this.id = id;
+            File file = segmentFileFor(id);
+            if (create) {
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                raf.setLength(segmentSize);
+                channel = raf.getChannel();
+                map = channel.map(FileChannel.MapMode.READ_WRITE, 0L, segmentSize);
+            } else {
+                channel = new RandomAccessFile(file, "r").getChannel();
+            }
+        }
+
+        private void closeAndDelete() throws IOException {
+            channel.close();
+            map = null;
+            if (!segmentFileFor(id).delete() || (indexFileFor(id).exists()
+                && !indexFileFor(id).delete())) {
+                LOGGER.info("Can't delete response cache segment " + id + " in " + directory);
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2004 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ziplet.filter.compression;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+/**
+ * <p>Handles entity tags of compressed responses. The filter gives a compressed response the
+ * application's strong ETag with the content encoding appended, like {@code "abc-gzip"}, since
+ * its body differs from the uncompressed one. When a client revalidates with that tag in
+ * "If-None-Match", the suffix is removed before the application sees it, so the application can
+ * recognize its own tag and answer "304 Not Modified".</p>
+ *
+ * @since 2.4.2
+ */
+final class ETags {
+
+    static final String IF_NONE_MATCH_HEADER = "If-None-Match";
+    private static final String WEAK_PREFIX = "W/";
+
+    private ETags() {
+        // do not instantiate
+    }
+
+    /**
+     * @return the tag with "-" and the content encoding appended, inside its quotes if any
+     */
+    static String addSuffix(String eTag, String contentEncoding) {
+        int length = eTag.length();
+        int end = length > 0 && eTag.charAt(length - 1) == '"' ? length - 1 : length;
+        return new StringBuilder(length + 1 + contentEncoding.length())
+            .append(eTag, 0, end)
+            .append('-')
+            .append(contentEncoding)
+            .append(eTag, end, length)
+            .toString();
+    }
+
+    /**
+     * @return the "If-None-Match" header with the suffix for the content encoding removed from the
+     * tags which have it, or the same instance if none do
+     */
+    static String removeSuffixes(String ifNoneMatch, String contentEncoding) {
+        StringBuilder result = null;
+        int copied = 0;
+        int encodingLength = contentEncoding.length();
+        int index = ifNoneMatch.indexOf(contentEncoding);
+        while (index >= 0) {
+            int end = index + encodingLength;
+            if (index > 1 && ifNoneMatch.charAt(index - 1) == '-' && end < ifNoneMatch.length()
+                && ifNoneMatch.charAt(end) == '"') {
+                if (result == null) {
+                    result = new StringBuilder(ifNoneMatch.length());
+                }
+                result.append(ifNoneMatch, copied, index - 1);
+                copied = end;
+            }
+            index = ifNoneMatch.indexOf(contentEncoding, end);
+        }
+        return result == null
+            ? ifNoneMatch
+            : result.append(ifNoneMatch, copied, ifNoneMatch.length()).toString();
+    }
+
+    /**
+     * @return true if one of the tags in the "If-None-Match" header is the given one, by weak
+     * comparison, or the header is "*"
+     */
+    static boolean matches(String ifNoneMatch, String eTag) {
+        int eTagStart = eTag.startsWith(WEAK_PREFIX) ? WEAK_PREFIX.length() : 0;
+        int eTagLength = eTag.length() - eTagStart;
+        int length = ifNoneMatch.length();
+        int index = 0;
+        while (index < length) {
+            int end = ifNoneMatch.indexOf(',', index);
+            if (end < 0) {
+                end = length;
+            }
+            int start = index;
+            while (start < end && Character.isWhitespace(ifNoneMatch.charAt(start))) {
+                start++;
+            }
+            int tagEnd = end;
+            while (tagEnd > start && Character.isWhitespace(ifNoneMatch.charAt(tagEnd - 1))) {
+                tagEnd--;
+            }
+            if (ifNoneMatch.startsWith(WEAK_PREFIX, start)) {
+                start += WEAK_PREFIX.length();
+            }
+            int tagLength = tagEnd - start;
+            if (tagLength == 1 && ifNoneMatch.charAt(start) == '*'
+                || tagLength == eTagLength
+                && ifNoneMatch.regionMatches(start, eTag, eTagStart, eTagLength)) {
+                return true;
+            }
+            index = end + 1;
+        }
+        return false;
+    }
+
+    /**
+     * @return the request, or a wrapper of it whose "If-None-Match" header has the suffix for the
+     * content encoding removed, if it had any
+     */
+    static HttpServletRequest removeSuffixes(HttpServletRequest request, String contentEncoding) {
+        String ifNoneMatch = request.getHeader(IF_NONE_MATCH_HEADER);
+        if (ifNoneMatch == null) {
+            return request;
+        }
+        String normalized = removeSuffixes(ifNoneMatch, contentEncoding);
+        return normalized == ifNoneMatch
+            ? request
+            : new NormalizedHttpServletRequest(request, normalized);
+    }
+
+    /**
+     * A request with the suffixes removed from its "If-None-Match" header.
+     */
+    static final class NormalizedHttpServletRequest extends HttpServletRequestWrapper {
+
+        private final String ifNoneMatch;
+
+        private NormalizedHttpServletRequest(HttpServletRequest request, String ifNoneMatch) {
+            super(request);
+            this.ifNoneMatch = ifNoneMatch;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return IF_NONE_MATCH_HEADER.equalsIgnoreCase(name)
+                ? ifNoneMatch
+                : super.getHeader(name);
+        }
+
+        @Override
+        public Enumeration<?> getHeaders(String name) {
+            return IF_NONE_MATCH_HEADER.equalsIgnoreCase(name)
+                ? Collections.enumeration(Collections.singletonList(ifNoneMatch))
+                : super.getHeaders(name);
+        }
+
+        @Override
+        public String toString() {
+            return "NormalizedHttpServletRequest[If-None-Match: " + ifNoneMatch + ']';
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2004 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ziplet.filter.compression;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * <p>Emits JDK Flight Recorder events describing what the filter decides and how long compressing
+ * takes, so that they can be correlated with GC, CPU and socket events in the same recording. The
+ * events are in the "Ziplet" category, named "com.github.ziplet.*", and like all custom events are
+ * only recorded if enabled in the recording's settings.</p>
+ *
+ * <p>Flight Recorder is only present in Java 8u262 and later, so the events are defined in
+ * {@link JdkFlightRecorder}, which is only compiled by the "jfr" build profile, and loaded by name.
+ * Without it, or without Flight Recorder at runtime, and while events are disabled, these methods
+ * do nothing. Callers hold in-progress duration events as {@link Object} so that nothing else
+ * refers to {@code jdk.jfr} types, which may not exist.</p>
+ *
+ * @since 2.4.2
+ */
+final class FlightRecorderEvents {
+
+    private static final String RECORDER_CLASS_NAME =
+        "com.github.ziplet.filter.compression.JdkFlightRecorder";
+    private static final Recorder RECORDER = loadRecorder();
+
+    private FlightRecorderEvents() {
+        // do not instantiate
+    }
+
+    static void negotiated(HttpServletRequest request, String contentEncoding) {
+        if (RECORDER != null) {
+            RECORDER.negotiated(request, contentEncoding);
+        }
+    }
+
+    static void thresholdDecided(boolean compressed, int bufferedBytes, int threshold) {
+        if (RECORDER != null) {
+            RECORDER.thresholdDecided(compressed, bufferedBytes, threshold);
+        }
+    }
+
+    static void compressionAborted(String reason) {
+        if (RECORDER != null) {
+            RECORDER.compressionAborted(reason);
+        }
+    }
+
+    /**
+     * @return the event to pass to {@link #endStreamSwitch(Object, int)}, or {@code null}
+     */
+    static Object beginStreamSwitch() {
+        return RECORDER == null ? null : RECORDER.beginStreamSwitch();
+    }
+
+    static void endStreamSwitch(Object event, int bufferedBytes) {
+        if (event != null) {
+            RECORDER.endStreamSwitch(event, bufferedBytes);
+        }
+    }
+
+    /**
+     * @return the event to pass to {@link #endFinish(Object, long)}, or {@code null}
+     */
+    static Object beginFinish() {
+        return RECORDER == null ? null : RECORDER.beginFinish();
+    }
+
+    static void endFinish(Object event, long compressionNanos) {
+        if (event != null) {
+            RECORDER.endFinish(event, compressionNanos);
+        }
+    }
+
+    /**
+     * @return the recorder, or {@code null} if Flight Recorder or the events aren't available
+     */
+    private static Recorder loadRecorder() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return (Recorder) Class.forName(RECORDER_CLASS_NAME).newInstance();
+        } catch (ReflectiveOperationException roe) {
+            return null;
+        } catch (LinkageError le) {
+            return null;
+        }
+    }
+
+    /**
+     * Emits the events. Begin methods return {@code null} if the event is disabled.
+     */
+    interface Recorder {
+
+        void negotiated(HttpServletRequest request, String contentEncoding);
+
+        void thresholdDecided(boolean compressed, int bufferedBytes, int threshold);
+
+        void compressionAborted(String reason);
+
+        Object beginStreamSwitch();
+
+        void endStreamSwitch(Object event, int bufferedBytes);
+
+        Object beginFinish();
+
+        void endFinish(Object event, long compressionNanos);
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2004 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ziplet.filter.compression;
+
+/**
+ * <p>Estimates how often keys have been seen recently, for the admission policy of {@link
+ * ResponseCache}: a count-min sketch of 4-bit counters, in the style of the TinyLFU paper. Each key
+ * increments one counter in each of four rows, and its frequency is the least of them, so
+ * collisions can only overestimate it. Once the number of increments reaches ten times the number
+ * of counters per row, all counters are halved, so that the frequencies of keys that were popular
+ * long ago decay.</p>
+ *
+ * <p>Not thread-safe; callers must synchronize.</p>
+ *
+ * @since 2.4.2
+ */
+final class FrequencySketch {
+
+    private static final long[] SEEDS = {
+        0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAX_TABLE_SIZE = 1 << 20;
+    // Each long holds sixteen 4-bit counters
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int size;
+
+    /**
+     * @param expectedKeys roughly how many distinct keys the cache can hold
+     */
+    FrequencySketch(int expectedKeys) {
+        int tableSize = Math.min(MAX_TABLE_SIZE,
+            Integer.highestOneBit(Math.max(expectedKeys, 16) * 2 - 1));
+        table = new long[tableSize];
+        tableMask = tableSize - 1;
+        sampleSize = tableSize * 10;
+    }
+
+    /**
+     * @return estimated number of times the key was seen recently, at most 15
+     */
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            int shift = (start + i) << 2;
+            int count = (int) ((table[indexOf(hash, i)] >>> shift) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+        if (added && ++size >= sampleSize) {
+            reset();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FrequencySketch[counters: " + table.length * 16 + ']';
+    }
+
+    /**
+     * Increments the j-th counter of the long at the index, unless it is saturated.
+     */
+    private boolean incrementAt(int index, int j) {
+        int shift = j << 2;
+        long mask = 0xfL << shift;
+        if ((table[index] & mask) != mask) {
+            table[index] += 1L << shift;
+            return true;
+        }
+        return false;
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size >>>= 1;
+    }
+
+    private int indexOf(int hash, int row) {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        h += h >>> 32;
+        return (int) h & tableMask;
+    }
+
+    private static int spread(int hash) {
+        // String hash codes of similar URIs are poorly distributed in their low bits
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2004 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ziplet.filter.compression;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>Holds back everything written to it until it is closed, so that the length of the whole
+ * compressed response is known, and can be sent as its "Content-Length", before any of it is.
+ * Data is kept in buffers borrowed from a {@link BufferPool} up to one limit, then in a temporary
+ * file up to another. Beyond that, it gives up: what it holds is written out, and everything after
+ * is passed straight on, so that the response is sent chunked as usual.</p>
+ *
+ * <p>{@link #flush()} has no effect while data is held back. Once the stream is closed or
+ * {@link #release() released}, its buffers are returned to the pool and the file is deleted.</p>
+ *
+ * @since 2.4.2
+ */
+final class FullBufferOutputStream extends OutputStream {
+
+    private final OutputStream out;
+    private final BufferPool bufferPool;
+    private final long maxMemoryBytes;
+    private final long maxFileBytes;
+    private final File tempDirectory;
+    private final List<byte[]> chunks = new ArrayList<byte[]>(8);
+    private long memoryLength;
+    private File file;
+    private RandomAccessFile fileData;
+    private long fileLength;
+    private boolean passingThrough;
+    private boolean closed;
+
+    /**
+     * @param maxMemoryBytes most bytes to hold in pooled buffers
+     * @param maxFileBytes most bytes to hold in the temporary file, in addition
+     * @param tempDirectory where to create the temporary file, or {@code null} for the default
+     */
+    FullBufferOutputStream(OutputStream out,
+        BufferPool bufferPool,
+        long maxMemoryBytes,
+        long maxFileBytes,
+        File tempDirectory) {
+        assert out != null && bufferPool != null && maxMemoryBytes >= 0L && maxFileBytes >= 0L;
+        this.out = out;
+        this.bufferPool = bufferPool;
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.maxFileBytes = maxFileBytes;
+        this.tempDirectory = tempDirectory;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkClosed();
+        if (!passingThrough && memoryLength + fileLength + len > maxMemoryBytes + maxFileBytes) {
+            passThrough();
+        }
+        if (passingThrough) {
+            out.write(b, off, len);
+            return;
+        }
+        int chunkSize = bufferPool.getBufferSize();
+        while (len > 0 && memoryLength < maxMemoryBytes) {
+            int chunkOffset = (int) (memoryLength % chunkSize);
+            if (chunkOffset == 0) {
+                chunks.add(bufferPool.borrow());
+            }
+            int n = (int) Math.min(Math.min(len, chunkSize - chunkOffset),
+                maxMemoryBytes - memoryLength);
+            System.arraycopy(b, off, chunks.get(chunks.size() - 1), chunkOffset, n);
+            memoryLength += n;
+            off += n;
+            len -= n;
+        }
+        if (len > 0) {
+            if (fileData == null) {
+                file = File.createTempFile("ziplet", ".tmp", tempDirectory);
+                fileData = new RandomAccessFile(file, "rw");
+            }
+            fileData.write(b, off, len);
+            fileLength += len;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        checkClosed();
+        if (passingThrough) {
+            out.flush();
+        }
+    }
+
+    /**
+     * Writes out what is held back, and from now on passes data straight on.
+     */
+    void passThrough() throws IOException {
+        checkClosed();
+        if (!passingThrough) {
+            passingThrough = true;
+            try {
+                writeHeldData();
+            } finally {
+                release();
+            }
+        }
+    }
+
+    /**
+     * @return number of bytes held back, or -1 if this stream is passing data straight on
+     */
+    long getHeldLength() {
+        return passingThrough ? -1L : memoryLength + fileLength;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            try {
+                if (!passingThrough) {
+                    writeHeldData();
+                }
+            } finally {
+                closed = true;
+                release();
+            }
+            out.close();
+        }
+    }
+
+    /**
+     * Returns the buffers to the pool and deletes the temporary file, discarding anything held
+     * back. Has no effect if there is nothing held back.
+     */
+    void release() {
+        for (byte[] chunk : chunks) {
+            bufferPool.release(chunk);
+        }
+        chunks.clear();
+        memoryLength = 0L;
+        if (fileData != null) {
+            try {
+                fileData.close();
+            } catch (IOException ioe) {
+                // nothing more to do with it anyway
+            }
+            fileData = null;
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+            file = null;
+            fileLength = 0L;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FullBufferOutputStream[" + out + ']';
+    }
+
+    private void writeHeldData() throws IOException {
+        int chunkSize = bufferPool.getBufferSize();
+        long remaining = memoryLength;
+        for (byte[] chunk : chunks) {
+            int n = (int) Math.min(remaining, chunkSize);
+            out.write(chunk, 0, n);
+            remaining -= n;
+        }
+        if (fileData != null) {
+            DiskResponseCache.transfer(fileData.getChannel(), 0L, fileLength, out);
+        }
+    }
+
+    private void checkClosed() throws IOException {
+        if (closed) {
+            throw new IOException("Stream is already closed");
+        }
+    }
+}
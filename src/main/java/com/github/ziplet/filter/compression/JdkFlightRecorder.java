@@ -0,0 +1,183 @@
+/*
+ * Copyright 2004 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ziplet.filter.compression;
+
+import javax.servlet.http.HttpServletRequest;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * The Flight Recorder events behind {@link FlightRecorderEvents}. This is only compiled when the
+ * JDK building it has Flight Recorder, and only loaded when the one running it does.
+ *
+ * @since 2.4.2
+ */
+final class JdkFlightRecorder implements FlightRecorderEvents.Recorder {
+
+    public void negotiated(HttpServletRequest request, String contentEncoding) {
+        NegotiationEvent.emit(request, contentEncoding);
+    }
+
+    public void thresholdDecided(boolean compressed, int bufferedBytes, int threshold) {
+        ThresholdDecisionEvent.emit(compressed, bufferedBytes, threshold);
+    }
+
+    public void compressionAborted(String reason) {
+        CompressionAbortedEvent.emit(reason);
+    }
+
+    public Object beginStreamSwitch() {
+        return StreamSwitchEvent.start();
+    }
+
+    public void endStreamSwitch(Object event, int bufferedBytes) {
+        StreamSwitchEvent.end(event, bufferedBytes);
+    }
+
+    public Object beginFinish() {
+        return FinishEvent.start();
+    }
+
+    public void endFinish(Object event, long compressionNanos) {
+        FinishEvent.end(event, compressionNanos);
+    }
+
+    // Each event is allocated before checking whether it's enabled, as Flight Recorder expects;
+    // when it isn't, the JIT compiler eliminates the allocation.
+
+    @Name("com.github.ziplet.Negotiation")
+    @Label("Compression Negotiation")
+    @Category("Ziplet")
+    @Description("Content encoding chosen for a response from the request's Accept-Encoding")
+    private static final class NegotiationEvent extends Event {
+
+        @Label("Path")
+        private String path;
+        @Label("Accept-Encoding")
+        private String acceptEncoding;
+        @Label("Content Encoding")
+        private String contentEncoding;
+
+        private static void emit(HttpServletRequest request, String contentEncoding) {
+            NegotiationEvent event = new NegotiationEvent();
+            if (event.isEnabled()) {
+                event.path = request.getRequestURI();
+                event.acceptEncoding =
+                    request.getHeader(CompressingHttpServletResponse.ACCEPT_ENCODING_HEADER);
+                event.contentEncoding = contentEncoding;
+                event.commit();
+            }
+        }
+    }
+
+    @Name("com.github.ziplet.ThresholdDecision")
+    @Label("Compression Threshold Decision")
+    @Category("Ziplet")
+    @Description("A response stopped buffering, and was committed to being compressed or not")
+    private static final class ThresholdDecisionEvent extends Event {
+
+        @Label("Compressed")
+        private boolean compressed;
+        @Label("Buffered Bytes")
+        private int bufferedBytes;
+        @Label("Threshold")
+        private int threshold;
+
+        private static void emit(boolean compressed, int bufferedBytes, int threshold) {
+            ThresholdDecisionEvent event = new ThresholdDecisionEvent();
+            if (event.isEnabled()) {
+                event.compressed = compressed;
+                event.bufferedBytes = bufferedBytes;
+                event.threshold = threshold;
+                event.commit();
+            }
+        }
+    }
+
+    @Name("com.github.ziplet.CompressionAborted")
+    @Label("Compression Aborted")
+    @Category("Ziplet")
+    @Description("A response that could have been compressed won't be")
+    private static final class CompressionAbortedEvent extends Event {
+
+        @Label("Reason")
+        private String reason;
+
+        private static void emit(String reason) {
+            CompressionAbortedEvent event = new CompressionAbortedEvent();
+            if (event.isEnabled()) {
+                event.reason = reason;
+                event.commit();
+            }
+        }
+    }
+
+    @Name("com.github.ziplet.StreamSwitch")
+    @Label("Compression Stream Switch")
+    @Category("Ziplet")
+    @Description("Setting up compression of a response, and compressing what was buffered")
+    private static final class StreamSwitchEvent extends Event {
+
+        @Label("Buffered Bytes")
+        private int bufferedBytes;
+
+        private static Object start() {
+            StreamSwitchEvent event = new StreamSwitchEvent();
+            if (!event.isEnabled()) {
+                return null;
+            }
+            event.begin();
+            return event;
+        }
+
+        private static void end(Object event, int bufferedBytes) {
+            StreamSwitchEvent switchEvent = (StreamSwitchEvent) event;
+            switchEvent.bufferedBytes = bufferedBytes;
+            switchEvent.commit();
+        }
+    }
+
+    @Name("com.github.ziplet.Finish")
+    @Label("Compression Finish")
+    @Category("Ziplet")
+    @Description("Finishing a compressed response; also reports the time spent compressing it")
+    private static final class FinishEvent extends Event {
+
+        @Label("Compression Time")
+        @Description("Total time spent in the compressor for the response")
+        @Timespan(Timespan.NANOSECONDS)
+        private long compressionTime;
+
+        private static Object start() {
+            FinishEvent event = new FinishEvent();
+            if (!event.isEnabled()) {
+                return null;
+            }
+            event.begin();
+            return event;
+        }
+
+        private static void end(Object event, long compressionNanos) {
+            FinishEvent finishEvent = (FinishEvent) event;
+            finishEvent.compressionTime = compressionNanos;
+            finishEvent.commit();
+        }
+    }
+}
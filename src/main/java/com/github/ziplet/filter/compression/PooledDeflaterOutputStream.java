@@ -0,0 +1,243 @@
+/*
+ * Copyright 2004 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ziplet.filter.compression;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * <p>A {@link DeflaterOutputStream} whose {@link Deflater} is borrowed from a {@link CodecPool}.
+ * The deflater is returned to the pool, rather than ended, when the stream is closed or {@link
+ * #release() released}; the stream can't be written to after that. Time spent in the deflater is
+ * measured, for stats.</p>
+ *
+ * <p>If {@link #enableAdaptiveStrategy(double) enabled}, the stream also watches how well each
+ * window of data compresses, and stops looking for repeated strings, Huffman coding only, where
+ * that doesn't pay, like in a run of embedded images. It tries again every few windows.</p>
+ *
+ * @since 2.4.2
+ */
+class PooledDeflaterOutputStream extends DeflaterOutputStream {
+
+    // large enough that the deflater's internal buffering doesn't skew a window's ratio much
+    private static final long ADAPTIVE_WINDOW = 64 * 1024;
+    // windows to Huffman code only before trying full compression again
+    private static final int HUFFMAN_ONLY_WINDOWS = 4;
+    private final CodecPool codecPool;
+    private final int deflaterKey;
+    private boolean released;
+    private long deflateNanos;
+    private String entityTag;
+    // 0 unless adapting the strategy
+    private double minWindowRatio;
+    private long windowStartRead;
+    private long windowStartWritten;
+    private int huffmanOnlyWindows;
+    private boolean huffmanOnly;
+    // 0 unless compressing the start fast
+    private long fastLength;
+
+    /**
+     * @param bufferSize size of the buffer holding compressed output before it is written to
+     * {@code out}
+     */
+    PooledDeflaterOutputStream(OutputStream out, Deflater deflater, int bufferSize,
+        CodecPool codecPool, int deflaterKey) {
+        super(out, deflater, bufferSize);
+        this.codecPool = codecPool;
+        this.deflaterKey = deflaterKey;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        checkReleased();
+        super.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkReleased();
+        super.write(b, off, len);
+        if (fastLength > 0L && def.getBytesRead() >= fastLength) {
+            fastLength = 0L;
+            syncFlush();
+            def.setLevel(CodecPool.levelOf(deflaterKey));
+        }
+        if (minWindowRatio > 0.0 && def.getBytesRead() - windowStartRead >= ADAPTIVE_WINDOW) {
+            adaptStrategy();
+        }
+    }
+
+    /**
+     * Compresses about the first {@code length} bytes at {@link Deflater#BEST_SPEED}, then
+     * {@link #syncFlush() sync-flushes} them, so that the client can start on them sooner, and
+     * goes on at the configured level. Has no effect if that is fast anyway.
+     */
+    void compressStartFast(long length) {
+        assert def.getBytesRead() == 0L;
+        int level = CodecPool.levelOf(deflaterKey);
+        if (length > 0L
+            && (level == Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_SPEED)) {
+            def.setLevel(Deflater.BEST_SPEED);
+            fastLength = length;
+        }
+    }
+
+    /**
+     * Makes the stream switch to {@link Deflater#HUFFMAN_ONLY} while data compresses less than
+     * the given ratio of uncompressed to compressed length, and back when it may compress better.
+     * The pool restores the deflater's strategy when it's returned.
+     */
+    void enableAdaptiveStrategy(double minWindowRatio) {
+        assert minWindowRatio > 0.0;
+        this.minWindowRatio = minWindowRatio;
+    }
+
+    /**
+     * @return true if currently Huffman coding only, after data didn't compress well
+     */
+    boolean isHuffmanOnly() {
+        return huffmanOnly;
+    }
+
+    private void adaptStrategy() {
+        long read = def.getBytesRead();
+        long written = def.getBytesWritten();
+        if (huffmanOnly) {
+            // says nothing about what full compression would do; just try it again at times
+            if (++huffmanOnlyWindows >= HUFFMAN_ONLY_WINDOWS) {
+                def.setStrategy(CodecPool.strategyOf(deflaterKey));
+                huffmanOnly = false;
+            }
+        } else if ((double) (read - windowStartRead)
+            < minWindowRatio * (double) Math.max(1L, written - windowStartWritten)) {
+            def.setStrategy(Deflater.HUFFMAN_ONLY);
+            huffmanOnly = true;
+            huffmanOnlyWindows = 0;
+        }
+        windowStartRead = read;
+        windowStartWritten = written;
+    }
+
+    @Override
+    public void finish() throws IOException {
+        checkReleased();
+        super.finish();
+        if (entityTag == null) {
+            entityTag = '"' + Long.toHexString(getChecksum()) + '-'
+                + Long.toHexString(def.getBytesRead()) + '"';
+        }
+    }
+
+    /**
+     * @return checksum of the data written so far, which the compressed format carries: here, the
+     * zlib format's Adler-32
+     */
+    long getChecksum() {
+        return def.getAdler();
+    }
+
+    /**
+     * @return a strong entity tag for the data, from its checksum and length, so computed without
+     * another pass over it; or {@code null} if the stream hasn't been finished
+     */
+    String getEntityTag() {
+        return entityTag;
+    }
+
+    @Override
+    protected void deflate() throws IOException {
+        // as in DeflaterOutputStream, but timing only the deflater, not writing its output
+        long start = System.nanoTime();
+        int len = def.deflate(buf, 0, buf.length);
+        deflateNanos += System.nanoTime() - start;
+        if (len > 0) {
+            out.write(buf, 0, len);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!released) {
+            try {
+                super.close();
+            } finally {
+                release();
+            }
+        }
+    }
+
+    /**
+     * Writes out all data written so far with {@link Deflater#SYNC_FLUSH}, then flushes the
+     * underlying stream. Unlike {@link #flush()}, the data can then be decompressed by the client
+     * without waiting for more.
+     */
+    void syncFlush() throws IOException {
+        checkReleased();
+        deflateNanos += syncFlush(def, buf, out);
+    }
+
+    /**
+     * @return time spent in the deflater, in nanoseconds
+     */
+    static long syncFlush(Deflater def, byte[] buf, OutputStream out) throws IOException {
+        long nanos = 0L;
+        if (!def.finished()) {
+            while (true) {
+                long start = System.nanoTime();
+                int len = def.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+                nanos += System.nanoTime() - start;
+                if (len <= 0) {
+                    break;
+                }
+                out.write(buf, 0, len);
+            }
+        }
+        out.flush();
+        return nanos;
+    }
+
+    /**
+     * @return total time spent in the deflater, in nanoseconds
+     */
+    long getDeflateNanos() {
+        return deflateNanos;
+    }
+
+    /**
+     * Returns the {@link Deflater} to the pool without finishing the stream. Has no effect if the
+     * stream was already closed or released.
+     */
+    void release() {
+        if (!released) {
+            released = true;
+            codecPool.releaseDeflater(def, deflaterKey);
+        }
+    }
+
+    void checkReleased() throws IOException {
+        if (released) {
+            throw new IOException("Stream is already closed");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PooledDeflaterOutputStream[" + out + ']';
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2006 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ziplet.filter.compression;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Reads the gzip format, like {@link GZIPInputStream}, but using a pooled {@link Inflater}.
+ * Concatenated gzip members are read as one stream, as {@link GZIPInputStream} does.
+ *
+ * @since 2.4.2
+ */
+final class PooledGZIPInputStream extends PooledInflaterInputStream {
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+    private final CRC32 crc = new CRC32();
+    private boolean eos;
+
+    /**
+     * @param inflater an inflater created with "nowrap" set, or {@code null} if none could be
+     * borrowed from the pool
+     */
+    PooledGZIPInputStream(InputStream in, Inflater inflater, CodecPool codecPool)
+        throws IOException {
+        super(in, inflater, codecPool, true);
+        try {
+            readHeader(in);
+        } catch (IOException ioe) {
+            release();
+            throw ioe;
+        }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (eos) {
+            return -1;
+        }
+        int n = super.read(b, off, len);
+        if (n == -1) {
+            if (readTrailer()) {
+                eos = true;
+            } else {
+                return read(b, off, len);
+            }
+        } else {
+            crc.update(b, off, n);
+        }
+        return n;
+    }
+
+    /**
+     * @return number of header bytes read
+     */
+    private int readHeader(InputStream rawIn) throws IOException {
+        CheckedInputStream in = new CheckedInputStream(rawIn, crc);
+        crc.reset();
+        if (readUShort(in) != GZIP_MAGIC) {
+            throw new ZipException("Not in GZIP format");
+        }
+        if (readUByte(in) != 8) {
+            throw new ZipException("Unsupported compression method");
+        }
+        int flags = readUByte(in);
+        // Skip MTIME, XFL, and OS fields
+        skipBytes(in, 6);
+        int n = 2 + 2 + 6;
+        if ((flags & FEXTRA) == FEXTRA) {
+            int m = readUShort(in);
+            skipBytes(in, m);
+            n += m + 2;
+        }
+        if ((flags & FNAME) == FNAME) {
+            do {
+                n++;
+            } while (readUByte(in) != 0);
+        }
+        if ((flags & FCOMMENT) == FCOMMENT) {
+            do {
+                n++;
+            } while (readUByte(in) != 0);
+        }
+        if ((flags & FHCRC) == FHCRC) {
+            int v = (int) crc.getValue() & 0xffff;
+            if (readUShort(in) != v) {
+                throw new ZipException("Corrupt GZIP header");
+            }
+            n += 2;
+        }
+        crc.reset();
+        return n;
+    }
+
+    /**
+     * @return true if the end of the stream was reached, or false if another concatenated member
+     * follows
+     */
+    private boolean readTrailer() throws IOException {
+        InputStream trailerIn = in;
+        int n = inf.getRemaining();
+        if (n > 0) {
+            trailerIn = new SequenceInputStream(
+                new ByteArrayInputStream(buf, len - n, n),
+                new FilterInputStream(in) {
+                    @Override
+                    public void close() {
+                        // don't close the underlying stream
+                    }
+                });
+        }
+        // ISIZE is the input size modulo 2^32
+        if (readUInt(trailerIn) != crc.getValue()
+            || readUInt(trailerIn) != (inf.getBytesWritten() & 0xffffffffL)) {
+            throw new ZipException("Corrupt GZIP trailer");
+        }
+        // More bytes after this trailer (8) may hold another member: header (10+) and trailer (8)
+        if (in.available() > 0 || n > 26) {
+            int m = 8;
+            try {
+                m += readHeader(trailerIn);
+            } catch (IOException ioe) {
+                // ignore trailing garbage, as GZIPInputStream does
+                return true;
+            }
+            inf.reset();
+            if (n > m) {
+                inf.setInput(buf, len - n + m, n - m);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    private static long readUInt(InputStream in) throws IOException {
+        long s = readUShort(in);
+        return ((long) readUShort(in) << 16) | s;
+    }
+
+    private static int readUShort(InputStream in) throws IOException {
+        int b = readUByte(in);
+        return (readUByte(in) << 8) | b;
+    }
+
+    private static int readUByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b == -1) {
+            throw new EOFException();
+        }
+        return b;
+    }
+
+    private static void skipBytes(InputStream in, int n) throws IOException {
+        for (int i = 0; i < n; i++) {
+            readUByte(in);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PooledGZIPInputStream[" + in + ']';
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2004 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ziplet.filter.compression;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the gzip format, like {@link GZIPOutputStream}, but using a pooled {@link Deflater}.
+ * {@link GZIPOutputStream} always creates its own, which is only ended when the stream is closed.
+ *
+ * @since 2.4.2
+ */
+final class PooledGZIPOutputStream extends PooledDeflaterOutputStream {
+
+    // without optional fields, as GZIPOutputStream writes it
+    private static final int HEADER_SIZE = 10;
+    private static final int TRAILER_SIZE = 8;
+    // The same header as the runtime's GZIPOutputStream, whose OS byte varies by version
+    private static final byte[] HEADER = getRuntimeHeader();
+    private final CRC32 crc = new CRC32();
+    private boolean headerWritten;
+
+    /**
+     * The gzip header is written along with the first data, rather than here, so nothing reaches
+     * the underlying stream before the caller has committed to compressing.
+     *
+     * @param deflater a deflater created with "nowrap" set
+     */
+    PooledGZIPOutputStream(OutputStream out, Deflater deflater, int bufferSize,
+        CodecPool codecPool, int deflaterKey) {
+        super(out, deflater, bufferSize, codecPool, deflaterKey);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkReleased();
+        writeHeader();
+        super.write(b, off, len);
+        crc.update(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        checkReleased();
+        writeHeader();
+        super.flush();
+    }
+
+    @Override
+    void syncFlush() throws IOException {
+        checkReleased();
+        writeHeader();
+        super.syncFlush();
+    }
+
+    @Override
+    public void finish() throws IOException {
+        checkReleased();
+        if (!def.finished()) {
+            writeHeader();
+            super.finish();
+            byte[] trailer = new byte[TRAILER_SIZE];
+            writeInt((int) crc.getValue(), trailer, 0);
+            writeInt(def.getTotalIn(), trailer, 4);
+            out.write(trailer);
+        }
+    }
+
+    /**
+     * @return the CRC32 of the data, as in the gzip trailer
+     */
+    @Override
+    long getChecksum() {
+        return crc.getValue();
+    }
+
+    private void writeHeader() throws IOException {
+        if (!headerWritten) {
+            out.write(HEADER);
+            headerWritten = true;
+        }
+    }
+
+    private static byte[] getRuntimeHeader() {
+        ByteArrayOutputStream headerOut = new ByteArrayOutputStream();
+        try {
+            // writes the header on construction; closing ends its Deflater
+            new GZIPOutputStream(headerOut).close();
+        } catch (IOException ioe) {
+            throw new IllegalStateException(ioe);
+        }
+        return Arrays.copyOf(headerOut.toByteArray(), HEADER_SIZE);
+    }
+
+    private static void writeInt(int i, byte[] buf, int offset) {
+        buf[offset] = (byte) i;
+        buf[offset + 1] = (byte) (i >> 8);
+        buf[offset + 2] = (byte) (i >> 16);
+        buf[offset + 3] = (byte) (i >> 24);
+    }
+
+    @Override
+    public String toString() {
+        return "PooledGZIPOutputStream[" + out + ']';
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2006 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ziplet.filter.compression;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * An {@link InflaterInputStream} whose {@link Inflater} is borrowed from a {@link CodecPool}. The
+ * inflater is returned to the pool when the stream is closed or {@link #release() released}. If the
+ * pool was exhausted, a private inflater is used instead and ended at that point. Time spent in the
+ * inflater is measured, for stats.
+ *
+ * @since 2.4.2
+ */
+class PooledInflaterInputStream extends InflaterInputStream {
+
+    private final CodecPool codecPool;
+    private final boolean nowrap;
+    private final boolean pooled;
+    private boolean released;
+    private long inflateNanos;
+
+    PooledInflaterInputStream(InputStream in, Inflater inflater, CodecPool codecPool,
+        boolean nowrap) {
+        super(in, inflater == null ? new Inflater(nowrap) : inflater);
+        this.codecPool = codecPool;
+        this.nowrap = nowrap;
+        pooled = inflater != null;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (released) {
+            throw new IOException("Stream closed");
+        }
+        long start = System.nanoTime();
+        try {
+            return super.read(b, off, len);
+        } finally {
+            inflateNanos += System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    protected void fill() throws IOException {
+        // time spent waiting for compressed input doesn't count
+        long start = System.nanoTime();
+        try {
+            super.fill();
+        } finally {
+            inflateNanos -= System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!released) {
+            try {
+                super.close();
+            } finally {
+                release();
+            }
+        }
+    }
+
+    /**
+     * @return total time spent in the inflater, in nanoseconds
+     */
+    long getInflateNanos() {
+        return inflateNanos;
+    }
+
+    /**
+     * Returns the {@link Inflater} to the pool without closing the underlying stream. Has no
+     * effect if the stream was already closed or released.
+     */
+    void release() {
+        if (!released) {
+            released = true;
+            if (pooled) {
+                codecPool.releaseInflater(inf, nowrap);
+            } else {
+                inf.end();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PooledInflaterInputStream[" + in + ']';
+    }
+}
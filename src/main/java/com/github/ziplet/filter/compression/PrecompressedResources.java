@@ -0,0 +1,240 @@
+/*
+ * Copyright 2004 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ziplet.filter.compression;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * <p>Finds precompressed variants of static resources, as produced by build tools: for
+ * "app.js", the files "app.js.br", "app.js.zst" and "app.js.gz" beside it, in Brotli, Zstandard
+ * and gzip encodings. A variant is only used while it is at least as new as the resource. These
+ * encodings are served even though the filter can't produce the first two itself.</p>
+ *
+ * <p>Resources are found through {@link ServletContext#getRealPath(String)}, or else {@link
+ * ServletContext#getResource(String)} if it is a file, so this works only for applications
+ * deployed as a directory. Which variants exist is cached for each path, and checked again after a
+ * few seconds.</p>
+ *
+ * @since 2.4.2
+ */
+final class PrecompressedResources {
+
+    private static final String[] ENCODINGS = {"br", "zstd", "gzip"};
+    private static final String[] EXTENSIONS = {".br", ".zst", ".gz"};
+    private static final long RECHECK_MILLIS = 5000L;
+    private static final int MAX_CACHED_PATHS = 10000;
+    private static final Variant[] NO_VARIANTS = new Variant[ENCODINGS.length];
+    private final ServletContext servletContext;
+    private final ConcurrentMap<String, Lookup> lookups = new ConcurrentHashMap<String, Lookup>();
+
+    PrecompressedResources(ServletContext servletContext) {
+        this.servletContext = servletContext;
+    }
+
+    /**
+     * @param path path of the resource within the application
+     * @return the variant of the resource in the encoding most preferred by the header, or
+     * {@code null} if there is none acceptable
+     */
+    Variant find(String path, String acceptEncodingHeader) {
+        Variant[] variants = getVariants(path);
+        Variant best = null;
+        int bestQ = 0;
+        for (int i = 0; i < variants.length; i++) {
+            if (variants[i] != null) {
+                int q = CompressingStreamFactory.getQValue(acceptEncodingHeader, ENCODINGS[i]);
+                if (q > bestQ) {
+                    best = variants[i];
+                    bestQ = q;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Writes the variant, or a "304 Not Modified" response if the request's validators match it.
+     * The body is sent with {@link FileChannel#transferTo(long, long,
+     * java.nio.channels.WritableByteChannel)}.
+     */
+    static void serve(Variant variant, HttpServletRequest request, HttpServletResponse response)
+        throws IOException {
+        response.setHeader(CompressingHttpServletResponse.CONTENT_ENCODING_HEADER,
+            variant.contentEncoding);
+        response.setHeader("ETag", variant.eTag);
+        response.setDateHeader("Last-Modified", variant.lastModified);
+        if (isNotModified(variant, request)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        if (variant.contentType != null) {
+            response.setContentType(variant.contentType);
+        }
+        if (variant.length <= Integer.MAX_VALUE) {
+            response.setContentLength((int) variant.length);
+        } else {
+            response.setHeader("Content-Length", String.valueOf(variant.length));
+        }
+        if ("HEAD".equals(request.getMethod())) {
+            return;
+        }
+        FileInputStream in = new FileInputStream(variant.file);
+        try {
+            DiskResponseCache.transfer(in.getChannel(), 0L, variant.length,
+                response.getOutputStream());
+        } finally {
+            in.close();
+        }
+    }
+
+    private static boolean isNotModified(Variant variant, HttpServletRequest request) {
+        String ifNoneMatch = request.getHeader(ETags.IF_NONE_MATCH_HEADER);
+        if (ifNoneMatch != null) {
+            return ETags.matches(ifNoneMatch, variant.eTag);
+        }
+        try {
+            long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+            return ifModifiedSince >= 0L && variant.lastModified / 1000L <= ifModifiedSince / 1000L;
+        } catch (IllegalArgumentException iae) {
+            // unparseable date
+            return false;
+        }
+    }
+
+    private Variant[] getVariants(String path) {
+        long now = System.currentTimeMillis();
+        Lookup lookup = lookups.get(path);
+        if (lookup == null || now - lookup.checkedMillis >= RECHECK_MILLIS) {
+            lookup = new Lookup(now, lookUpVariants(path));
+            if (lookups.size() >= MAX_CACHED_PATHS) {
+                // many paths, perhaps of resources that don't exist
+                lookups.clear();
+            }
+            lookups.put(path, lookup);
+        }
+        return lookup.variants;
+    }
+
+    private Variant[] lookUpVariants(String path) {
+        String upperCasePath = path.toUpperCase(Locale.ENGLISH);
+        if (upperCasePath.startsWith("/WEB-INF") || upperCasePath.startsWith("/META-INF")) {
+            return NO_VARIANTS;
+        }
+        File file = getFile(path);
+        if (file == null || !file.isFile()) {
+            return NO_VARIANTS;
+        }
+        long lastModified = file.lastModified();
+        Variant[] variants = NO_VARIANTS;
+        for (int i = 0; i < ENCODINGS.length; i++) {
+            File sibling = new File(file.getPath() + EXTENSIONS[i]);
+            // 0 if it doesn't exist
+            long siblingLastModified = sibling.lastModified();
+            if (siblingLastModified >= lastModified && sibling.isFile()) {
+                if (variants == NO_VARIANTS) {
+                    variants = new Variant[ENCODINGS.length];
+                }
+                variants[i] = new Variant(sibling,
+                    ENCODINGS[i],
+                    sibling.length(),
+                    lastModified,
+                    servletContext.getMimeType(path),
+                    '"' + Long.toHexString(file.length()) + '-' + Long.toHexString(lastModified)
+                        + '-' + ENCODINGS[i] + '"');
+            }
+        }
+        return variants;
+    }
+
+    private File getFile(String path) {
+        String realPath = servletContext.getRealPath(path);
+        if (realPath != null) {
+            return new File(realPath);
+        }
+        try {
+            URL url = servletContext.getResource(path);
+            if (url != null && "file".equals(url.getProtocol())) {
+                return new File(url.toURI());
+            }
+        } catch (MalformedURLException mue) {
+            // not a resource
+        } catch (URISyntaxException use) {
+            // not a file
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "PrecompressedResources[cached paths: " + lookups.size() + ']';
+    }
+
+    /**
+     * A precompressed file, and what is served with it.
+     */
+    static final class Variant {
+
+        private final File file;
+        private final String contentEncoding;
+        private final long length;
+        // of the resource
+        private final long lastModified;
+        private final String contentType;
+        private final String eTag;
+
+        private Variant(File file,
+            String contentEncoding,
+            long length,
+            long lastModified,
+            String contentType,
+            String eTag) {
+            this.file = file;
+            this.contentEncoding = contentEncoding;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.contentType = contentType;
+            this.eTag = eTag;
+        }
+
+        @Override
+        public String toString() {
+            return "Variant[file: " + file + ", encoding: " + contentEncoding + ']';
+        }
+    }
+
+    private static final class Lookup {
+
+        private final long checkedMillis;
+        private final Variant[] variants;
+
+        private Lookup(long checkedMillis, Variant[] variants) {
+            this.checkedMillis = checkedMillis;
+            this.variants = variants;
+        }
+    }
+}
@@ -0,0 +1,704 @@
+/*
+ * Copyright 2004 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ziplet.filter.compression;
+
+import com.github.ziplet.filter.compression.statistics.CompressingFilterDetailedStats;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Caches compressed responses, so that requests for popular resources can be answered without
+ * running the rest of the filter chain or compressing anything. Only what a shared cache could
+ * store is cached: complete "200 OK" responses to "GET" requests without credentials, cookies
+ * or conditions other than "If-None-Match", which set no cookies, aren't "private", "no-store" or
+ * "no-cache", and vary only on "Accept-Encoding". A request whose "If-None-Match" matches the
+ * cached response's ETag is answered with "304 Not Modified". Responses are fresh for their
+ * "s-maxage" or "max-age", or else for a default time, which may be zero so that only responses
+ * declaring a lifetime are cached. Entries are keyed on the scheme, host and port, the request URI
+ * and query string, and the negotiated content encoding. The application's ETag and Last-Modified
+ * can't be part of the key, since they are only known once the chain has run, which a hit avoids;
+ * they are stored with the response, to answer revalidation, and it is the freshness lifetime
+ * that bounds how long a changed resource may be served from the cache.</p>
+ *
+ * <p>Bodies are stored off the Java heap, in 1MB direct buffers allocated as needed up to a fixed
+ * budget, and divided into 4KB blocks. When the budget is used up, responses are evicted following
+ * W-TinyLFU: new responses enter a small LRU "window", and those leaving it are only admitted to
+ * the main, segmented LRU area if their keys have been requested more often than the responses
+ * they would displace, as estimated by a {@link FrequencySketch}. So a scan of many rarely
+ * requested URLs can't flush the frequently requested ones.</p>
+ *
+ * <p>Bookkeeping is guarded by a lock, held briefly; bodies are copied to and from the buffers
+ * outside it. An entry evicted while being served keeps its blocks until it has been served.</p>
+ *
+ * <p>Requests for a response that isn't cached may also be coalesced: while one request produces
+ * it, others for the same key wait, by {@link #beginFlight(String, long)}, and are then answered
+ * from the cache.</p>
+ *
+ * @since 2.4.2
+ */
+final class ResponseCache {
+
+    static final int BLOCK_SIZE = 4096;
+    private static final Logger LOGGER = LoggerFactory.getLogger(ResponseCache.class);
+    private static final int BLOCKS_PER_SLAB = 256;
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+    private static final String AGE_HEADER = "Age";
+    private static final String CACHE_CONTROL_HEADER = "Cache-Control";
+    private static final String CONTENT_LENGTH_HEADER = "Content-Length";
+    private static final String VARY_HEADER = "Vary";
+    // a response to a request with any of these may be personal, or not the whole entity
+    private static final String[] BYPASS_REQUEST_HEADERS = {
+        "Authorization", "Cookie", "If-Match", "If-Modified-Since", "If-Unmodified-Since",
+        "If-Range", "Range"
+    };
+    // what a "304 Not Modified" response repeats of the cached response
+    private static final String[] NOT_MODIFIED_HEADERS = {
+        "Cache-Control", "Content-Location", "ETag", "Expires", "Vary"
+    };
+    private static final Pattern MAX_AGE = Pattern.compile(
+        "(?:^|,)\\s*(s-maxage|max-age)\\s*=\\s*\"?(\\d+)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern UNCACHEABLE = Pattern.compile(
+        "(?:^|,)\\s*(?:private|no-store|no-cache)\\b", Pattern.CASE_INSENSITIVE);
+    private static final Pattern COMMA = Pattern.compile(",");
+    private final int capacity;
+    private final int windowMaximum;
+    private final int protectedMaximum;
+    private final int maxEntryBlocks;
+    private final long defaultTtlMillis;
+    private final FrequencySketch sketch;
+    private final DiskResponseCache diskTier;
+    // keys of responses being produced by a request which others wait for
+    private final ConcurrentMap<String, CountDownLatch> flights =
+        new ConcurrentHashMap<String, CountDownLatch>();
+    // All below guarded by "this"
+    private final ByteBuffer[] slabs;
+    private final int[] freeBlocks;
+    private int numFreeBlocks;
+    private int nextUnusedBlock;
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private final EntryList[] queues = {new EntryList(), new EntryList(), new EntryList()};
+    private final int[] queueWeights = new int[3];
+    private int weight;
+
+    /**
+     * @param maxBytes off-heap memory to use for response bodies, at least {@link #BLOCK_SIZE}
+     * @param defaultTtlMillis how long responses that don't declare a lifetime are fresh, or 0 to
+     * not cache them
+     * @param diskTier where responses are also stored, and looked up when not in memory; may be
+     * {@code null}
+     */
+    ResponseCache(long maxBytes, long defaultTtlMillis, DiskResponseCache diskTier) {
+        long blocks = maxBytes / BLOCK_SIZE;
+        assert blocks > 0 && blocks <= Integer.MAX_VALUE && defaultTtlMillis >= 0L;
+        capacity = (int) blocks;
+        windowMaximum = Math.max(1, capacity / 100);
+        protectedMaximum = (capacity - windowMaximum) * 4 / 5;
+        maxEntryBlocks = Math.max(1, capacity / 8);
+        this.defaultTtlMillis = defaultTtlMillis;
+        this.diskTier = diskTier;
+        sketch = new FrequencySketch(capacity);
+        slabs = new ByteBuffer[(capacity + BLOCKS_PER_SLAB - 1) / BLOCKS_PER_SLAB];
+        freeBlocks = new int[capacity];
+    }
+
+    /**
+     * @return the key under which the response to the request, compressed with the encoding, may
+     * be cached, or {@code null} if it shouldn't be looked up or cached
+     */
+    static String getKey(HttpServletRequest request, String contentEncoding) {
+        if (!"GET".equals(request.getMethod())) {
+            return null;
+        }
+        for (String header : BYPASS_REQUEST_HEADERS) {
+            if (request.getHeader(header) != null) {
+                return null;
+            }
+        }
+        String cacheControl = request.getHeader(CACHE_CONTROL_HEADER);
+        if (cacheControl != null && UNCACHEABLE.matcher(cacheControl).find()) {
+            return null;
+        }
+        String uri = request.getRequestURI();
+        if (uri == null) {
+            return null;
+        }
+        String scheme = request.getScheme();
+        String serverName = request.getServerName();
+        String query = request.getQueryString();
+        StringBuilder key = new StringBuilder(contentEncoding.length() + 16
+            + (scheme == null ? 0 : scheme.length())
+            + (serverName == null ? 0 : serverName.length()) + uri.length()
+            + (query == null ? 0 : query.length() + 1));
+        // virtual hosts, and http and https, may serve different content at the same URI
+        key.append(contentEncoding).append(' ').append(scheme).append("://").append(serverName)
+            .append(':').append(request.getServerPort()).append(uri);
+        if (query != null) {
+            key.append('?').append(query);
+        }
+        return key.toString();
+    }
+
+    /**
+     * @return a response which records what is written to the given one, for {@link
+     * #put(CapturingHttpServletResponse, CompressingFilterDetailedStats)}
+     */
+    CapturingHttpServletResponse capture(HttpServletResponse response, String key,
+        BufferPool bufferPool) {
+        return new CapturingHttpServletResponse(response, key, this, bufferPool,
+            maxEntryBlocks * BLOCK_SIZE);
+    }
+
+    /**
+     * Writes the cached response for the key, if there is a fresh one.
+     *
+     * @param ifNoneMatch the request's "If-None-Match" header, or {@code null}
+     * @return true if the response was written
+     */
+    boolean serve(String key, String ifNoneMatch, HttpServletResponse response,
+        BufferPool bufferPool, CompressingFilterDetailedStats stats) throws IOException {
+        long now = System.currentTimeMillis();
+        Entry entry = acquire(key, now);
+        if (entry == null) {
+            if (diskTier != null && diskTier.serve(key, ifNoneMatch, response, now)) {
+                stats.notifyResponseCacheHit();
+                return true;
+            }
+            stats.notifyResponseCacheMiss();
+            return false;
+        }
+        stats.notifyResponseCacheHit();
+        try {
+            if (writeHeaders(response, ifNoneMatch, entry.contentType, entry.locale,
+                entry.headers, now - entry.storedMillis, entry.length)) {
+                writeBody(entry, response.getOutputStream(), bufferPool);
+            }
+        } finally {
+            release(entry);
+        }
+        return true;
+    }
+
+    /**
+     * Caches the complete response, if it can be cached.
+     */
+    void put(CapturingHttpServletResponse capture, CompressingFilterDetailedStats stats) {
+        long lifetimeMillis = getFreshnessLifetime(capture);
+        int length = capture.getBodyLength();
+        int blocks = (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        if (lifetimeMillis <= 0L || length == 0 || blocks > maxEntryBlocks) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (diskTier != null) {
+            diskTier.put(capture, now, now + lifetimeMillis);
+        }
+        Entry entry = new Entry(capture.getCacheKey(),
+            capture.getContentType(),
+            capture.getRecordedLocale(),
+            capture.getHeaders(),
+            length,
+            blocks,
+            now,
+            now + lifetimeMillis);
+        if (!admit(entry, stats)) {
+            return;
+        }
+        try {
+            writeBlocks(entry, capture.getBodyChunks());
+        } finally {
+            publish(entry);
+        }
+    }
+
+    /**
+     * @return bytes of off-heap memory holding cached responses
+     */
+    synchronized long getSize() {
+        return (long) weight * BLOCK_SIZE;
+    }
+
+    synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    /**
+     * Called on a miss to coalesce concurrent requests for the same response. If no other request
+     * is producing the response for the key, the caller is to produce it, and must then call
+     * {@link #endFlight(String)}. Otherwise this waits until the other request has finished, and
+     * the response may have been cached, or the timeout elapses.
+     *
+     * @return true if the caller is to produce the response; false if it waited for another
+     */
+    boolean beginFlight(String key, long timeoutMillis) {
+        CountDownLatch flight = new CountDownLatch(1);
+        CountDownLatch existing = flights.putIfAbsent(key, flight);
+        if (existing == null) {
+            return true;
+        }
+        try {
+            if (!existing.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                LOGGER.debug("Timed out waiting for a concurrent request for the same response");
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    /**
+     * Releases requests waiting for the response for the key, after it has been cached, or was
+     * found not to be cacheable.
+     */
+    void endFlight(String key) {
+        CountDownLatch flight = flights.remove(key);
+        if (flight != null) {
+            flight.countDown();
+        }
+    }
+
+    /**
+     * Empties the cache in memory. Responses remain on disk, if there is a disk tier.
+     */
+    synchronized void clear() {
+        for (EntryList queue : queues) {
+            while (queue.head != null) {
+                remove(queue.head);
+            }
+        }
+    }
+
+    /**
+     * Empties the cache in memory, and closes the disk tier, if any, so that it can be reopened.
+     */
+    void close() throws IOException {
+        clear();
+        if (diskTier != null) {
+            diskTier.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ResponseCache[capacity: " + (long) capacity * BLOCK_SIZE + " bytes, disk tier: "
+            + diskTier + ']';
+    }
+
+    /**
+     * Sets the headers of a cached response, or of a "304 Not Modified" response if the
+     * request's "If-None-Match" header matches its ETag.
+     *
+     * @param ifNoneMatch the request's "If-None-Match" header, or {@code null}
+     * @param ageMillis time since the response was cached
+     * @param length length of the body
+     * @return true if the body is to be written
+     */
+    static boolean writeHeaders(HttpServletResponse response,
+        String ifNoneMatch,
+        String contentType,
+        Locale locale,
+        List<CapturingHttpServletResponse.Header> headers,
+        long ageMillis,
+        int length) {
+        String age = String.valueOf(Math.max(0L, ageMillis) / 1000L);
+        if (ifNoneMatch != null && matchesETag(ifNoneMatch, headers)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            for (CapturingHttpServletResponse.Header header : headers) {
+                for (String name : NOT_MODIFIED_HEADERS) {
+                    if (name.equalsIgnoreCase(header.name)) {
+                        header.addTo(response);
+                    }
+                }
+            }
+            response.setHeader(AGE_HEADER, age);
+            return false;
+        }
+        if (locale != null) {
+            response.setLocale(locale);
+        }
+        if (contentType != null) {
+            response.setContentType(contentType);
+        }
+        for (CapturingHttpServletResponse.Header header : headers) {
+            // set below, in case it was recorded too
+            if (!CONTENT_LENGTH_HEADER.equalsIgnoreCase(header.name)) {
+                header.addTo(response);
+            }
+        }
+        response.setHeader(AGE_HEADER, age);
+        response.setContentLength(length);
+        return true;
+    }
+
+    private static boolean matchesETag(String ifNoneMatch,
+        List<CapturingHttpServletResponse.Header> headers) {
+        for (CapturingHttpServletResponse.Header header : headers) {
+            if ("ETag".equalsIgnoreCase(header.name) && header.value != null) {
+                return ETags.matches(ifNoneMatch, header.value);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return how long the captured response is fresh, in milliseconds, or 0 if it may not be
+     * cached
+     */
+    long getFreshnessLifetime(CapturingHttpServletResponse capture) {
+        if (!capture.isCacheable() || capture.getStatus() != HttpServletResponse.SC_OK) {
+            return 0L;
+        }
+        String vary = capture.getHeaderValues(VARY_HEADER);
+        if (vary != null) {
+            for (String field : COMMA.split(vary)) {
+                String trimmed = field.trim();
+                if (trimmed.length() > 0 && !CompressingHttpServletResponse.ACCEPT_ENCODING_HEADER
+                    .equalsIgnoreCase(trimmed)) {
+                    return 0L;
+                }
+            }
+        }
+        String cacheControl = capture.getHeaderValues(CACHE_CONTROL_HEADER);
+        if (cacheControl == null) {
+            return defaultTtlMillis;
+        }
+        if (UNCACHEABLE.matcher(cacheControl).find()) {
+            return 0L;
+        }
+        long maxAge = -1L;
+        Matcher matcher = MAX_AGE.matcher(cacheControl);
+        while (matcher.find()) {
+            long seconds;
+            try {
+                seconds = Long.parseLong(matcher.group(2));
+            } catch (NumberFormatException nfe) {
+                return 0L;
+            }
+            if ("s-maxage".equalsIgnoreCase(matcher.group(1))) {
+                // a shared cache's lifetime overrides max-age
+                return seconds * 1000L;
+            }
+            maxAge = seconds;
+        }
+        return maxAge < 0L ? defaultTtlMillis : maxAge * 1000L;
+    }
+
+    private synchronized Entry acquire(String key, long now) {
+        sketch.increment(key);
+        Entry entry = entries.get(key);
+        if (entry == null || !entry.published) {
+            return null;
+        }
+        if (now >= entry.expiresMillis) {
+            remove(entry);
+            return null;
+        }
+        onHit(entry);
+        entry.references++;
+        return entry;
+    }
+
+    private synchronized void release(Entry entry) {
+        entry.references--;
+        if (entry.removed && entry.references == 0) {
+            freeBlocks(entry);
+        }
+    }
+
+    private synchronized void publish(Entry entry) {
+        entry.published = true;
+        release(entry);
+    }
+
+    private void onHit(Entry entry) {
+        switch (entry.queue) {
+            case WINDOW:
+            case PROTECTED:
+                queues[entry.queue].moveToTail(entry);
+                break;
+            case PROBATION:
+                // a second request since admission: promote it, demoting the least recently used
+                // protected entries to make room
+                moveTo(entry, PROTECTED);
+                while (queueWeights[PROTECTED] > protectedMaximum) {
+                    moveTo(queues[PROTECTED].head, PROBATION);
+                }
+                break;
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    /**
+     * Adds the entry to the window, evicting others as needed, and allocates its blocks.
+     *
+     * @return false if the entry was not admitted, or there was no space for it
+     */
+    private synchronized boolean admit(Entry entry, CompressingFilterDetailedStats stats) {
+        Entry old = entries.get(entry.key);
+        if (old != null) {
+            remove(old);
+        }
+        entries.put(entry.key, entry);
+        entry.queue = WINDOW;
+        queues[WINDOW].addLast(entry);
+        queueWeights[WINDOW] += entry.weight;
+        weight += entry.weight;
+        while (queueWeights[WINDOW] > windowMaximum) {
+            // the least recently used window entries become candidates for the main area
+            moveTo(queues[WINDOW].head, PROBATION);
+        }
+        while (weight > capacity) {
+            evictOne();
+            stats.notifyResponseCacheEviction();
+        }
+        if (entry.removed) {
+            return false;
+        }
+        for (int i = 0; i < entry.blocks.length; i++) {
+            int block = allocateBlock();
+            if (block < 0) {
+                // blocks of evicted entries are still being served
+                remove(entry);
+                return false;
+            }
+            entry.blocks[i] = block;
+            entry.allocatedBlocks++;
+        }
+        // held until published, so that the blocks aren't freed while being written
+        entry.references++;
+        return true;
+    }
+
+    private void evictOne() {
+        EntryList probation = queues[PROBATION];
+        Entry victim = probation.head;
+        if (victim == null) {
+            EntryList queue = queues[PROTECTED].head == null ? queues[WINDOW] : queues[PROTECTED];
+            remove(queue.head);
+            return;
+        }
+        // The newest probation entry is the latest candidate from the window; it displaces the
+        // least recently used one only if it has been requested more often
+        Entry candidate = probation.tail;
+        if (candidate != victim && sketch.frequency(candidate.key) > sketch.frequency(victim.key)) {
+            remove(victim);
+        } else {
+            remove(candidate);
+        }
+    }
+
+    private void moveTo(Entry entry, int queue) {
+        queues[entry.queue].remove(entry);
+        queueWeights[entry.queue] -= entry.weight;
+        entry.queue = queue;
+        queues[queue].addLast(entry);
+        queueWeights[queue] += entry.weight;
+    }
+
+    private void remove(Entry entry) {
+        assert !entry.removed;
+        queues[entry.queue].remove(entry);
+        queueWeights[entry.queue] -= entry.weight;
+        weight -= entry.weight;
+        if (entries.get(entry.key) == entry) {
+            entries.remove(entry.key);
+        }
+        entry.removed = true;
+        if (entry.references == 0) {
+            freeBlocks(entry);
+        }
+    }
+
+    private int allocateBlock() {
+        if (numFreeBlocks > 0) {
+            return freeBlocks[--numFreeBlocks];
+        }
+        if (nextUnusedBlock == capacity) {
+            return -1;
+        }
+        int block = nextUnusedBlock++;
+        int slab = block / BLOCKS_PER_SLAB;
+        if (slabs[slab] == null) {
+            int slabBlocks = Math.min(BLOCKS_PER_SLAB, capacity - slab * BLOCKS_PER_SLAB);
+            slabs[slab] = ByteBuffer.allocateDirect(slabBlocks * BLOCK_SIZE);
+        }
+        return block;
+    }
+
+    private void freeBlocks(Entry entry) {
+        for (int i = 0; i < entry.allocatedBlocks; i++) {
+            freeBlocks[numFreeBlocks++] = entry.blocks[i];
+        }
+        entry.allocatedBlocks = 0;
+    }
+
+    /**
+     * @return a view of the block; views are independent, so that threads can copy concurrently
+     */
+    private ByteBuffer viewOf(int block) {
+        ByteBuffer slab;
+        synchronized (this) {
+            slab = slabs[block / BLOCKS_PER_SLAB];
+        }
+        ByteBuffer view = slab.duplicate();
+        int offset = (block % BLOCKS_PER_SLAB) * BLOCK_SIZE;
+        // casts, so as to link to the methods Java 7 has, not later covariant overrides
+        ((Buffer) view).limit(offset + BLOCK_SIZE);
+        ((Buffer) view).position(offset);
+        return view;
+    }
+
+    private void writeBlocks(Entry entry, List<byte[]> chunks) {
+        int block = 0;
+        ByteBuffer view = null;
+        int remaining = entry.length;
+        for (byte[] chunk : chunks) {
+            int chunkOffset = 0;
+            int chunkLength = Math.min(chunk.length, remaining);
+            remaining -= chunkLength;
+            while (chunkOffset < chunkLength) {
+                if (view == null || !view.hasRemaining()) {
+                    view = viewOf(entry.blocks[block++]);
+                }
+                int n = Math.min(chunkLength - chunkOffset, view.remaining());
+                view.put(chunk, chunkOffset, n);
+                chunkOffset += n;
+            }
+        }
+    }
+
+    private void writeBody(Entry entry, OutputStream out, BufferPool bufferPool)
+        throws IOException {
+        byte[] buffer = bufferPool.borrow();
+        try {
+            int remaining = entry.length;
+            for (int block : entry.blocks) {
+                ByteBuffer view = viewOf(block);
+                int blockRemaining = Math.min(BLOCK_SIZE, remaining);
+                remaining -= blockRemaining;
+                while (blockRemaining > 0) {
+                    int n = Math.min(blockRemaining, buffer.length);
+                    view.get(buffer, 0, n);
+                    out.write(buffer, 0, n);
+                    blockRemaining -= n;
+                }
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    private static final class Entry {
+
+        private final String key;
+        private final String contentType;
+        private final Locale locale;
+        private final List<CapturingHttpServletResponse.Header> headers;
+        private final int length;
+        private final int[] blocks;
+        private final int weight;
+        private final long storedMillis;
+        private final long expiresMillis;
+        // All below guarded by the cache
+        private int allocatedBlocks;
+        private int queue;
+        private Entry previous;
+        private Entry next;
+        private int references;
+        private boolean published;
+        private boolean removed;
+
+        private Entry(String key,
+            String contentType,
+            Locale locale,
+            List<CapturingHttpServletResponse.Header> headers,
+            int length,
+            int blocks,
+            long storedMillis,
+            long expiresMillis) {
+            this.key = key;
+            this.contentType = contentType;
+            this.locale = locale;
+            this.headers = new ArrayList<CapturingHttpServletResponse.Header>(headers);
+            this.length = length;
+            this.blocks = new int[blocks];
+            weight = blocks;
+            this.storedMillis = storedMillis;
+            this.expiresMillis = expiresMillis;
+        }
+    }
+
+    /**
+     * A doubly linked list of entries, in order of last use.
+     */
+    private static final class EntryList {
+
+        private Entry head;
+        private Entry tail;
+
+        private void addLast(Entry entry) {
+            entry.previous = tail;
+            entry.next = null;
+            if (tail == null) {
+                head = entry;
+            } else {
+                tail.next = entry;
+            }
+            tail = entry;
+        }
+
+        private void remove(Entry entry) {
+            if (entry.previous == null) {
+                head = entry.next;
+            } else {
+                entry.previous.next = entry.next;
+            }
+            if (entry.next == null) {
+                tail = entry.previous;
+            } else {
+                entry.next.previous = entry.previous;
+            }
+            entry.previous = null;
+            entry.next = null;
+        }
+
+        private void moveToTail(Entry entry) {
+            if (entry != tail) {
+                remove(entry);
+                addLast(entry);
+            }
+        }
+    }
+}
@@ -25,6 +25,9 @@ import java.io.InputStream;
  * {@link InputStream}, which receives notification of reads. This information might be used to
  * tally the number of bytes read from a stream.
  *
+ * <p>Bytes read are tallied locally and reported to the {@link CompressingFilterStats} at the end
+ * of the stream, or when it is closed, rather than on every read.</p>
+ *
  * @author Sean Owen
  * @since 1.6
  */
@@ -33,6 +36,7 @@ public class StatsInputStream extends InputStream {
     protected final InputStream inputStream;
     protected final CompressingFilterStats stats;
     protected final StatsField field;
+    private long unreportedBytes;
 
     public StatsInputStream(InputStream inputStream, CompressingFilterStats stats,
         StatsField field) {
@@ -45,41 +49,21 @@ public class StatsInputStream extends InputStream {
     @Override
     public int read() throws IOException {
         int result = inputStream.read();
-        notifyRequestBytesRead(1);
+        countBytesRead(result < 0 ? -1 : 1);
         return result;
     }
 
-    private void notifyRequestBytesRead(long result) {
-        notifyBytesRead(result);
-    }
-
-    private void notifyBytesRead(long result) {
-        if (result >= 0) {
-            switch (this.field) {
-                case REQUEST_INPUT_BYTES:
-                    stats.notifyRequestBytesRead(result);
-                    break;
-                case REQUEST_COMPRESSED_BYTES:
-                    stats.notifyCompressedRequestBytesRead(result);
-                    break;
-                default:
-                    throw new IllegalStateException();
-            }
-            // here, result is the byte read, or -1 if EOF
-        }
-    }
-
     @Override
     public int read(byte[] b) throws IOException {
         int result = inputStream.read(b);
-        this.notifyBytesRead(result);
+        countBytesRead(result);
         return result;
     }
 
     @Override
     public int read(byte[] b, int offset, int length) throws IOException {
         int result = inputStream.read(b, offset, length);
-        this.notifyBytesRead(result);
+        countBytesRead(result);
         return result;
     }
 
@@ -96,7 +80,11 @@ public class StatsInputStream extends InputStream {
 
     @Override
     public void close() throws IOException {
-        inputStream.close();
+        try {
+            inputStream.close();
+        } finally {
+            reportBytesRead();
+        }
     }
 
     @Override
@@ -119,4 +107,34 @@ public class StatsInputStream extends InputStream {
         return "StatsInputStream[" + inputStream + ']';
     }
 
+    private void countBytesRead(int result) {
+        if (result >= 0) {
+            unreportedBytes += result;
+        } else {
+            // end of stream
+            reportBytesRead();
+        }
+    }
+
+    /**
+     * Reports bytes read since the last report. Called when the stream won't be read to the end.
+     */
+    void reportBytesRead() {
+        if (unreportedBytes == 0L) {
+            return;
+        }
+        long read = unreportedBytes;
+        unreportedBytes = 0L;
+        switch (this.field) {
+            case REQUEST_INPUT_BYTES:
+                stats.notifyRequestBytesRead(read);
+                break;
+            case REQUEST_COMPRESSED_BYTES:
+                stats.notifyCompressedRequestBytesRead(read);
+                break;
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
 }
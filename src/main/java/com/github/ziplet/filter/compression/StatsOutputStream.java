@@ -25,6 +25,10 @@ import java.io.OutputStream;
  * of {@link OutputStream}, which receives notification of writes. This information might be used to
  * tally the number of bytes written to a stream.
  *
+ * <p>Bytes written are tallied locally and reported to the {@link CompressingFilterStats} when the
+ * stream is flushed or closed, rather than on every write, so that concurrent responses don't all
+ * update the shared stats for each write.</p>
+ *
  * @author Sean Owen
  */
 public class StatsOutputStream extends OutputStream {
@@ -32,6 +36,7 @@ public class StatsOutputStream extends OutputStream {
     private final OutputStream outputStream;
     protected final CompressingFilterStats stats;
     private final StatsField field;
+    private long unreportedBytes;
 
     StatsOutputStream(OutputStream outputStream, CompressingFilterStats stats, StatsField field) {
         assert outputStream != null && stats != null;
@@ -43,33 +48,34 @@ public class StatsOutputStream extends OutputStream {
     @Override
     public void write(int b) throws IOException {
         outputStream.write(b);
-        notifyBytesWritten(1);
+        unreportedBytes++;
     }
 
     @Override
     public void write(byte[] b) throws IOException {
         outputStream.write(b);
-        if (b != null && b.length > 0) {
-            notifyBytesWritten(b.length);
-        }
+        unreportedBytes += b.length;
     }
 
     @Override
     public void write(byte[] b, int off, int len) throws IOException {
         outputStream.write(b, off, len);
-        if (len > 0) {
-            notifyBytesWritten(len);
-        }
+        unreportedBytes += len;
     }
 
     @Override
     public void flush() throws IOException {
         outputStream.flush();
+        reportBytesWritten();
     }
 
     @Override
     public void close() throws IOException {
-        outputStream.close();
+        try {
+            outputStream.close();
+        } finally {
+            reportBytesWritten();
+        }
     }
 
     @Override
@@ -77,13 +83,18 @@ public class StatsOutputStream extends OutputStream {
         return "StatsOutputStream[" + outputStream + ']';
     }
 
-    private void notifyBytesWritten(long result) {
+    private void reportBytesWritten() {
+        if (unreportedBytes == 0L) {
+            return;
+        }
+        long written = unreportedBytes;
+        unreportedBytes = 0L;
         switch (this.field) {
             case RESPONSE_INPUT_BYTES:
-                stats.notifyResponseBytesWritten(result);
+                stats.notifyResponseBytesWritten(written);
                 break;
             case RESPONSE_COMPRESSED_BYTES:
-                stats.notifyCompressedResponseBytesWritten(result);
+                stats.notifyCompressedResponseBytesWritten(written);
                 break;
             default:
                 throw new IllegalStateException();
@@ -18,6 +18,8 @@ package com.github.ziplet.filter.compression;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -27,17 +29,40 @@ import org.slf4j.LoggerFactory;
 final class ThresholdOutputStream extends OutputStream {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ThresholdOutputStream.class);
+    // Reasons for not compressing a response, for Flight Recorder events
+    private static final String ABORT_NOT_SMALLER = "compressed response not smaller";
+    private static final String ABORT_INCOMPRESSIBLE = "incompressible";
+    private static final String ABORT_COMPRESSED_FORMAT = "compressed format";
     private final OutputStream out1;
     private final CompressingStreamFactory compressingStreamFactory;
     private final CompressingFilterContext context;
     private final int threshold;
     private final BufferCommitmentCallback bufferCommitmentCallback;
     private boolean buffering;
-    private OutputStream out2;
+    private CoalescingOutputStream out2;
     private CompressingOutputStream compressingOutputStream;
-    private ByteArrayOutputStream buffer;
+    private Buffer buffer;
     private boolean closed;
     private boolean forceOut1;
+    // Set only if auto-flushing or holding for a limited time, in which case a timer thread also
+    // uses this stream
+    private Lock timerLock;
+    private TimerWheel timerWheel;
+    private long autoFlushMillis;
+    private TimedTask pendingAutoFlush;
+    // Set only if data below the threshold is sent after a while
+    private long thresholdHoldMillis;
+    private boolean thresholdHoldCompress;
+    private TimedTask thresholdHold;
+    // Set only if holding back compressed data to send its length
+    private boolean fullBuffering;
+    private FullBufferOutputStream fullBuffer;
+    // Set only if comparing compressed and uncompressed length
+    private long bestOfSize;
+    // while compression isn't committed to, the data written so far
+    private Buffer uncompressed;
+    // Set only if compressing the start of the response fast
+    private long progressiveSize;
 
     ThresholdOutputStream(OutputStream out1,
         CompressingStreamFactory compressingStreamFactory,
@@ -55,94 +80,197 @@ final class ThresholdOutputStream extends OutputStream {
 
     @Override
     public void write(int b) throws IOException {
-        checkClosed();
-        if (forceOut1) {
-            out1.write(b);
-        } else if (continueBuffering(1)) {
-            assert buffering;
-            assert buffer != null;
-            buffer.write(b);
-        } else {
-            assert !buffering;
-            assert out2 != null;
-            out2.write(b);
+        lock();
+        try {
+            checkClosed();
+            if (!forceOut1 && continueBuffering(1)) {
+                assert buffering;
+                assert buffer != null;
+                buffer.write(b);
+            } else {
+                if (uncompressed != null && keepUncompressed(1)) {
+                    uncompressed.write(b);
+                }
+                getCommittedStream().write(b);
+            }
+            scheduleAutoFlush();
+            scheduleThresholdHold();
+        } finally {
+            unlock();
         }
     }
 
     @Override
     public void write(byte[] b) throws IOException {
-        checkClosed();
-        if (forceOut1) {
-            out1.write(b);
-        } else if (continueBuffering(b.length)) {
-            assert buffering;
-            assert buffer != null;
-            buffer.write(b);
-        } else {
-            assert !buffering;
-            assert out2 != null;
-            out2.write(b);
+        lock();
+        try {
+            checkClosed();
+            if (!forceOut1 && continueBuffering(b, 0, b.length)) {
+                assert buffering;
+                assert buffer != null;
+                buffer.write(b);
+            } else {
+                if (uncompressed != null && keepUncompressed(b.length)) {
+                    uncompressed.write(b, 0, b.length);
+                }
+                getCommittedStream().write(b);
+            }
+            scheduleAutoFlush();
+            scheduleThresholdHold();
+        } finally {
+            unlock();
         }
     }
 
     @Override
     public void write(byte[] b, int offset, int length) throws IOException {
-        checkClosed();
-        if (forceOut1) {
-            out1.write(b, offset, length);
-        } else if (continueBuffering(length)) {
-            assert buffering;
-            assert buffer != null;
-            buffer.write(b, offset, length);
-        } else {
-            assert !buffering;
-            assert out2 != null;
-            out2.write(b, offset, length);
+        lock();
+        try {
+            checkClosed();
+            if (!forceOut1 && continueBuffering(b, offset, length)) {
+                assert buffering;
+                assert buffer != null;
+                buffer.write(b, offset, length);
+            } else {
+                if (uncompressed != null && keepUncompressed(length)) {
+                    uncompressed.write(b, offset, length);
+                }
+                getCommittedStream().write(b, offset, length);
+            }
+            scheduleAutoFlush();
+            scheduleThresholdHold();
+        } finally {
+            unlock();
         }
     }
 
     @Override
     public void flush() throws IOException {
-        if (forceOut1) {
-            out1.flush();
-        } else if (!buffering) {
-            out2.flush();
-        } else {
-            LOGGER.debug("Switching to alternate stream due to flush()");
-            switchToOutputStream2();
+        lock();
+        try {
+            if (forceOut1) {
+                out1.flush();
+            } else if (!buffering) {
+                out2.flush();
+            } else {
+                LOGGER.debug("Switching to alternate stream due to flush()");
+                switchToOutputStream2();
+                if (!forceOut1) {
+                    out2.flush();
+                }
+            }
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Like {@link #flush()}, but when compressing, also forces out data held in the compressor so
+     * that the client can read everything written so far. This costs some compression, so it's only
+     * done for streaming responses.
+     */
+    void syncFlush() throws IOException {
+        lock();
+        try {
+            cancelAutoFlush();
+            if (buffering) {
+                LOGGER.debug("Switching to alternate stream due to flush()");
+                switchToOutputStream2();
+            }
+            if (forceOut1) {
+                out1.flush();
+            } else {
+                commitCompression();
+                if (fullBuffer != null) {
+                    fullBuffer.passThrough();
+                }
+                out2.drain();
+                compressingOutputStream.flush();
+            }
+        } finally {
+            unlock();
         }
     }
 
     @Override
     public void close() throws IOException {
+        lock();
+        try {
+            closed = true;
+            cancelAutoFlush();
+            cancelThresholdHold();
 
-        closed = true;
-
-        if (forceOut1) {
-            out1.flush();
-            out1.close();
-        } else if (buffering) {
-            forceOutputStream1();
-            out1.flush();
-            out1.close();
-        } else {
-            assert out2 != null;
-            assert compressingOutputStream != null;
-            out2.flush();
-            compressingOutputStream.finish();
-            out2.close();
+            if (forceOut1) {
+                out1.flush();
+                out1.close();
+            } else if (buffering) {
+                forceOutputStream1();
+                out1.flush();
+                out1.close();
+            } else {
+                assert out2 != null;
+                assert compressingOutputStream != null;
+                try {
+                    out2.flush();
+                    Object finishEvent = FlightRecorderEvents.beginFinish();
+                    compressingOutputStream.finish();
+                    FlightRecorderEvents.endFinish(finishEvent,
+                        compressingOutputStream.getCompressionNanos());
+                    long compressedLength = fullBuffer == null ? -1L : fullBuffer.getHeldLength();
+                    if (uncompressed != null && compressedLength >= (long) uncompressed.size()) {
+                        LOGGER.debug("Compressed response is no smaller; not compressing");
+                        FlightRecorderEvents.compressionAborted(ABORT_NOT_SMALLER);
+                        // reports to the stats what was compressed since the last flush, as
+                        // closing the compressing stream would
+                        out2.flush();
+                        forceOutputStream1();
+                        out1.flush();
+                        out1.close();
+                        return;
+                    }
+                    commitCompression();
+                    // before closing, which may commit the response
+                    bufferCommitmentCallback.compressingStreamFinished(
+                        compressingOutputStream.getEntityTag(), compressedLength);
+                    out2.close();
+                } finally {
+                    releaseCompression();
+                }
+            }
+        } finally {
+            unlock();
         }
+    }
 
+    /**
+     * Gives up on the stream without finishing it, returning any pooled resources. Used when the
+     * response can't be completed normally.
+     */
+    void release() {
+        lock();
+        try {
+            closed = true;
+            cancelAutoFlush();
+            cancelThresholdHold();
+            releaseCompression();
+        } finally {
+            unlock();
+        }
     }
 
     void reset() {
-        if (forceOut1 || !buffering) {
-            throw new IllegalStateException("Can't reset");
-        }
-        if (buffer != null) {
-            buffer.reset();
+        lock();
+        try {
+            if (forceOut1 || !buffering) {
+                throw new IllegalStateException("Can't reset");
+            }
+            if (buffer != null) {
+                buffer.reset();
+            }
+            // else do nothing -- can't reset anything from here
+        } finally {
+            unlock();
         }
-        // else do nothing -- can't reset anything from here
     }
 
     @Override
@@ -151,19 +279,27 @@ final class ThresholdOutputStream extends OutputStream {
     }
 
     private boolean continueBuffering(int numAdditionalBytes) throws IOException {
+        return continueBuffering(null, 0, numAdditionalBytes);
+    }
+
+    /**
+     * @param b data about to be written, or {@code null} if it isn't at hand
+     */
+    private boolean continueBuffering(byte[] b, int offset, int numAdditionalBytes)
+        throws IOException {
         boolean shouldContinue = false;
         if (buffering) {
             if (buffer == null) {
                 if (numAdditionalBytes >= threshold) {
                     // first write is so big that it would overrun the buffer; don't even create the buffer
-                    switchToOutputStream2();
+                    switchToOutputStreamIfCompressible(b, offset, numAdditionalBytes);
                 } else {
                     // allocate the buffer
-                    buffer = new ByteArrayOutputStream(threshold);
+                    buffer = new Buffer(threshold);
                     shouldContinue = true;
                 }
             } else if (buffer.size() + numAdditionalBytes >= threshold) {
-                switchToOutputStream2();
+                switchToOutputStreamIfCompressible(b, offset, numAdditionalBytes);
             } else {
                 shouldContinue = true;
             }
@@ -171,25 +307,203 @@ final class ThresholdOutputStream extends OutputStream {
         return shouldContinue;
     }
 
+    /**
+     * Switches to the compressing stream once the threshold is reached, unless the data starts like
+     * a format that is compressed already, or, if configured to estimate how well the data
+     * compresses, that is too little to be worth it.
+     */
+    private void switchToOutputStreamIfCompressible(byte[] b, int offset, int numAdditionalBytes)
+        throws IOException {
+        byte[] buffered = buffer == null ? null : buffer.getArray();
+        int bufferedLength = getBufferedBytes();
+        String format =
+            detectCompressedFormat(buffered, bufferedLength, b, offset, numAdditionalBytes);
+        if (format != null) {
+            LOGGER.debug("Not compressing since data is in compressed format: " + format);
+            context.getStats().notifyCompressedFormatDetected();
+            FlightRecorderEvents.compressionAborted(ABORT_COMPRESSED_FORMAT);
+            forceOutputStream1();
+            return;
+        }
+        double minCompressionRatio = context.getMinCompressionRatio();
+        if (minCompressionRatio > 0.0) {
+            // sample whichever of the buffered and the new data is longer, in place
+            byte[] sample = buffered;
+            int sampleOffset = 0;
+            int sampleLength = bufferedLength;
+            if (b != null && numAdditionalBytes > bufferedLength) {
+                sample = b;
+                sampleOffset = offset;
+                sampleLength = numAdditionalBytes;
+            }
+            if (sampleLength >= CompressibilityEstimator.MIN_SAMPLE) {
+                CompressibilityEstimator estimator = context.borrowEstimator();
+                double ratio = estimator.estimateRatio(sample, sampleOffset, sampleLength);
+                context.releaseEstimator(estimator);
+                if (ratio < minCompressionRatio) {
+                    if (LOGGER.isDebugEnabled()) {
+                        LOGGER.debug("Not compressing since estimated compression ratio is "
+                            + ratio);
+                    }
+                    FlightRecorderEvents.compressionAborted(ABORT_INCOMPRESSIBLE);
+                    forceOutputStream1();
+                    return;
+                }
+            }
+        }
+        switchToOutputStream2();
+    }
+
+    /**
+     * @return the name of the compressed format that the buffered data, followed by the given
+     * data, starts with, or {@code null} if none
+     */
+    private static String detectCompressedFormat(byte[] buffered, int bufferedLength, byte[] b,
+        int offset, int length) {
+        if (bufferedLength == 0) {
+            return b == null ? null : CompressedFormats.detect(b, offset, length);
+        }
+        if (bufferedLength >= CompressedFormats.MAX_SIGNATURE_END || b == null) {
+            return CompressedFormats.detect(buffered, 0, bufferedLength);
+        }
+        // only when a signature could span both; just its few bytes are copied
+        byte[] start = new byte[Math.min(CompressedFormats.MAX_SIGNATURE_END,
+            bufferedLength + length)];
+        System.arraycopy(buffered, 0, start, 0, bufferedLength);
+        System.arraycopy(b, offset, start, bufferedLength, start.length - bufferedLength);
+        return CompressedFormats.detect(start, 0, start.length);
+    }
+
     void forceOutputStream1() throws IOException {
-        LOGGER.debug("Forced to primary stream");
-        forceOut1 = true;
-        if (bufferCommitmentCallback != null) {
-            bufferCommitmentCallback.rawStreamCommitted();
+        lock();
+        try {
+            LOGGER.debug("Forced to primary stream");
+            if (buffering && !forceOut1) {
+                FlightRecorderEvents.thresholdDecided(false, getBufferedBytes(), threshold);
+            }
+            forceOut1 = true;
+            if (bufferCommitmentCallback != null) {
+                bufferCommitmentCallback.rawStreamCommitted();
+            }
+            // compression may have started, and is given up; return what it borrowed
+            releaseCompression();
+            if (uncompressed != null) {
+                // compressed data was only held back, so can still be dropped
+                buffer = uncompressed;
+                uncompressed = null;
+            }
+            flushBufferToStream(out1);
+        } finally {
+            unlock();
         }
-        flushBufferToStream(out1);
     }
 
     void switchToOutputStream2() throws IOException {
-        LOGGER.debug("Forced to alternate stream");
-        assert buffering;
-        // invoke callback
-        if (bufferCommitmentCallback != null) {
-            bufferCommitmentCallback.compressingStreamCommitted();
+        lock();
+        try {
+            assert buffering;
+            Object switchEvent = FlightRecorderEvents.beginStreamSwitch();
+            OutputStream compressedOut = out1;
+            if (fullBuffering || bestOfSize > 0L) {
+                fullBuffer = new FullBufferOutputStream(out1, context.getBufferPool(),
+                    Math.max(fullBuffering ? context.getFullBufferSize() : 0L,
+                        getMaxCompressedLength(bestOfSize)),
+                    fullBuffering ? context.getFullBufferSpillSize() : 0L,
+                    context.getTempDirectory());
+                compressedOut = fullBuffer;
+            }
+            compressingOutputStream =
+                compressingStreamFactory.getCompressingStream(compressedOut, context);
+            if (compressingOutputStream == null) {
+                fullBuffer = null;
+                LOGGER.debug("No compressor available; not compressing");
+                forceOutputStream1();
+                return;
+            }
+            if (progressiveSize > 0L) {
+                compressingOutputStream.compressStartFast(progressiveSize);
+            }
+            LOGGER.debug("Forced to alternate stream");
+            int bufferedBytes = getBufferedBytes();
+            if (bestOfSize > 0L && bufferedBytes <= bestOfSize) {
+                // don't commit to compression until it's clear it's worth it
+                uncompressed = new Buffer(Math.max(threshold, 32));
+                if (buffer != null) {
+                    buffer.writeTo(uncompressed);
+                }
+            } else if (bufferCommitmentCallback != null) {
+                // invoke callback
+                bufferCommitmentCallback.compressingStreamCommitted();
+            }
+            // Collect small writes before they reach the compressor
+            out2 = new CoalescingOutputStream(compressingOutputStream.getCompressingOutputStream(),
+                context.getBufferPool());
+            FlightRecorderEvents.thresholdDecided(true, bufferedBytes, threshold);
+            flushBufferToStream(out2);
+            FlightRecorderEvents.endStreamSwitch(switchEvent, bufferedBytes);
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Called before writing data to the compressing stream while compression isn't committed to
+     * yet. Commits to it if the data would make the response too large to compare.
+     *
+     * @return true if the data must still be kept uncompressed
+     */
+    private boolean keepUncompressed(int numAdditionalBytes) {
+        if (uncompressed.size() + (long) numAdditionalBytes <= bestOfSize) {
+            return true;
+        }
+        LOGGER.debug("Response too large to compare with its compressed length");
+        commitCompression();
+        return false;
+    }
+
+    private void commitCompression() {
+        if (uncompressed != null) {
+            uncompressed = null;
+            if (bufferCommitmentCallback != null) {
+                bufferCommitmentCallback.compressingStreamCommitted();
+            }
+        }
+    }
+
+    private void releaseCompression() {
+        if (out2 != null) {
+            out2.release();
+            out2 = null;
+        }
+        if (compressingOutputStream != null) {
+            compressingOutputStream.release();
+            compressingOutputStream = null;
+        }
+        if (fullBuffer != null) {
+            fullBuffer.release();
+            fullBuffer = null;
+        }
+    }
+
+    /**
+     * @return an upper bound on the compressed length of data of the given length; compressing
+     * adds at most a few bytes per block of data, plus the format's header and trailer
+     */
+    private static long getMaxCompressedLength(long length) {
+        return length + (length >> 12) + (length >> 14) + 1024L;
+    }
+
+    private OutputStream getCommittedStream() {
+        assert !buffering;
+        if (forceOut1) {
+            return out1;
         }
-        compressingOutputStream = compressingStreamFactory.getCompressingStream(out1, context);
-        out2 = compressingOutputStream.getCompressingOutputStream();
-        flushBufferToStream(out2);
+        assert out2 != null;
+        return out2;
+    }
+
+    private int getBufferedBytes() {
+        return buffer == null ? 0 : buffer.size();
     }
 
     private void flushBufferToStream(OutputStream out) throws IOException {
@@ -199,6 +513,157 @@ final class ThresholdOutputStream extends OutputStream {
             buffer = null;
         }
         buffering = false;
+        cancelThresholdHold();
+    }
+
+    /**
+     * Makes the stream {@link #syncFlush() sync-flush} itself once written data has been waiting
+     * for the given time without a flush. Must be called before the stream is used. From then on,
+     * the stream's methods lock, since the flush happens on another thread.
+     */
+    void enableAutoFlush(TimerWheel timerWheel, long autoFlushMillis) {
+        assert timerWheel != null && autoFlushMillis > 0L;
+        useTimer(timerWheel);
+        this.autoFlushMillis = autoFlushMillis;
+    }
+
+    /**
+     * Makes the stream stop buffering once data has been waiting for the given time without
+     * reaching the threshold, and send it, compressed and {@link #syncFlush() sync-flushed} or
+     * uncompressed. Must be called before the stream is used. From then on, the stream's methods
+     * lock, since this happens on another thread.
+     */
+    void enableThresholdHold(TimerWheel timerWheel, long thresholdHoldMillis, boolean compress) {
+        assert timerWheel != null && thresholdHoldMillis > 0L;
+        useTimer(timerWheel);
+        this.thresholdHoldMillis = thresholdHoldMillis;
+        thresholdHoldCompress = compress;
+    }
+
+    private void useTimer(TimerWheel timerWheel) {
+        assert this.timerWheel == null || this.timerWheel == timerWheel;
+        if (timerLock == null) {
+            timerLock = new ReentrantLock();
+        }
+        this.timerWheel = timerWheel;
+    }
+
+    /**
+     * Makes the stream hold back compressed data until it is closed, up to the limits set by
+     * {@link CompressingFilterContext#getFullBufferSize()} and {@link
+     * CompressingFilterContext#getFullBufferSpillSize()}, so that its length can be reported to
+     * {@link BufferCommitmentCallback#compressingStreamFinished(String, long)}. Must be called
+     * before the stream is used.
+     */
+    void enableFullBuffering() {
+        fullBuffering = true;
+    }
+
+    /**
+     * Makes the stream compress responses of at most the given length without committing to
+     * sending them compressed, holding them back both compressed and uncompressed, and send
+     * whichever is smaller when it is closed. Must be called before the stream is used.
+     */
+    void enableBestOf(long bestOfSize) {
+        assert bestOfSize > 0L;
+        this.bestOfSize = bestOfSize;
+    }
+
+    /**
+     * Called when the response turns out to be streaming after the stream was set up, perhaps
+     * after data was written: from then on, compressed data isn't held back, and is {@link
+     * #syncFlush() sync-flushed} automatically if the given time is positive.
+     */
+    void startStreaming(TimerWheel timerWheel, long autoFlushMillis) throws IOException {
+        if (autoFlushMillis > 0L && this.autoFlushMillis == 0L) {
+            // before locking, as this may create the lock; no timer uses the stream without it
+            enableAutoFlush(timerWheel, autoFlushMillis);
+        }
+        lock();
+        try {
+            fullBuffering = false;
+            bestOfSize = 0L;
+            if (!buffering && !forceOut1) {
+                commitCompression();
+                if (fullBuffer != null) {
+                    fullBuffer.passThrough();
+                }
+            }
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Makes the stream compress about the first given number of bytes at the fastest level, and
+     * send them as soon as they're compressed. Must be called before the stream is used.
+     */
+    void enableProgressive(long progressiveSize) {
+        assert progressiveSize > 0L;
+        this.progressiveSize = progressiveSize;
+    }
+
+    private void lock() {
+        if (timerLock != null) {
+            timerLock.lock();
+        }
+    }
+
+    private void unlock() {
+        if (timerLock != null) {
+            timerLock.unlock();
+        }
+    }
+
+    private void scheduleAutoFlush() {
+        if (autoFlushMillis > 0L && pendingAutoFlush == null) {
+            pendingAutoFlush = new TimedTask(autoFlushMillis) {
+                @Override
+                void runLocked() throws IOException {
+                    LOGGER.debug("Flushing automatically");
+                    syncFlush();
+                }
+            };
+            pendingAutoFlush.schedule();
+        }
+    }
+
+    /**
+     * Starts timing how long data is held below the threshold, once per response.
+     */
+    private void scheduleThresholdHold() {
+        if (thresholdHoldMillis > 0L && thresholdHold == null && buffering && !forceOut1) {
+            thresholdHold = new TimedTask(thresholdHoldMillis) {
+                @Override
+                void runLocked() throws IOException {
+                    if (!buffering || forceOut1 || closed) {
+                        return;
+                    }
+                    LOGGER.debug("Compression threshold not reached in time; sending response");
+                    if (thresholdHoldCompress) {
+                        syncFlush();
+                    } else {
+                        forceOutputStream1();
+                        out1.flush();
+                    }
+                }
+            };
+            thresholdHold.schedule();
+        }
+    }
+
+    private void cancelThresholdHold() {
+        // kept, so that it isn't scheduled again
+        if (thresholdHold != null) {
+            thresholdHold.cancel();
+        }
+    }
+
+    private void cancelAutoFlush() {
+        if (pendingAutoFlush != null) {
+            pendingAutoFlush.cancel();
+            pendingAutoFlush = null;
+        }
     }
 
     private void checkClosed() {
@@ -207,6 +672,69 @@ final class ThresholdOutputStream extends OutputStream {
         }
     }
 
+    /**
+     * A task run on a timer thread, holding the stream's lock.
+     */
+    private abstract class TimedTask implements Runnable {
+
+        private final long delayMillis;
+        private volatile TimerWheel.Timeout timeout;
+        private volatile boolean cancelled;
+
+        TimedTask(long delayMillis) {
+            this.delayMillis = delayMillis;
+        }
+
+        void schedule() {
+            timeout = timerWheel.schedule(this, delayMillis);
+        }
+
+        void cancel() {
+            cancelled = true;
+            timeout.cancel();
+        }
+
+        public void run() {
+            if (cancelled) {
+                return;
+            }
+            if (!timerLock.tryLock()) {
+                // the stream is in use, maybe blocked writing; don't tie up a timer thread
+                schedule();
+                return;
+            }
+            try {
+                if (!cancelled) {
+                    runLocked();
+                }
+            } catch (IOException ioe) {
+                // the request thread will see the problem on its next write
+                LOGGER.debug("Error while writing from timer", ioe);
+            } finally {
+                timerLock.unlock();
+            }
+        }
+
+        abstract void runLocked() throws IOException;
+    }
+
+    /**
+     * A {@link ByteArrayOutputStream} whose data can be read in place.
+     */
+    private static final class Buffer extends ByteArrayOutputStream {
+
+        Buffer(int size) {
+            super(size);
+        }
+
+        /**
+         * @return the array holding the data, of which the first {@link #size()} bytes are valid
+         */
+        byte[] getArray() {
+            return buf;
+        }
+    }
+
     /**
      * Implementations of this interface are used to receive notification that this stream has
      * either committed bytes to the "raw" stream (without compression), or has committed bytes to a
@@ -217,5 +745,13 @@ final class ThresholdOutputStream extends OutputStream {
         void rawStreamCommitted();
 
         void compressingStreamCommitted();
+
+        /**
+         * @param entityTag entity tag for the uncompressed data, as by {@link
+         * CompressingOutputStream#getEntityTag()}, or {@code null}
+         * @param compressedLength length of the compressed data, if none of it has been written
+         * yet, or -1
+         */
+        void compressingStreamFinished(String entityTag, long compressedLength);
     }
 }
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2004 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ziplet.filter.compression;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>A hashed timer wheel: a cheap way to schedule many short, imprecise timeouts, such as one per
+ * response, which are usually cancelled before they expire. Scheduling and cancelling are
+ * constant-time and lock-free; a single thread advances the wheel once per tick and hands expired
+ * tasks to worker threads, so that a task blocking on I/O doesn't hold up the others.</p>
+ *
+ * <p>A few workers are kept; more are started whenever all are busy, as when tasks write to slow
+ * clients, and stop once idle for a while. So there is at most one worker per task running at
+ * once, which for tasks writing responses is bounded by the responses in progress, and a blocked
+ * task never delays another.</p>
+ *
+ * <p>Timeouts fire no earlier than requested, and up to one tick later.</p>
+ *
+ * @since 2.4.2
+ */
+final class TimerWheel {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TimerWheel.class);
+    private static final int NUM_CORE_WORKERS = 2;
+    private static final long WORKER_KEEP_ALIVE_SECONDS = 60L;
+    private final long tickMillis;
+    private final List<Timeout>[] buckets;
+    private final Queue<Timeout> newTimeouts = new ConcurrentLinkedQueue<Timeout>();
+    private final ExecutorService workers;
+    private final Thread tickThread;
+    private volatile boolean stopped;
+
+    @SuppressWarnings("unchecked")
+    TimerWheel(long tickMillis, int numBuckets) {
+        assert tickMillis > 0L && numBuckets > 0;
+        this.tickMillis = tickMillis;
+        buckets = new List[numBuckets];
+        for (int i = 0; i < numBuckets; i++) {
+            buckets[i] = new ArrayList<Timeout>();
+        }
+        // hands each task straight to an idle worker, or a new one
+        workers = new ThreadPoolExecutor(NUM_CORE_WORKERS, Integer.MAX_VALUE,
+            WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+            new DaemonThreadFactory("worker"));
+        tickThread = new DaemonThreadFactory("tick").newThread(new Runnable() {
+            public void run() {
+                runTicks();
+            }
+        });
+        tickThread.start();
+    }
+
+    /**
+     * @param task task to run, on a worker thread, once the delay has passed
+     * @param delayMillis delay in milliseconds
+     * @return handle that can be used to cancel the task
+     */
+    Timeout schedule(Runnable task, long delayMillis) {
+        Timeout timeout = new Timeout(task, System.nanoTime()
+            + TimeUnit.MILLISECONDS.toNanos(delayMillis));
+        newTimeouts.offer(timeout);
+        return timeout;
+    }
+
+    /**
+     * Stops the wheel. Pending timeouts never fire.
+     */
+    void stop() {
+        stopped = true;
+        tickThread.interrupt();
+        workers.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return "TimerWheel[tickMillis: " + tickMillis + ", buckets: " + buckets.length + ']';
+    }
+
+    private void runTicks() {
+        long tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        long start = System.nanoTime();
+        long tick = 0L;
+        while (!stopped) {
+            long sleepNanos = start + (tick + 1L) * tickNanos - System.nanoTime();
+            if (sleepNanos > 0L) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException ie) {
+                    // stopped, most likely
+                    continue;
+                }
+            }
+            tick++;
+            transferNewTimeouts(start, tick, tickNanos);
+            expire(buckets[(int) (tick % buckets.length)]);
+        }
+    }
+
+    private void transferNewTimeouts(long start, long tick, long tickNanos) {
+        Timeout timeout;
+        while ((timeout = newTimeouts.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            // the tick at or after which the deadline has passed; never one already processed
+            long deadlineTick = (timeout.deadlineNanos - start + tickNanos - 1L) / tickNanos;
+            deadlineTick = Math.max(deadlineTick, tick);
+            timeout.remainingRounds = (deadlineTick - tick) / buckets.length;
+            buckets[(int) (deadlineTick % buckets.length)].add(timeout);
+        }
+    }
+
+    private void expire(List<Timeout> bucket) {
+        for (Iterator<Timeout> it = bucket.iterator(); it.hasNext(); ) {
+            Timeout timeout = it.next();
+            if (timeout.cancelled) {
+                it.remove();
+            } else if (timeout.remainingRounds > 0L) {
+                timeout.remainingRounds--;
+            } else {
+                // the deadline has passed, since it was rounded up to this tick
+                it.remove();
+                try {
+                    workers.execute(timeout.task);
+                } catch (RejectedExecutionException ree) {
+                    LOGGER.debug("Timer task rejected; timer is stopping", ree);
+                }
+            }
+        }
+    }
+
+    /**
+     * A scheduled task, which can be cancelled.
+     */
+    static final class Timeout {
+
+        private final Runnable task;
+        private final long deadlineNanos;
+        private volatile boolean cancelled;
+        private long remainingRounds; // only accessed by the tick thread
+
+        private Timeout(Runnable task, long deadlineNanos) {
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        /**
+         * Prevents the task from running, if it hasn't started already.
+         */
+        void cancel() {
+            cancelled = true;
+        }
+    }
+
+    private static final class DaemonThreadFactory implements ThreadFactory {
+
+        private final String kind;
+        private final AtomicInteger count = new AtomicInteger();
+
+        private DaemonThreadFactory(String kind) {
+            this.kind = kind;
+        }
+
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable,
+                "CompressingFilter-timer-" + kind + '-' + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
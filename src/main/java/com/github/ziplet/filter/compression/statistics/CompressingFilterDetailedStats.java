@@ -0,0 +1,106 @@
+/*
+ * Copyright 2004 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ziplet.filter.compression.statistics;
+
+/**
+ * Optional extension of {@link CompressingFilterStats} for implementations that also want to be
+ * notified of the filter's caches, codec pool, and compression timings. The filter only calls
+ * these methods on stats objects which implement this interface, so existing {@link
+ * CompressingFilterStats} implementations keep working unchanged.
+ *
+ * @since 2.4.2
+ */
+public interface CompressingFilterDetailedStats extends CompressingFilterStats {
+
+    /**
+     * A pooled {@link java.util.zip.Deflater} or {@link java.util.zip.Inflater} was reused.
+     */
+    public void notifyCodecPoolHit();
+
+    /**
+     * No idle {@link java.util.zip.Deflater} or {@link java.util.zip.Inflater} was pooled, so a new
+     * one was created.
+     */
+    public void notifyCodecPoolMiss();
+
+    /**
+     * The codec pool was exhausted, and the caller had to wait for an instance to be returned.
+     */
+    public void notifyCodecPoolWait();
+
+    /**
+     * The codec pool stayed exhausted; the response was not compressed.
+     */
+    public void notifyCodecPoolExhausted();
+
+    /**
+     * The content encoding for a request's "Accept-Encoding" header was found in the cache.
+     */
+    public void notifyEncodingCacheHit();
+
+    /**
+     * The content encoding for a request's "Accept-Encoding" header was not cached, so the header
+     * was parsed.
+     */
+    public void notifyEncodingCacheMiss();
+
+    /**
+     * The "Accept-Encoding" cache was full, and an entry was evicted to make room for another.
+     */
+    public void notifyEncodingCacheEviction();
+
+    /**
+     * A response was served from the response cache, without invoking the rest of the chain.
+     */
+    public void notifyResponseCacheHit();
+
+    /**
+     * A response which could have been served from the response cache was not in it.
+     */
+    public void notifyResponseCacheMiss();
+
+    /**
+     * A response was evicted from the response cache, or not admitted to it, to make room for more
+     * frequently requested ones.
+     */
+    public void notifyResponseCacheEviction();
+
+    /**
+     * A response was not compressed because it starts like a format which is compressed already,
+     * like PNG or ZIP.
+     */
+    public void notifyCompressedFormatDetected();
+
+    /**
+     * A response was compressed.
+     *
+     * @param contentEncoding the encoding used, like "gzip"
+     * @param compressionNanos time spent compressing the response
+     * @param totalNanos time from deciding to compress the response to finishing it, including
+     * time spent waiting for the application to write it
+     */
+    public void notifyResponseCompressed(String contentEncoding, long compressionNanos,
+        long totalNanos);
+
+    /**
+     * A request body was decompressed.
+     *
+     * @param contentEncoding the encoding of the body, like "gzip"
+     * @param decompressionNanos time spent decompressing the body, not including time spent
+     * waiting for the client to send it
+     */
+    public void notifyRequestDecompressed(String contentEncoding, long decompressionNanos);
+}
@@ -3,7 +3,7 @@ package com.github.ziplet.filter.compression.statistics;
 /**
  * Created by fdonnarumma on 3/10/14.
  */
-public class CompressingFilterEmptyStats implements CompressingFilterStats {
+public class CompressingFilterEmptyStats implements CompressingFilterDetailedStats {
 
     private static final String STATS_KEY = "com.github.ziplet.filter.compression.statistics.CompressingFilterEmptyStatsImpl";
 
@@ -47,6 +47,72 @@ public class CompressingFilterEmptyStats implements CompressingFilterStats {
         return;
     }
 
+    @Override
+    public void notifyCodecPoolHit() {
+        return;
+    }
+
+    @Override
+    public void notifyCodecPoolMiss() {
+        return;
+    }
+
+    @Override
+    public void notifyCodecPoolWait() {
+        return;
+    }
+
+    @Override
+    public void notifyCodecPoolExhausted() {
+        return;
+    }
+
+    @Override
+    public void notifyEncodingCacheHit() {
+        return;
+    }
+
+    @Override
+    public void notifyEncodingCacheMiss() {
+        return;
+    }
+
+    @Override
+    public void notifyEncodingCacheEviction() {
+        return;
+    }
+
+    @Override
+    public void notifyResponseCacheHit() {
+        return;
+    }
+
+    @Override
+    public void notifyResponseCacheMiss() {
+        return;
+    }
+
+    @Override
+    public void notifyResponseCacheEviction() {
+        return;
+    }
+
+    @Override
+    public void notifyCompressedFormatDetected() {
+        return;
+    }
+
+    @Override
+    public void notifyResponseCompressed(String contentEncoding, long compressionNanos,
+        long totalNanos) {
+        return;
+    }
+
+    @Override
+    public void notifyRequestDecompressed(String contentEncoding, long decompressionNanos) {
+        return;
+    }
+
     @Override
     public String getStatsKey() {
         return STATS_KEY;
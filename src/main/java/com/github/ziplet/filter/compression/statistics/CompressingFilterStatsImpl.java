@@ -16,8 +16,10 @@
 package com.github.ziplet.filter.compression.statistics;
 
 import java.io.Serializable;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * <p>This class provides runtime statistics on the performance of {@link
@@ -36,58 +38,117 @@ import java.util.concurrent.atomic.AtomicLong;
  * @since 1.1
  */
 public class CompressingFilterStatsImpl implements Serializable,
-    com.github.ziplet.filter.compression.statistics.CompressingFilterStats {
+    com.github.ziplet.filter.compression.statistics.CompressingFilterDetailedStats {
 
-    private static final long serialVersionUID = -2246829834191152845L;
+    private static final long serialVersionUID = -1837462061930265473L;
     /**
      * Key under which a {@link CompressingFilterStatsImpl} object can be found in the servlet
      * context.
      */
-    private static final String STATS_KEY = "com.github.ziplet.filter.compression.statistics.CompressingFilterStatsImpl";
+    public static final String STATS_KEY = "com.github.ziplet.filter.compression.statistics.CompressingFilterStatsImpl";
     /**
      * @serial
      */
-    private AtomicInteger numResponsesCompressed = new AtomicInteger();
+    private final StripedCounter numResponsesCompressed = new StripedCounter();
     /**
      * @serial
      */
-    private AtomicInteger totalResponsesNotCompressed = new AtomicInteger();
+    private final StripedCounter totalResponsesNotCompressed = new StripedCounter();
     /**
      * @serial
      */
-    private AtomicLong responseInputBytes = new AtomicLong();
+    private final StripedCounter responseInputBytes = new StripedCounter();
     /**
      * @serial
      */
-    private AtomicLong responseCompressedBytes = new AtomicLong();
+    private final StripedCounter responseCompressedBytes = new StripedCounter();
     /**
      * @serial
      */
-    private AtomicInteger numRequestsCompressed = new AtomicInteger();
+    private final StripedCounter numRequestsCompressed = new StripedCounter();
     /**
      * @serial
      */
-    private AtomicInteger totalRequestsNotCompressed = new AtomicInteger();
+    private final StripedCounter totalRequestsNotCompressed = new StripedCounter();
     /**
      * @serial
      */
-    private AtomicLong requestInputBytes = new AtomicLong();
+    private final StripedCounter requestInputBytes = new StripedCounter();
     /**
      * @serial
      */
-    private AtomicLong requestCompressedBytes = new AtomicLong();
+    private final StripedCounter requestCompressedBytes = new StripedCounter();
+    /**
+     * @serial
+     */
+    private final StripedCounter codecPoolHits = new StripedCounter();
+    /**
+     * @serial
+     */
+    private final StripedCounter codecPoolMisses = new StripedCounter();
+    /**
+     * @serial
+     */
+    private final StripedCounter codecPoolWaits = new StripedCounter();
+    /**
+     * @serial
+     */
+    private final StripedCounter codecPoolExhaustions = new StripedCounter();
+    /**
+     * @serial
+     */
+    private final StripedCounter encodingCacheHits = new StripedCounter();
+    /**
+     * @serial
+     */
+    private final StripedCounter encodingCacheMisses = new StripedCounter();
+    /**
+     * @serial
+     */
+    private final StripedCounter encodingCacheEvictions = new StripedCounter();
+    /**
+     * @serial
+     */
+    private final StripedCounter responseCacheHits = new StripedCounter();
+    /**
+     * @serial
+     */
+    private final StripedCounter responseCacheMisses = new StripedCounter();
+    /**
+     * @serial
+     */
+    private final StripedCounter responseCacheEvictions = new StripedCounter();
+    /**
+     * @serial
+     */
+    private final StripedCounter compressedFormatsDetected = new StripedCounter();
+    /**
+     * @serial
+     */
+    private final ConcurrentMap<String, LatencyHistogram> responseCompressionTimes =
+        new ConcurrentHashMap<String, LatencyHistogram>();
+    /**
+     * @serial
+     */
+    private final ConcurrentMap<String, LatencyHistogram> responseTotalTimes =
+        new ConcurrentHashMap<String, LatencyHistogram>();
+    /**
+     * @serial
+     */
+    private final ConcurrentMap<String, LatencyHistogram> requestDecompressionTimes =
+        new ConcurrentHashMap<String, LatencyHistogram>();
 
     /**
      * @return the number of responses which {@link com.github.ziplet.filter.compression.CompressingFilter}
      * has compressed.
      */
-    public int getNumResponsesCompressed() {
+    public long getNumResponsesCompressed() {
         return numResponsesCompressed.get();
     }
 
     @Override
     public void incrementNumResponsesCompressed() {
-        numResponsesCompressed.incrementAndGet();
+        numResponsesCompressed.increment();
     }
 
     /**
@@ -95,13 +156,13 @@ public class CompressingFilterStatsImpl implements Serializable,
      * has processed but <em>not</em> compressed for some reason (compression not supported by the
      * browser, for example).
      */
-    public int getTotalResponsesNotCompressed() {
+    public long getTotalResponsesNotCompressed() {
         return totalResponsesNotCompressed.get();
     }
 
     @Override
     public void incrementTotalResponsesNotCompressed() {
-        totalResponsesNotCompressed.incrementAndGet();
+        totalResponsesNotCompressed.increment();
     }
 
     /**
@@ -163,13 +224,13 @@ public class CompressingFilterStatsImpl implements Serializable,
      * has compressed.
      * @since 1.6
      */
-    public int getNumRequestsCompressed() {
+    public long getNumRequestsCompressed() {
         return numRequestsCompressed.get();
     }
 
     @Override
     public void incrementNumRequestsCompressed() {
-        numRequestsCompressed.incrementAndGet();
+        numRequestsCompressed.increment();
     }
 
     /**
@@ -178,13 +239,13 @@ public class CompressingFilterStatsImpl implements Serializable,
      * example).
      * @since 1.6
      */
-    public int getTotalRequestsNotCompressed() {
+    public long getTotalRequestsNotCompressed() {
         return totalRequestsNotCompressed.get();
     }
 
     @Override
     public void incrementTotalRequestsNotCompressed() {
-        totalRequestsNotCompressed.incrementAndGet();
+        totalRequestsNotCompressed.increment();
     }
 
     /**
@@ -216,6 +277,123 @@ public class CompressingFilterStatsImpl implements Serializable,
             (double) requestInputBytes.get() / (double) requestCompressedBytes.get();
     }
 
+    /**
+     * @return number of times a pooled {@link java.util.zip.Deflater} or {@link
+     * java.util.zip.Inflater} was reused
+     * @since 2.4.2
+     */
+    public long getCodecPoolHits() {
+        return codecPoolHits.get();
+    }
+
+    /**
+     * @return number of times a new {@link java.util.zip.Deflater} or {@link
+     * java.util.zip.Inflater} had to be created because none was pooled
+     * @since 2.4.2
+     */
+    public long getCodecPoolMisses() {
+        return codecPoolMisses.get();
+    }
+
+    /**
+     * @return number of times a caller had to wait for the codec pool
+     * @since 2.4.2
+     */
+    public long getCodecPoolWaits() {
+        return codecPoolWaits.get();
+    }
+
+    /**
+     * @return number of times the codec pool stayed exhausted, so that a response was not
+     * compressed
+     * @since 2.4.2
+     */
+    public long getCodecPoolExhaustions() {
+        return codecPoolExhaustions.get();
+    }
+
+    /**
+     * @return number of times the content encoding for an "Accept-Encoding" header was cached
+     * @since 2.4.2
+     */
+    public long getEncodingCacheHits() {
+        return encodingCacheHits.get();
+    }
+
+    /**
+     * @return number of times an "Accept-Encoding" header had to be parsed
+     * @since 2.4.2
+     */
+    public long getEncodingCacheMisses() {
+        return encodingCacheMisses.get();
+    }
+
+    /**
+     * @return number of entries evicted from the full "Accept-Encoding" cache
+     * @since 2.4.2
+     */
+    public long getEncodingCacheEvictions() {
+        return encodingCacheEvictions.get();
+    }
+
+    /**
+     * @return number of responses served from the response cache
+     * @since 2.4.2
+     */
+    public long getResponseCacheHits() {
+        return responseCacheHits.get();
+    }
+
+    /**
+     * @return number of cacheable requests whose response was not in the response cache
+     * @since 2.4.2
+     */
+    public long getResponseCacheMisses() {
+        return responseCacheMisses.get();
+    }
+
+    /**
+     * @return number of responses evicted from, or not admitted to, the full response cache
+     * @since 2.4.2
+     */
+    public long getResponseCacheEvictions() {
+        return responseCacheEvictions.get();
+    }
+
+    /**
+     * @return number of responses not compressed because they were in a compressed format already
+     * @since 2.4.2
+     */
+    public long getCompressedFormatsDetected() {
+        return compressedFormatsDetected.get();
+    }
+
+    /**
+     * @return histograms of the time spent compressing each response, by content encoding
+     * @since 2.4.2
+     */
+    public Map<String, LatencyHistogram> getResponseCompressionTimes() {
+        return Collections.unmodifiableMap(responseCompressionTimes);
+    }
+
+    /**
+     * @return histograms of the time from deciding to compress each response to finishing it, by
+     * content encoding. This includes time spent waiting for the application to write the
+     * response.
+     * @since 2.4.2
+     */
+    public Map<String, LatencyHistogram> getResponseTotalTimes() {
+        return Collections.unmodifiableMap(responseTotalTimes);
+    }
+
+    /**
+     * @return histograms of the time spent decompressing each request body, by content encoding
+     * @since 2.4.2
+     */
+    public Map<String, LatencyHistogram> getRequestDecompressionTimes() {
+        return Collections.unmodifiableMap(requestDecompressionTimes);
+    }
+
     /**
      * @return a summary of the stats in String form
      */
@@ -229,28 +407,106 @@ public class CompressingFilterStatsImpl implements Serializable,
 
     @Override
     public void notifyRequestBytesRead(long read) {
-        requestInputBytes.addAndGet(read);
+        requestInputBytes.add(read);
     }
 
     @Override
     public void notifyCompressedRequestBytesRead(long read) {
-        this.requestCompressedBytes.addAndGet(read);
+        this.requestCompressedBytes.add(read);
     }
 
     @Override
     public void notifyResponseBytesWritten(long written) {
-        this.responseInputBytes.addAndGet(written);
+        this.responseInputBytes.add(written);
     }
 
     @Override
     public void notifyCompressedResponseBytesWritten(long written) {
-        this.responseCompressedBytes.addAndGet(written);
+        this.responseCompressedBytes.add(written);
+    }
+
+    @Override
+    public void notifyCodecPoolHit() {
+        codecPoolHits.increment();
+    }
+
+    @Override
+    public void notifyCodecPoolMiss() {
+        codecPoolMisses.increment();
+    }
+
+    @Override
+    public void notifyCodecPoolWait() {
+        codecPoolWaits.increment();
+    }
+
+    @Override
+    public void notifyCodecPoolExhausted() {
+        codecPoolExhaustions.increment();
+    }
+
+    @Override
+    public void notifyEncodingCacheHit() {
+        encodingCacheHits.increment();
+    }
+
+    @Override
+    public void notifyEncodingCacheMiss() {
+        encodingCacheMisses.increment();
+    }
+
+    @Override
+    public void notifyEncodingCacheEviction() {
+        encodingCacheEvictions.increment();
+    }
+
+    @Override
+    public void notifyResponseCacheHit() {
+        responseCacheHits.increment();
+    }
+
+    @Override
+    public void notifyResponseCacheMiss() {
+        responseCacheMisses.increment();
+    }
+
+    @Override
+    public void notifyResponseCacheEviction() {
+        responseCacheEvictions.increment();
+    }
+
+    @Override
+    public void notifyCompressedFormatDetected() {
+        compressedFormatsDetected.increment();
+    }
+
+    @Override
+    public void notifyResponseCompressed(String contentEncoding, long compressionNanos,
+        long totalNanos) {
+        histogramFor(responseCompressionTimes, contentEncoding).record(compressionNanos);
+        histogramFor(responseTotalTimes, contentEncoding).record(totalNanos);
+    }
+
+    @Override
+    public void notifyRequestDecompressed(String contentEncoding, long decompressionNanos) {
+        histogramFor(requestDecompressionTimes, contentEncoding).record(decompressionNanos);
     }
 
     @Override
     public String getStatsKey() {
         return STATS_KEY;
     }
-}
-
 
+    private static LatencyHistogram histogramFor(
+        ConcurrentMap<String, LatencyHistogram> histograms, String contentEncoding) {
+        LatencyHistogram histogram = histograms.get(contentEncoding);
+        if (histogram == null) {
+            LatencyHistogram newHistogram = new LatencyHistogram();
+            histogram = histograms.putIfAbsent(contentEncoding, newHistogram);
+            if (histogram == null) {
+                histogram = newHistogram;
+            }
+        }
+        return histogram;
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright 2004 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ziplet.filter.compression.statistics;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * <p>Serves the {@link CompressingFilterStatsImpl} published by {@link
+ * com.github.ziplet.filter.compression.CompressingFilter} in the servlet context, so that it can be
+ * scraped by monitoring systems. By default the stats are rendered in the Prometheus text exposition
+ * format; they are rendered as JSON instead if the "format" parameter is "json", or the request
+ * accepts "application/json". Responds with 404 if stats are not enabled.</p>
+ *
+ * <pre>
+ * &lt;servlet&gt;
+ *  &lt;servlet-name&gt;CompressingFilterStats&lt;/servlet-name&gt;
+ *  &lt;servlet-class&gt;com.github.ziplet.filter.compression.statistics.CompressingFilterStatsServlet&lt;/servlet-class&gt;
+ * &lt;/servlet&gt;
+ * &lt;servlet-mapping&gt;
+ *  &lt;servlet-name&gt;CompressingFilterStats&lt;/servlet-name&gt;
+ *  &lt;url-pattern&gt;/metrics&lt;/url-pattern&gt;
+ * &lt;/servlet-mapping&gt;
+ * </pre>
+ *
+ * <p>Stats are read without locking, straight from the counters the filter updates, and written
+ * directly to the response.</p>
+ *
+ * @since 2.4.2
+ */
+public class CompressingFilterStatsServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 3418650233074823816L;
+    private static final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4";
+    private static final String JSON_CONTENT_TYPE = "application/json";
+    private static final long[] BUCKET_NANOS = {
+        100000L, 250000L, 500000L, 1000000L, 2500000L, 5000000L, 10000000L, 25000000L,
+        50000000L, 100000000L, 250000000L, 500000000L, 1000000000L, 2500000000L,
+        5000000000L, 10000000000L
+    };
+    private static final String[] BUCKET_LABELS = {
+        "0.0001", "0.00025", "0.0005", "0.001", "0.0025", "0.005", "0.01", "0.025",
+        "0.05", "0.1", "0.25", "0.5", "1", "2.5",
+        "5", "10"
+    };
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+        throws IOException {
+        Object stats = getServletContext().getAttribute(CompressingFilterStatsImpl.STATS_KEY);
+        if (!(stats instanceof CompressingFilterStatsImpl)) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "Stats are not enabled");
+            return;
+        }
+        response.setHeader("Cache-Control", "no-store");
+        response.setCharacterEncoding("UTF-8");
+        if (isJsonRequested(request)) {
+            response.setContentType(JSON_CONTENT_TYPE);
+            writeJson((CompressingFilterStatsImpl) stats, response.getWriter());
+        } else {
+            response.setContentType(PROMETHEUS_CONTENT_TYPE);
+            writePrometheus((CompressingFilterStatsImpl) stats, response.getWriter());
+        }
+    }
+
+    private static boolean isJsonRequested(HttpServletRequest request) {
+        String format = request.getParameter("format");
+        if (format != null) {
+            return "json".equalsIgnoreCase(format);
+        }
+        String accept = request.getHeader("Accept");
+        return accept != null && accept.contains(JSON_CONTENT_TYPE);
+    }
+
+    static void writePrometheus(CompressingFilterStatsImpl stats, PrintWriter out) {
+        writeType(out, "ziplet_responses_total", "counter",
+            "Responses processed, by whether they were compressed.");
+        writeSample(out, "ziplet_responses_total", "compressed", "true",
+            stats.getNumResponsesCompressed());
+        writeSample(out, "ziplet_responses_total", "compressed", "false",
+            stats.getTotalResponsesNotCompressed());
+        writeType(out, "ziplet_response_bytes_total", "counter",
+            "Bytes in compressed responses, before and after compression.");
+        writeSample(out, "ziplet_response_bytes_total", "stage", "input",
+            stats.getResponseInputBytes());
+        writeSample(out, "ziplet_response_bytes_total", "stage", "compressed",
+            stats.getResponseCompressedBytes());
+        writeType(out, "ziplet_requests_total", "counter",
+            "Requests processed, by whether their bodies were compressed.");
+        writeSample(out, "ziplet_requests_total", "compressed", "true",
+            stats.getNumRequestsCompressed());
+        writeSample(out, "ziplet_requests_total", "compressed", "false",
+            stats.getTotalRequestsNotCompressed());
+        writeType(out, "ziplet_request_bytes_total", "counter",
+            "Bytes in compressed request bodies, after and before decompression.");
+        writeSample(out, "ziplet_request_bytes_total", "stage", "input",
+            stats.getRequestInputBytes());
+        writeSample(out, "ziplet_request_bytes_total", "stage", "compressed",
+            stats.getRequestCompressedBytes());
+        writeType(out, "ziplet_codec_pool_total", "counter",
+            "Deflater and Inflater pool events.");
+        writeSample(out, "ziplet_codec_pool_total", "event", "hit", stats.getCodecPoolHits());
+        writeSample(out, "ziplet_codec_pool_total", "event", "miss", stats.getCodecPoolMisses());
+        writeSample(out, "ziplet_codec_pool_total", "event", "wait", stats.getCodecPoolWaits());
+        writeSample(out, "ziplet_codec_pool_total", "event", "exhausted",
+            stats.getCodecPoolExhaustions());
+        writeType(out, "ziplet_encoding_cache_total", "counter",
+            "Accept-Encoding cache events.");
+        writeSample(out, "ziplet_encoding_cache_total", "event", "hit",
+            stats.getEncodingCacheHits());
+        writeSample(out, "ziplet_encoding_cache_total", "event", "miss",
+            stats.getEncodingCacheMisses());
+        writeSample(out, "ziplet_encoding_cache_total", "event", "eviction",
+            stats.getEncodingCacheEvictions());
+        writeType(out, "ziplet_response_cache_total", "counter",
+            "Response cache events.");
+        writeSample(out, "ziplet_response_cache_total", "event", "hit",
+            stats.getResponseCacheHits());
+        writeSample(out, "ziplet_response_cache_total", "event", "miss",
+            stats.getResponseCacheMisses());
+        writeSample(out, "ziplet_response_cache_total", "event", "eviction",
+            stats.getResponseCacheEvictions());
+        writeType(out, "ziplet_compression_skipped_total", "counter",
+            "Responses not compressed because of their content.");
+        writeSample(out, "ziplet_compression_skipped_total", "reason", "compressed_format",
+            stats.getCompressedFormatsDetected());
+
+        long[] counts = new long[BUCKET_NANOS.length];
+        writeHistograms(out, "ziplet_response_compression_seconds",
+            "Time spent compressing each response.",
+            stats.getResponseCompressionTimes(), counts);
+        writeHistograms(out, "ziplet_response_total_seconds",
+            "Time from deciding to compress each response to finishing it.",
+            stats.getResponseTotalTimes(), counts);
+        writeHistograms(out, "ziplet_request_decompression_seconds",
+            "Time spent decompressing each request body.",
+            stats.getRequestDecompressionTimes(), counts);
+        out.flush();
+    }
+
+    private static void writeType(PrintWriter out, String name, String type, String help) {
+        out.print("# HELP ");
+        out.print(name);
+        out.print(' ');
+        out.print(help);
+        out.print("\n# TYPE ");
+        out.print(name);
+        out.print(' ');
+        out.print(type);
+        out.print('\n');
+    }
+
+    private static void writeSample(PrintWriter out, String name, String label, String value,
+        long sample) {
+        out.print(name);
+        out.print('{');
+        out.print(label);
+        out.print("=\"");
+        out.print(value);
+        out.print("\"} ");
+        out.print(sample);
+        out.print('\n');
+    }
+
+    private static void writeHistograms(PrintWriter out, String name, String help,
+        Map<String, LatencyHistogram> histograms, long[] counts) {
+        writeType(out, name, "histogram", help);
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            // encodings are tokens like "gzip", which need no escaping
+            String encoding = entry.getKey();
+            LatencyHistogram histogram = entry.getValue();
+            long total = histogram.getCountsAtOrBelow(BUCKET_NANOS, counts);
+            for (int i = 0; i < BUCKET_NANOS.length; i++) {
+                writeBucket(out, name, encoding, BUCKET_LABELS[i], counts[i]);
+            }
+            writeBucket(out, name, encoding, "+Inf", total);
+            out.print(name);
+            out.print("_sum{encoding=\"");
+            out.print(encoding);
+            out.print("\"} ");
+            out.print(histogram.getTotalNanos() / 1.0e9);
+            out.print('\n');
+            out.print(name);
+            out.print("_count{encoding=\"");
+            out.print(encoding);
+            out.print("\"} ");
+            out.print(total);
+            out.print('\n');
+        }
+    }
+
+    private static void writeBucket(PrintWriter out, String name, String encoding, String le,
+        long count) {
+        out.print(name);
+        out.print("_bucket{encoding=\"");
+        out.print(encoding);
+        out.print("\",le=\"");
+        out.print(le);
+        out.print("\"} ");
+        out.print(count);
+        out.print('\n');
+    }
+
+    static void writeJson(CompressingFilterStatsImpl stats, PrintWriter out) {
+        out.print("{\"responses\":{\"compressed\":");
+        out.print(stats.getNumResponsesCompressed());
+        out.print(",\"notCompressed\":");
+        out.print(stats.getTotalResponsesNotCompressed());
+        out.print(",\"inputBytes\":");
+        out.print(stats.getResponseInputBytes());
+        out.print(",\"compressedBytes\":");
+        out.print(stats.getResponseCompressedBytes());
+        out.print(",\"averageCompressionRatio\":");
+        out.print(stats.getResponseAverageCompressionRatio());
+        out.print("},\"requests\":{\"compressed\":");
+        out.print(stats.getNumRequestsCompressed());
+        out.print(",\"notCompressed\":");
+        out.print(stats.getTotalRequestsNotCompressed());
+        out.print(",\"inputBytes\":");
+        out.print(stats.getRequestInputBytes());
+        out.print(",\"compressedBytes\":");
+        out.print(stats.getRequestCompressedBytes());
+        out.print(",\"averageCompressionRatio\":");
+        out.print(stats.getRequestAverageCompressionRatio());
+        out.print("},\"codecPool\":{\"hits\":");
+        out.print(stats.getCodecPoolHits());
+        out.print(",\"misses\":");
+        out.print(stats.getCodecPoolMisses());
+        out.print(",\"waits\":");
+        out.print(stats.getCodecPoolWaits());
+        out.print(",\"exhaustions\":");
+        out.print(stats.getCodecPoolExhaustions());
+        out.print("},\"encodingCache\":{\"hits\":");
+        out.print(stats.getEncodingCacheHits());
+        out.print(",\"misses\":");
+        out.print(stats.getEncodingCacheMisses());
+        out.print(",\"evictions\":");
+        out.print(stats.getEncodingCacheEvictions());
+        out.print("},\"responseCache\":{\"hits\":");
+        out.print(stats.getResponseCacheHits());
+        out.print(",\"misses\":");
+        out.print(stats.getResponseCacheMisses());
+        out.print(",\"evictions\":");
+        out.print(stats.getResponseCacheEvictions());
+        out.print("},\"compressedFormatsDetected\":");
+        out.print(stats.getCompressedFormatsDetected());
+        out.print(",\"responseCompressionTimes\":");
+        writeJsonHistograms(out, stats.getResponseCompressionTimes());
+        out.print(",\"responseTotalTimes\":");
+        writeJsonHistograms(out, stats.getResponseTotalTimes());
+        out.print(",\"requestDecompressionTimes\":");
+        writeJsonHistograms(out, stats.getRequestDecompressionTimes());
+        out.print("}\n");
+        out.flush();
+    }
+
+    private static void writeJsonHistograms(PrintWriter out,
+        Map<String, LatencyHistogram> histograms) {
+        out.print('{');
+        boolean first = true;
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            if (!first) {
+                out.print(',');
+            }
+            first = false;
+            LatencyHistogram histogram = entry.getValue();
+            out.print('"');
+            out.print(entry.getKey());
+            out.print("\":{\"count\":");
+            out.print(histogram.getCount());
+            out.print(",\"meanNanos\":");
+            out.print(histogram.getMeanNanos());
+            out.print(",\"p50Nanos\":");
+            out.print(histogram.getP50Nanos());
+            out.print(",\"p99Nanos\":");
+            out.print(histogram.getP99Nanos());
+            out.print(",\"p999Nanos\":");
+            out.print(histogram.getP999Nanos());
+            out.print(",\"maxNanos\":");
+            out.print(histogram.getMaxNanos());
+            out.print('}');
+        }
+        out.print('}');
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2004 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ziplet.filter.compression.statistics;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>A histogram of durations, in nanoseconds, in the style of HdrHistogram: each power of two is
+ * split into 32 equal buckets, so any recorded value is known to within about 3%, and memory use
+ * is fixed no matter how many values are recorded. Recording takes no lock.</p>
+ *
+ * <p>Values above 2<sup>36</sup> nanoseconds (about 68 seconds) are recorded as that maximum.
+ * Reading the histogram while values are being recorded may see some of them and not others.</p>
+ *
+ * @since 2.4.2
+ */
+public final class LatencyHistogram implements Serializable {
+
+    private static final long serialVersionUID = -4318203374582963719L;
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int MAX_VALUE_BITS = 36;
+    private static final long MAX_VALUE = (1L << MAX_VALUE_BITS) - 1L;
+    /**
+     * @serial
+     */
+    private final AtomicLongArray counts = new AtomicLongArray(indexOf(MAX_VALUE) + 1);
+    /**
+     * @serial
+     */
+    private final StripedCounter count = new StripedCounter();
+    /**
+     * @serial
+     */
+    private final StripedCounter totalNanos = new StripedCounter();
+    /**
+     * @serial
+     */
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    void record(long nanos) {
+        long value = Math.min(Math.max(nanos, 0L), MAX_VALUE);
+        counts.incrementAndGet(indexOf(value));
+        count.increment();
+        totalNanos.add(value);
+        long max;
+        while (value > (max = maxNanos.get())) {
+            if (maxNanos.compareAndSet(max, value)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return number of values recorded
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return sum of the values recorded, in nanoseconds
+     */
+    public long getTotalNanos() {
+        return totalNanos.get();
+    }
+
+    /**
+     * @return mean of the values recorded, in nanoseconds, or 0 if none have been
+     */
+    public double getMeanNanos() {
+        long n = getCount();
+        return n == 0L ? 0.0 : (double) getTotalNanos() / (double) n;
+    }
+
+    /**
+     * @return largest value recorded, in nanoseconds, or 0 if none have been
+     */
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    /**
+     * @param percentile percentile between 0 and 100, like 99.9
+     * @return a value, in nanoseconds, at least as large as the given percentage of the values
+     * recorded, and within the precision of the histogram of one of them; 0 if none have been
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = 0L;
+        for (int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+        if (total == 0L) {
+            return 0L;
+        }
+        long rank = Math.max(1L, (long) Math.ceil(total * Math.min(percentile, 100.0) / 100.0));
+        long seen = 0L;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValueAt(i), getMaxNanos());
+            }
+        }
+        return getMaxNanos();
+    }
+
+    /**
+     * @return the median, as by {@link #getValueAtPercentile(double)}
+     */
+    public long getP50Nanos() {
+        return getValueAtPercentile(50.0);
+    }
+
+    /**
+     * @return the 99th percentile, as by {@link #getValueAtPercentile(double)}
+     */
+    public long getP99Nanos() {
+        return getValueAtPercentile(99.0);
+    }
+
+    /**
+     * @return the 99.9th percentile, as by {@link #getValueAtPercentile(double)}
+     */
+    public long getP999Nanos() {
+        return getValueAtPercentile(99.9);
+    }
+
+    /**
+     * @return number of values recorded which are at most the given value, to within the
+     * precision of the histogram
+     */
+    public long getCountAtOrBelow(long nanos) {
+        int last = lastIndexAtOrBelow(nanos);
+        long result = 0L;
+        for (int i = 0; i <= last; i++) {
+            result += counts.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Like {@link #getCountAtOrBelow(long)} for several bounds at once, in a single pass and
+     * without allocating.
+     *
+     * @param boundsNanos bounds, in increasing order
+     * @param countsAtOrBelow receives the number of values at most each bound
+     * @return number of values recorded, consistent with the counts
+     */
+    public long getCountsAtOrBelow(long[] boundsNanos, long[] countsAtOrBelow) {
+        assert countsAtOrBelow.length >= boundsNanos.length;
+        long total = 0L;
+        int bound = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            while (bound < boundsNanos.length && lastIndexAtOrBelow(boundsNanos[bound]) < i) {
+                countsAtOrBelow[bound++] = total;
+            }
+            total += counts.get(i);
+        }
+        while (bound < boundsNanos.length) {
+            countsAtOrBelow[bound++] = total;
+        }
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyHistogram[count: " + getCount() + ", mean: " + getMeanNanos()
+            + "ns, p99: " + getP99Nanos() + "ns, max: " + getMaxNanos() + "ns]";
+    }
+
+    /**
+     * Values below 64 each get their own index; above that, the value's
+     * highest bits select the power of two and the sub-bucket within it.
+     */
+    static int indexOf(long value) {
+        int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+        return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+    }
+
+    private static int lastIndexAtOrBelow(long nanos) {
+        return nanos < 0L ? -1 : indexOf(Math.min(nanos, MAX_VALUE));
+    }
+
+    static long highestValueAt(int index) {
+        int shift = Math.max(0, (index >> SUB_BUCKET_BITS) - 1);
+        long subBucket = index - ((long) shift << SUB_BUCKET_BITS);
+        return ((subBucket + 1L) << shift) - 1L;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2004 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ziplet.filter.compression.statistics;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>A counter which many threads can update at once without contending on a single memory
+ * location. The count is split across several stripes, each on its own cache line, and a thread
+ * always updates the same stripe. Reading the count sums the stripes, so it is slower than
+ * updating it and, while updates are in progress, not an atomic snapshot.</p>
+ *
+ * <p>This plays the role of {@code java.util.concurrent.atomic.LongAdder}, which is not available
+ * in Java 7.</p>
+ *
+ * @since 2.4.2
+ */
+final class StripedCounter implements Serializable {
+
+    private static final long serialVersionUID = 7190224622837283071L;
+    private static final int MAX_STRIPES = 64;
+    // 128 bytes between stripes: a cache line, plus the adjacent one some CPUs prefetch with it
+    private static final int PADDING = 16;
+    private static final int NUM_STRIPES = numStripes();
+    /**
+     * @serial
+     */
+    private final AtomicLongArray stripes = new AtomicLongArray(NUM_STRIPES * PADDING);
+
+    void increment() {
+        add(1L);
+    }
+
+    void add(long delta) {
+        stripes.getAndAdd(stripeIndex(), delta);
+    }
+
+    long get() {
+        long sum = 0L;
+        for (int i = 0; i < stripes.length(); i += PADDING) {
+            sum += stripes.get(i);
+        }
+        return sum;
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(get());
+    }
+
+    private int stripeIndex() {
+        // spread sequential thread IDs across the stripes
+        long id = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+        int stripe = (int) (id >>> 32) & (stripes.length() / PADDING - 1);
+        return stripe * PADDING;
+    }
+
+    private static int numStripes() {
+        int processors = Math.min(Runtime.getRuntime().availableProcessors(), MAX_STRIPES);
+        // a power of two, at least the number of processors
+        return Integer.highestOneBit(Math.max(processors * 2 - 1, 1));
+    }
+}
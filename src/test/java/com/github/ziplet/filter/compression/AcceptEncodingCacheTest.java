@@ -0,0 +1,48 @@
+/*
+ * Copyright 2004 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ziplet.filter.compression;
+
+import com.github.ziplet.filter.compression.statistics.CompressingFilterStatsImpl;
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link AcceptEncodingCache}.
+ */
+public final class AcceptEncodingCacheTest extends TestCase {
+
+    public void testBounded() {
+        CompressingFilterStatsImpl stats = new CompressingFilterStatsImpl();
+        AcceptEncodingCache cache = new AcceptEncodingCache(3);
+        assertNull(cache.get("gzip", stats));
+        cache.put("gzip", "gzip", stats);
+        cache.put("deflate", "deflate", stats);
+        cache.put("gzip, deflate", "gzip", stats);
+        assertEquals("gzip", cache.get("gzip", stats));
+        // "gzip" was read since it was added, so "deflate" goes first
+        cache.put("x-gzip", "x-gzip", stats);
+        assertEquals(3, cache.size());
+        assertNull(cache.get("deflate", stats));
+        assertEquals("gzip", cache.get("gzip", stats));
+        assertEquals("x-gzip", cache.get("x-gzip", stats));
+        for (int i = 0; i < 100; i++) {
+            cache.put("gzip;q=0." + i, "gzip", stats);
+        }
+        assertEquals(3, cache.size());
+        assertEquals(3L, stats.getEncodingCacheHits());
+        assertEquals(2L, stats.getEncodingCacheMisses());
+        assertEquals(101L, stats.getEncodingCacheEvictions());
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2004 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ziplet.filter.compression;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link CoalescingOutputStream}.
+ */
+public final class CoalescingOutputStreamTest extends TestCase {
+
+    private CountingOutputStream out;
+    private BufferPool bufferPool;
+    private CoalescingOutputStream cos;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        out = new CountingOutputStream();
+        bufferPool = new BufferPool(8, 1);
+        cos = new CoalescingOutputStream(out, bufferPool);
+    }
+
+    public void testCoalesce() throws Exception {
+        for (int i = 0; i < 7; i++) {
+            cos.write(i);
+        }
+        assertEquals(0, out.size());
+        cos.write(new byte[] {7, 8}, 0, 2);
+        assertEquals(1, out.numWrites);
+        assertEquals(7, out.size());
+        cos.flush();
+        assertEquals(2, out.numWrites);
+        assertTrue(Arrays.equals(new byte[] {0, 1, 2, 3, 4, 5, 6, 7, 8}, out.toByteArray()));
+    }
+
+    public void testLargeWritePassesThrough() throws Exception {
+        cos.write(1);
+        cos.write(new byte[20]);
+        assertEquals(2, out.numWrites);
+        assertEquals(21, out.size());
+    }
+
+    public void testCloseReturnsBuffer() throws Exception {
+        cos.write(1);
+        cos.close();
+        assertEquals(1, out.size());
+        try {
+            cos.write(2);
+            fail();
+        } catch (IOException ioe) {
+            // good
+        }
+        // closing again, or releasing, has no effect
+        cos.close();
+        cos.release();
+    }
+
+    private static final class CountingOutputStream extends ByteArrayOutputStream {
+
+        private int numWrites;
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            numWrites++;
+            super.write(b, off, len);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2004 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ziplet.filter.compression;
+
+import com.github.ziplet.filter.compression.statistics.CompressingFilterStatsImpl;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link CodecPool}.
+ */
+public final class CodecPoolTest extends TestCase {
+
+    private CompressingFilterStatsImpl stats;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        stats = new CompressingFilterStatsImpl();
+    }
+
+    public void testDeflaterKey() {
+        for (int level = Deflater.DEFAULT_COMPRESSION; level <= Deflater.BEST_COMPRESSION; level++) {
+            for (int strategy = Deflater.DEFAULT_STRATEGY; strategy <= Deflater.HUFFMAN_ONLY;
+                strategy++) {
+                int key = CodecPool.deflaterKey(level, strategy, true);
+                assertEquals(level, CodecPool.levelOf(key));
+                assertEquals(strategy, CodecPool.strategyOf(key));
+                assertFalse(key == CodecPool.deflaterKey(level, strategy, false));
+            }
+        }
+    }
+
+    public void testReuse() {
+        CodecPool pool = new CodecPool(2, 0L);
+        int key = CodecPool.deflaterKey(Deflater.DEFAULT_COMPRESSION, Deflater.DEFAULT_STRATEGY,
+            true);
+        Deflater deflater = pool.borrowDeflater(key, stats);
+        assertNotNull(deflater);
+        pool.releaseDeflater(deflater, key);
+        assertSame(deflater, pool.borrowDeflater(key, stats));
+        Inflater inflater = pool.borrowInflater(true, stats);
+        pool.releaseInflater(inflater, true);
+        assertSame(inflater, pool.borrowInflater(true, stats));
+        assertNotSame(inflater, pool.borrowInflater(false, stats));
+        assertEquals(2L, stats.getCodecPoolHits());
+        assertEquals(3L, stats.getCodecPoolMisses());
+        pool.close();
+    }
+
+    public void testExhausted() {
+        CodecPool pool = new CodecPool(1, 0L);
+        int key = CodecPool.deflaterKey(Deflater.BEST_SPEED, Deflater.DEFAULT_STRATEGY, false);
+        Deflater deflater = pool.borrowDeflater(key, stats);
+        assertNotNull(deflater);
+        assertNull(pool.borrowDeflater(key, stats));
+        assertEquals(1L, stats.getCodecPoolExhaustions());
+        assertEquals(0L, stats.getCodecPoolWaits());
+        pool.releaseDeflater(deflater, key);
+        assertNotNull(pool.borrowDeflater(key, stats));
+        pool.close();
+    }
+
+    public void testLevelChange() {
+        CodecPool pool = new CodecPool(2, 0L);
+        int oldKey = CodecPool.deflaterKey(6, Deflater.DEFAULT_STRATEGY, true);
+        int newKey = CodecPool.deflaterKey(9, Deflater.DEFAULT_STRATEGY, true);
+        Deflater first = pool.borrowDeflater(oldKey, stats);
+        Deflater second = pool.borrowDeflater(oldKey, stats);
+        pool.releaseDeflater(first, oldKey);
+        pool.releaseDeflater(second, oldKey);
+        pool.endIdleDeflaters(6);
+        assertNotSame(first, pool.borrowDeflater(oldKey, stats));
+        pool.close();
+
+        // when the pool is full of deflaters of the old level, ones of the new level replace them
+        pool = new CodecPool(2, 0L);
+        first = pool.borrowDeflater(oldKey, stats);
+        second = pool.borrowDeflater(oldKey, stats);
+        pool.releaseDeflater(first, oldKey);
+        pool.releaseDeflater(second, oldKey);
+        Deflater newFirst = pool.borrowDeflater(newKey, stats);
+        Deflater newSecond = pool.borrowDeflater(newKey, stats);
+        pool.releaseDeflater(newFirst, newKey);
+        pool.releaseDeflater(newSecond, newKey);
+        assertSame(newFirst, pool.borrowDeflater(newKey, stats));
+        assertSame(newSecond, pool.borrowDeflater(newKey, stats));
+        pool.close();
+    }
+
+    public void testWaitTimesOut() {
+        CodecPool pool = new CodecPool(1, 10L);
+        Inflater inflater = pool.borrowInflater(false, stats);
+        assertNotNull(inflater);
+        assertNull(pool.borrowInflater(false, stats));
+        assertEquals(1L, stats.getCodecPoolWaits());
+        assertEquals(1L, stats.getCodecPoolExhaustions());
+        pool.releaseInflater(inflater, false);
+        pool.close();
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2004 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ziplet.filter.compression;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link CompressedFormats}.
+ */
+public final class CompressedFormatsTest extends TestCase {
+
+    public void testDetect() throws Exception {
+        assertEquals("png", detect("\u0089PNG\r\n\u001a\n\u0000\u0000\u0000\rIHDR"));
+        assertEquals("zip", detect("PK\u0003\u0004\u0014\u0000"));
+        assertEquals("webp", detect("RIFF\u0010\u0000\u0000\u0000WEBPVP8 "));
+        assertEquals("iso-bmff", detect("\u0000\u0000\u0000\u0018ftypmp42"));
+        assertEquals("gzip", detect("\u001f\u008b\u0008"));
+        // too short to tell
+        assertNull(detect("\u001f\u008b"));
+        assertNull(detect("<html><body>"));
+        assertNull(detect(""));
+    }
+
+    private static String detect(String data) throws Exception {
+        byte[] b = ("xx" + data).getBytes("ISO-8859-1");
+        return CompressedFormats.detect(b, 2, b.length - 2);
+    }
+}
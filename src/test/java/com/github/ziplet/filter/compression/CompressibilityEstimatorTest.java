@@ -0,0 +1,71 @@
+/*
+ * Copyright 2004 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ziplet.filter.compression;
+
+import java.util.Arrays;
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link CompressibilityEstimator}.
+ */
+public final class CompressibilityEstimatorTest extends TestCase {
+
+    public void testRandom() throws Exception {
+        byte[] random = CompressingFilterResponseTest.BIG_DOCUMENT.getBytes("ISO-8859-1");
+        double ratio = estimateRatio(random);
+        assertTrue(ratio > 0.95 && ratio < 1.05);
+    }
+
+    public void testBase64() {
+        // random characters from the base64 alphabet, so carrying 6 bits each
+        byte[] alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+            .getBytes();
+        byte[] base64 = new byte[4000];
+        Random random = new Random(1L);
+        for (int i = 0; i < base64.length; i++) {
+            base64[i] = alphabet[random.nextInt(alphabet.length)];
+        }
+        double ratio = estimateRatio(base64);
+        assertTrue(ratio > 1.2 && ratio < 1.5);
+    }
+
+    public void testText() throws Exception {
+        byte[] text = CompressingFilterResponseTest.BIG_TEXT_DOCUMENT.getBytes("ISO-8859-1");
+        assertTrue(estimateRatio(text) > 1.5);
+        byte[] same = new byte[5000];
+        Arrays.fill(same, (byte) 'x');
+        assertTrue(estimateRatio(same) > 50.0);
+    }
+
+    public void testReuse() throws Exception {
+        byte[] random = CompressingFilterResponseTest.BIG_DOCUMENT.getBytes("ISO-8859-1");
+        byte[] text = CompressingFilterResponseTest.BIG_TEXT_DOCUMENT.getBytes("ISO-8859-1");
+        CompressibilityEstimator estimator = new CompressibilityEstimator();
+        double randomRatio = estimator.estimateRatio(random, 0, random.length);
+        double textRatio = estimator.estimateRatio(text, 0, text.length);
+        assertEquals(randomRatio, estimator.estimateRatio(random, 0, random.length));
+        assertEquals(textRatio, estimateRatio(text));
+        // a sample inside a larger array
+        byte[] padded = new byte[text.length + 100];
+        System.arraycopy(text, 0, padded, 100, text.length);
+        assertEquals(textRatio, estimator.estimateRatio(padded, 100, text.length));
+    }
+
+    private static double estimateRatio(byte[] data) {
+        return new CompressibilityEstimator().estimateRatio(data, 0, data.length);
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2004 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ziplet.filter.compression;
+
+import com.mockrunner.mock.web.MockFilterConfig;
+import com.mockrunner.mock.web.WebMockObjectFactory;
+import java.lang.management.ManagementFactory;
+import java.util.zip.Deflater;
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.TabularData;
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link CompressingFilterManagement}.
+ */
+public final class CompressingFilterManagementTest extends TestCase {
+
+    private CompressingFilterContext context;
+    private ObjectName objectName;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        MockFilterConfig config = new WebMockObjectFactory().getMockFilterConfig();
+        config.setFilterName("testFilter");
+        config.setInitParameter("jmxEnabled", "true");
+        config.setInitParameter("statsEnabled", "true");
+        context = new CompressingFilterContext(config);
+        objectName = new ObjectName(
+            "com.github.ziplet:type=CompressingFilter,context=\"/\",name=\"testFilter\"");
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        if (context != null) {
+            context.destroy();
+        }
+        super.tearDown();
+    }
+
+    public void testAttributes() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertTrue(server.isRegistered(objectName));
+        assertEquals(Boolean.TRUE, server.getAttribute(objectName, "StatsEnabled"));
+        assertEquals(0L, server.getAttribute(objectName, "NumResponsesCompressed"));
+        context.getStats().incrementNumResponsesCompressed();
+        assertEquals(1L, server.getAttribute(objectName, "NumResponsesCompressed"));
+        context.getStats().notifyResponseCompressed("gzip", 1000L, 2000L);
+        TabularData times = (TabularData) server.getAttribute(objectName,
+            "ResponseCompressionTimes");
+        assertEquals(1, times.size());
+
+        server.setAttribute(objectName, new Attribute("CompressionLevel", Deflater.BEST_SPEED));
+        assertEquals(Deflater.BEST_SPEED, context.getCompressionLevel());
+        server.setAttribute(objectName, new Attribute("CompressionThreshold", 0));
+        assertEquals(0, context.getCompressionThreshold());
+    }
+
+    public void testUnregister() {
+        context.destroy();
+        context = null;
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(objectName));
+    }
+}
@@ -125,6 +125,7 @@ public final class CompressingFilterRequestTest extends TestCase {
             stats.getRequestAverageCompressionRatio());
         assertEquals((long) compressedBigDoc.length, stats.getRequestCompressedBytes());
         assertEquals((long) BIG_DOCUMENT.length, stats.getRequestInputBytes());
+        assertEquals(1L, stats.getRequestDecompressionTimes().get("gzip").getCount());
 
         assertEquals(0, stats.getNumResponsesCompressed());
         assertEquals(1, stats.getTotalResponsesNotCompressed());
@@ -15,6 +15,7 @@
  */
 package com.github.ziplet.filter.compression;
 
+import com.github.ziplet.filter.compression.statistics.CompressingFilterStats;
 import com.github.ziplet.filter.compression.statistics.CompressingFilterStatsImpl;
 import com.mockrunner.mock.web.MockFilterConfig;
 import com.mockrunner.mock.web.MockHttpServletRequest;
@@ -24,12 +25,15 @@ import com.mockrunner.servlet.ServletTestModule;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
 import java.util.Random;
 import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -158,6 +162,12 @@ public final class CompressingFilterResponseTest extends TestCase {
         assertEquals(0.9977, stats.getResponseAverageCompressionRatio(), 0.0001);
         assertEquals(10023L, stats.getResponseCompressedBytes());
         assertEquals(10000L, stats.getResponseInputBytes());
+
+        assertEquals(1L, stats.getResponseCompressionTimes().get("gzip").getCount());
+        assertEquals(1L, stats.getResponseTotalTimes().get("gzip").getCount());
+        assertTrue(stats.getResponseCompressionTimes().get("gzip").getMaxNanos()
+            <= stats.getResponseTotalTimes().get("gzip").getMaxNanos());
+        assertTrue(stats.getRequestDecompressionTimes().isEmpty());
     }
 
     public void testAlreadyApplied() throws Exception {
@@ -425,6 +435,194 @@ public final class CompressingFilterResponseTest extends TestCase {
         }
     }
 
+    public void testStreamingFlush() throws Exception {
+        factory = new WebMockObjectFactory();
+        MockFilterConfig config = factory.getMockFilterConfig();
+        config.setInitParameter("streamingContentTypes", "text/event-stream");
+        module = new ServletTestModule(factory);
+        module.addFilter(new CompressingFilter(), true);
+        module.setDoChain(true);
+        factory.getMockResponse().setCharacterEncoding(TEST_ENCODING);
+        factory.getMockRequest().addHeader("Accept-Encoding", "gzip");
+
+        final String[] flushedOutput = new String[1];
+        module.setServlet(new HttpServlet() {
+            @Override
+            public void doGet(HttpServletRequest request, HttpServletResponse response)
+                throws IOException {
+                response.setContentType("text/event-stream");
+                response.getWriter().print(SMALL_DOCUMENT);
+                response.flushBuffer();
+                flushedOutput[0] = factory.getMockResponse().getOutputStreamContent();
+                response.getWriter().print(SMALL_DOCUMENT);
+            }
+        });
+
+        module.doGet();
+
+        // What was flushed can be decompressed already, without the rest of the stream
+        byte[] flushed = flushedOutput[0].getBytes(TEST_ENCODING);
+        Inflater inflater = new Inflater(true);
+        inflater.setInput(flushed, 10, flushed.length - 10); // skip gzip header
+        byte[] inflated = new byte[SMALL_DOCUMENT.length() * 2];
+        int inflatedLength = inflater.inflate(inflated);
+        inflater.end();
+        assertEquals(SMALL_DOCUMENT, new String(inflated, 0, inflatedLength, TEST_ENCODING));
+
+        assertEquals("gzip", factory.getMockResponse().getHeader("Content-Encoding"));
+        assertEquals(SMALL_DOCUMENT + SMALL_DOCUMENT,
+            new String(uncompressGzip(module.getOutput().getBytes(TEST_ENCODING)), TEST_ENCODING));
+    }
+
+    public void testProgressive() throws Exception {
+        factory = new WebMockObjectFactory();
+        MockFilterConfig config = factory.getMockFilterConfig();
+        config.setInitParameter("progressivePathPatterns", "/page.*");
+        config.setInitParameter("progressiveSize", "2000");
+        module = new ServletTestModule(factory);
+        module.addFilter(new CompressingFilter(), true);
+        module.setDoChain(true);
+        factory.getMockResponse().setCharacterEncoding(TEST_ENCODING);
+        factory.getMockRequest().addHeader("Accept-Encoding", "gzip");
+        factory.getMockRequest().setRequestURI("/page");
+
+        final byte[] document = BIG_TEXT_DOCUMENT.getBytes(TEST_ENCODING);
+        final int firstLength = 20000;
+        final String[] flushedOutput = new String[1];
+        module.setServlet(new HttpServlet() {
+            @Override
+            public void doGet(HttpServletRequest request, HttpServletResponse response)
+                throws IOException {
+                OutputStream out = response.getOutputStream();
+                out.write(document, 0, firstLength);
+                flushedOutput[0] = factory.getMockResponse().getOutputStreamContent();
+                out.write(document, firstLength, document.length - firstLength);
+            }
+        });
+
+        module.doGet();
+
+        // The start was sent without flushing, and can be decompressed already
+        byte[] flushed = flushedOutput[0].getBytes(TEST_ENCODING);
+        Inflater inflater = new Inflater(true);
+        inflater.setInput(flushed, 10, flushed.length - 10); // skip gzip header
+        byte[] inflated = new byte[firstLength];
+        int inflatedLength = inflater.inflate(inflated);
+        inflater.end();
+        assertEquals(firstLength, inflatedLength);
+        assertTrue(Arrays.equals(document,
+            uncompressGzip(module.getOutput().getBytes(TEST_ENCODING))));
+    }
+
+    public void testFullBuffer() throws Exception {
+        factory = new WebMockObjectFactory();
+        MockFilterConfig config = factory.getMockFilterConfig();
+        config.setInitParameter("fullBufferSize", "100000");
+        module = new ServletTestModule(factory);
+        module.addFilter(new CompressingFilter(), true);
+        module.setDoChain(true);
+        factory.getMockResponse().setCharacterEncoding(TEST_ENCODING);
+        factory.getMockRequest().addHeader("Accept-Encoding", "gzip");
+        module.setServlet(new HttpServlet() {
+            @Override
+            public void doGet(HttpServletRequest request, HttpServletResponse response)
+                throws IOException {
+                response.getWriter().print(BIG_DOCUMENT);
+                // held back, not written yet
+                response.flushBuffer();
+                assertEquals("", factory.getMockResponse().getOutputStreamContent());
+            }
+        });
+
+        module.doGet();
+
+        String output = module.getOutput();
+        assertEquals(String.valueOf(output.length()),
+            factory.getMockResponse().getHeader("Content-Length"));
+        assertEquals(BIG_DOCUMENT,
+            new String(uncompressGzip(output.getBytes(TEST_ENCODING)), TEST_ENCODING));
+    }
+
+    public void testBestOf() throws Exception {
+        // random bytes don't compress
+        assertEquals(BIG_DOCUMENT, doGet("bestOfSize", "100000", BIG_DOCUMENT));
+        assertNull(factory.getMockResponse().getHeader("Content-Encoding"));
+        assertNull(module.getRequestAttribute(CompressingFilter.COMPRESSED_KEY));
+
+        String output = doGet("bestOfSize", "100000", BIG_TEXT_DOCUMENT);
+        assertEquals("gzip", factory.getMockResponse().getHeader("Content-Encoding"));
+        assertEquals(String.valueOf(output.length()),
+            factory.getMockResponse().getHeader("Content-Length"));
+        assertEquals(BIG_TEXT_DOCUMENT,
+            new String(uncompressGzip(output.getBytes(TEST_ENCODING)), TEST_ENCODING));
+    }
+
+    public void testMinCompressionRatio() throws Exception {
+        assertEquals(BIG_DOCUMENT, doGet("minCompressionRatio", "1.1", BIG_DOCUMENT));
+        assertNull(factory.getMockResponse().getHeader("Content-Encoding"));
+
+        String output = doGet("minCompressionRatio", "1.1", BIG_TEXT_DOCUMENT);
+        assertEquals("gzip", factory.getMockResponse().getHeader("Content-Encoding"));
+        assertEquals(BIG_TEXT_DOCUMENT,
+            new String(uncompressGzip(output.getBytes(TEST_ENCODING)), TEST_ENCODING));
+    }
+
+    public void testCompressedFormat() throws Exception {
+        String png = "\u0089PNG\r\n\u001a\n" + BIG_TEXT_DOCUMENT;
+        assertEquals(png, doGet("statsEnabled", "true", png));
+        assertNull(factory.getMockResponse().getHeader("Content-Encoding"));
+        CompressingFilterStatsImpl stats = (CompressingFilterStatsImpl) factory
+            .getMockServletContext().getAttribute(CompressingFilterStatsImpl.STATS_KEY);
+        assertEquals(1L, stats.getCompressedFormatsDetected());
+    }
+
+    public void testStatsWithoutDetailedNotifications() throws Exception {
+        factory = new WebMockObjectFactory();
+        module = new ServletTestModule(factory);
+        CompressingFilter filter = new CompressingFilter();
+        PlainStats stats = new PlainStats();
+        filter.setCompressingFilterStats(stats);
+        module.addFilter(filter, true);
+        module.setDoChain(true);
+        factory.getMockResponse().setCharacterEncoding(TEST_ENCODING);
+        factory.getMockRequest().addHeader("Accept-Encoding", "gzip");
+        module.setServlet(new HttpServlet() {
+            @Override
+            public void doGet(HttpServletRequest request, HttpServletResponse response)
+                throws IOException {
+                response.getWriter().print(BIG_TEXT_DOCUMENT);
+            }
+        });
+        module.doGet();
+        assertEquals("gzip", factory.getMockResponse().getHeader("Content-Encoding"));
+        assertEquals(1, stats.responsesCompressed);
+        assertEquals((long) BIG_TEXT_DOCUMENT.length(), stats.responseBytesWritten);
+        assertSame(stats, factory.getMockServletContext().getAttribute(stats.getStatsKey()));
+    }
+
+    /**
+     * @return output of a GET request accepting gzip, to a filter with the given init parameter
+     */
+    private String doGet(String parameter, String value, final String document) {
+        factory = new WebMockObjectFactory();
+        MockFilterConfig config = factory.getMockFilterConfig();
+        config.setInitParameter(parameter, value);
+        module = new ServletTestModule(factory);
+        module.addFilter(new CompressingFilter(), true);
+        module.setDoChain(true);
+        factory.getMockResponse().setCharacterEncoding(TEST_ENCODING);
+        factory.getMockRequest().addHeader("Accept-Encoding", "gzip");
+        module.setServlet(new HttpServlet() {
+            @Override
+            public void doGet(HttpServletRequest request, HttpServletResponse response)
+                throws IOException {
+                response.getWriter().print(document);
+            }
+        });
+        module.doGet();
+        return module.getOutput();
+    }
+
     private void doTestNoOutput() {
         module.setServlet(new HttpServlet() {
             @Override
@@ -503,4 +701,43 @@ public final class CompressingFilterResponseTest extends TestCase {
 
 
     }
+
+    /**
+     * Implements only what {@link CompressingFilterStats} always required.
+     */
+    private static final class PlainStats implements CompressingFilterStats {
+
+        private int responsesCompressed;
+        private long responseBytesWritten;
+
+        public void incrementNumResponsesCompressed() {
+            responsesCompressed++;
+        }
+
+        public void incrementTotalResponsesNotCompressed() {
+        }
+
+        public void incrementNumRequestsCompressed() {
+        }
+
+        public void incrementTotalRequestsNotCompressed() {
+        }
+
+        public void notifyRequestBytesRead(long read) {
+        }
+
+        public void notifyCompressedRequestBytesRead(long read) {
+        }
+
+        public void notifyResponseBytesWritten(long written) {
+            responseBytesWritten += written;
+        }
+
+        public void notifyCompressedResponseBytesWritten(long written) {
+        }
+
+        public String getStatsKey() {
+            return PlainStats.class.getName();
+        }
+    }
 }
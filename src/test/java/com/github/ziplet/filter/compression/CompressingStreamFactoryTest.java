@@ -0,0 +1,92 @@
+/*
+ * Copyright 2004 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ziplet.filter.compression;
+
+import com.mockrunner.mock.web.MockFilterConfig;
+import com.mockrunner.mock.web.WebMockObjectFactory;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link CompressingStreamFactory}.
+ */
+public final class CompressingStreamFactoryTest extends TestCase {
+
+    public void testSelectBestEncoding() {
+        assertBest("gzip", "gzip");
+        assertBest("gzip", " gzip ");
+        assertBest("deflate", "deflate");
+        assertBest("gzip", "deflate, gzip");
+        assertBest("gzip", "gzip,deflate,br");
+        assertBest("deflate", "gzip;q=0.5, deflate");
+        assertBest("deflate", "gzip; q=0.5 , deflate;q=0.8");
+        assertBest("gzip", "gzip;q=1.0, identity; q=0.5, *;q=0");
+        assertBest("identity", "identity");
+        assertBest("identity", "br");
+        assertBest("identity", "gzip;q=0");
+        assertBest("identity", "gzip;q=0.000");
+        assertBest("gzip", "gzip;q=0.0001");
+        assertBest("gzip", "*");
+        assertBest("deflate", "gzip;q=0, *");
+        assertBest("gzip", "br, *;q=0.1");
+        assertBest("identity", "*;q=0");
+        assertBest("identity", "gzip;q=0, deflate;q=0, compress;q=0, x-gzip;q=0, x-compress;q=0, "
+            + "identity;q=0, *");
+        assertBest("x-gzip", "x-gzip, deflate;q=.5");
+        assertBest("gzip", "GZIP, gzip;q=0.1");
+        // invalid q-values are ignored
+        assertBest("gzip", "gzip;q=abc, deflate");
+        assertBest("gzip", "gzip;q=, deflate");
+        assertBest("gzip", "gzip;q=0.5;foo=bar, deflate");
+        assertBest("deflate", "gzip;q=-1, deflate");
+        assertBest("identity", "");
+        assertBest("gzip", ",, gzip ,");
+    }
+
+    public void testGetQValue() {
+        assertEquals(1000, CompressingStreamFactory.getQValue("gzip, br", "br"));
+        assertEquals(500, CompressingStreamFactory.getQValue("gzip, br;q=0.5", "br"));
+        assertEquals(0, CompressingStreamFactory.getQValue("gzip", "br"));
+        assertEquals(0, CompressingStreamFactory.getQValue("br;q=0, *", "br"));
+        assertEquals(100, CompressingStreamFactory.getQValue("gzip, *;q=0.1", "zstd"));
+        assertEquals(1000, CompressingStreamFactory.getQValue("BR", "br"));
+    }
+
+    public void testStatsStreamsOnlyWhenEnabled() throws Exception {
+        assertFalse(getCompressingOutputStream(false) instanceof StatsOutputStream);
+        assertTrue(getCompressingOutputStream(true) instanceof StatsOutputStream);
+    }
+
+    private static OutputStream getCompressingOutputStream(boolean statsEnabled)
+        throws Exception {
+        MockFilterConfig config = new WebMockObjectFactory().getMockFilterConfig();
+        config.setInitParameter("statsEnabled", String.valueOf(statsEnabled));
+        CompressingFilterContext context = new CompressingFilterContext(config);
+        CompressingOutputStream compressingOutputStream = CompressingStreamFactory
+            .getFactoryForContentEncoding("gzip")
+            .getCompressingStream(new ByteArrayOutputStream(), context);
+        OutputStream result = compressingOutputStream.getCompressingOutputStream();
+        compressingOutputStream.release();
+        context.destroy();
+        return result;
+    }
+
+    private static void assertBest(String expected, String acceptEncoding) {
+        assertEquals(acceptEncoding, expected,
+            CompressingStreamFactory.selectBestEncoding(acceptEncoding));
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2004 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ziplet.filter.compression;
+
+import com.mockrunner.mock.web.MockFilterConfig;
+import com.mockrunner.mock.web.MockHttpServletResponse;
+import com.mockrunner.mock.web.WebMockObjectFactory;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link DiskResponseCache}.
+ */
+public final class DiskResponseCacheTest extends TestCase {
+
+    private static final String TEST_ENCODING = "ISO-8859-1";
+    private BufferPool bufferPool;
+    private File directory;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        bufferPool = new BufferPool(1000, 4);
+        directory = Files.createTempDirectory("ziplet").toFile();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        for (File file : directory.listFiles()) {
+            assertTrue(file.delete());
+        }
+        assertTrue(directory.delete());
+        super.tearDown();
+    }
+
+    public void testInvalidConfigOpensNothing() throws Exception {
+        int timerThreads = countTimerThreads();
+        WebMockObjectFactory factory = new WebMockObjectFactory();
+        MockFilterConfig config = factory.getMockFilterConfig();
+        config.setInitParameter("responseCacheSize", "1000000");
+        config.setInitParameter("responseCacheDirectory", directory.getPath());
+        config.setInitParameter("autoFlushMillis", "100");
+        config.setInitParameter("includeContentTypes", "text/html");
+        config.setInitParameter("excludeContentTypes", "image/png");
+        try {
+            new CompressingFilterContext(config);
+            fail();
+        } catch (IllegalArgumentException iae) {
+            // good
+        }
+        assertEquals(0, directory.listFiles().length);
+        assertEquals(timerThreads, countTimerThreads());
+    }
+
+    public void testServeAfterRestart() throws Exception {
+        DiskResponseCache cache = new DiskResponseCache(directory, DiskResponseCache.MIN_SIZE);
+        long now = System.currentTimeMillis();
+        String body = CompressingFilterResponseTest.BIG_DOCUMENT;
+        CapturingHttpServletResponse capture = capture("/a", body);
+        capture.setContentType("text/plain");
+        capture.setHeader("ETag", "\"abc-gzip\"");
+        capture.setDateHeader("Last-Modified", 1000000L);
+        cache.put(capture, now, now + 60000L);
+        capture.release();
+        assertFalse(cache.serve("/b", null, newResponse(), now));
+        assertServed(cache, "/a", body, now);
+        cache.close();
+
+        cache = new DiskResponseCache(directory, DiskResponseCache.MIN_SIZE);
+        assertEquals(1, cache.getEntryCount());
+        MockHttpServletResponse response = assertServed(cache, "/a", body, now + 5000L);
+        assertEquals("text/plain", response.getContentType());
+        assertEquals("\"abc-gzip\"", response.getHeader("ETag"));
+        assertEquals("5", response.getHeader("Age"));
+        assertTrue(response.containsHeader("Last-Modified"));
+        assertFalse(cache.serve("/a", null, newResponse(), now + 60000L));
+        cache.close();
+    }
+
+    public void testCorruptRecordIsIgnored() throws Exception {
+        DiskResponseCache cache = new DiskResponseCache(directory, DiskResponseCache.MIN_SIZE);
+        long now = System.currentTimeMillis();
+        put(cache, "/a", "first", now);
+        put(cache, "/b", "second", now);
+        cache.close();
+        // without index files, segments are read from the start
+        for (File file : directory.listFiles()) {
+            if (file.getName().endsWith(".idx")) {
+                assertTrue(file.delete());
+            }
+        }
+        File segmentFile = new File(directory, "0.seg");
+        String contents = new String(Files.readAllBytes(segmentFile.toPath()), TEST_ENCODING);
+        RandomAccessFile segment = new RandomAccessFile(segmentFile, "rw");
+        try {
+            segment.seek(contents.indexOf("second"));
+            segment.write('x');
+        } finally {
+            segment.close();
+        }
+
+        cache = new DiskResponseCache(directory, DiskResponseCache.MIN_SIZE);
+        assertServed(cache, "/a", "first", now);
+        assertFalse(cache.serve("/b", null, newResponse(), now));
+        cache.close();
+    }
+
+    public void testCompactionKeepsRequestedResponses() throws Exception {
+        DiskResponseCache cache = new DiskResponseCache(directory, DiskResponseCache.MIN_SIZE);
+        long now = System.currentTimeMillis();
+        char[] chars = new char[10000];
+        Arrays.fill(chars, 'x');
+        String body = new String(chars);
+        put(cache, "/hot", body, now);
+        for (int i = 0; i < 50; i++) {
+            put(cache, "/cold" + i, body, now);
+            assertServed(cache, "/hot", body, now);
+        }
+        assertFalse(cache.serve("/cold0", null, newResponse(), now));
+        assertServed(cache, "/cold49", body, now);
+        assertTrue(cache.getEntryCount() < 20);
+        assertTrue(directory.list().length <= 6);
+        cache.close();
+    }
+
+    public void testReopenSmaller() throws Exception {
+        DiskResponseCache cache =
+            new DiskResponseCache(directory, 16L * DiskResponseCache.MIN_SIZE);
+        long now = System.currentTimeMillis();
+        char[] chars = new char[10000];
+        Arrays.fill(chars, 'x');
+        String body = new String(chars);
+        for (int i = 0; i < 60; i++) {
+            put(cache, "/" + i, body, now);
+        }
+        cache.close();
+
+        cache = new DiskResponseCache(directory, DiskResponseCache.MIN_SIZE);
+        assertFalse(cache.serve("/0", null, newResponse(), now));
+        assertTrue(cache.getEntryCount() < 60);
+        cache.close();
+    }
+
+    private void put(DiskResponseCache cache, String key, String body, long now)
+        throws IOException {
+        CapturingHttpServletResponse capture = capture(key, body);
+        cache.put(capture, now, now + 60000L);
+        capture.release();
+    }
+
+    private MockHttpServletResponse assertServed(DiskResponseCache cache, String key, String body,
+        long now) throws IOException {
+        MockHttpServletResponse response = newResponse();
+        assertTrue(cache.serve(key, null, response, now));
+        assertEquals(body, response.getOutputStreamContent());
+        return response;
+    }
+
+    private CapturingHttpServletResponse capture(String key, String body) throws IOException {
+        CapturingHttpServletResponse capture =
+            new CapturingHttpServletResponse(newResponse(), key, null, bufferPool,
+                Integer.MAX_VALUE);
+        capture.getOutputStream().write(body.getBytes(TEST_ENCODING));
+        return capture;
+    }
+
+    private static MockHttpServletResponse newResponse() {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        response.setCharacterEncoding(TEST_ENCODING);
+        return response;
+    }
+
+    private static int countTimerThreads() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("CompressingFilter-timer-")) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2004 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ziplet.filter.compression;
+
+import com.mockrunner.mock.web.MockHttpServletRequest;
+import com.mockrunner.mock.web.MockHttpServletResponse;
+import com.mockrunner.mock.web.WebMockObjectFactory;
+import com.mockrunner.servlet.ServletTestModule;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link ETags}.
+ */
+public final class ETagsTest extends TestCase {
+
+    public void testAddSuffix() {
+        assertEquals("\"abc-gzip\"", ETags.addSuffix("\"abc\"", "gzip"));
+        assertEquals("abc-gzip", ETags.addSuffix("abc", "gzip"));
+        assertEquals("-gzip", ETags.addSuffix("", "gzip"));
+    }
+
+    public void testRemoveSuffixes() {
+        String unsuffixed = "\"abc\", \"def-deflate\"";
+        assertSame(unsuffixed, ETags.removeSuffixes(unsuffixed, "gzip"));
+        assertEquals("\"abc\"", ETags.removeSuffixes("\"abc-gzip\"", "gzip"));
+        assertEquals("\"abc\", W/\"def\", \"gzip\"",
+            ETags.removeSuffixes("\"abc-gzip\", W/\"def-gzip\", \"gzip\"", "gzip"));
+        assertEquals("\"abc-gzipx\"", ETags.removeSuffixes("\"abc-gzipx\"", "gzip"));
+    }
+
+    public void testMatches() {
+        assertTrue(ETags.matches("\"abc\"", "\"abc\""));
+        assertTrue(ETags.matches(" \"x\" , W/\"abc\" ", "\"abc\""));
+        assertTrue(ETags.matches("\"abc\"", "W/\"abc\""));
+        assertTrue(ETags.matches("*", "\"abc\""));
+        assertFalse(ETags.matches("\"abcd\", \"ab\"", "\"abc\""));
+        assertFalse(ETags.matches("", "\"abc\""));
+    }
+
+    public void testNotModifiedForCompressedETag() throws Exception {
+        WebMockObjectFactory factory = new WebMockObjectFactory();
+        ServletTestModule module = new ServletTestModule(factory);
+        module.addFilter(new CompressingFilter(), true);
+        module.setDoChain(true);
+        module.setServlet(new HttpServlet() {
+            @Override
+            public void doGet(HttpServletRequest request, HttpServletResponse response)
+                throws IOException {
+                response.setHeader("ETag", "\"abc\"");
+                if ("\"abc\"".equals(request.getHeader("If-None-Match"))) {
+                    response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                } else {
+                    response.getWriter().print(CompressingFilterResponseTest.BIG_TEXT_DOCUMENT);
+                }
+            }
+        });
+        MockHttpServletRequest request = factory.getMockRequest();
+        request.setHeader("Accept-Encoding", "gzip");
+        factory.getMockResponse().setCharacterEncoding("ISO-8859-1");
+        module.doGet();
+        MockHttpServletResponse response = factory.getMockResponse();
+        assertEquals("\"abc-gzip\"", response.getHeader("ETag"));
+
+        request.clearAttributes();
+        request.setHeader("If-None-Match", "\"abc-gzip\"");
+        response.resetAll();
+        module.doGet();
+        assertEquals(HttpServletResponse.SC_NOT_MODIFIED, response.getStatusCode());
+        assertEquals("\"abc-gzip\"", response.getHeader("ETag"));
+    }
+
+    public void testGeneratedETag() throws Exception {
+        WebMockObjectFactory factory = new WebMockObjectFactory();
+        factory.getMockFilterConfig().setInitParameter("generateETags", "true");
+        factory.getMockFilterConfig().setInitParameter("responseCacheSize", "1000000");
+        ServletTestModule module = new ServletTestModule(factory);
+        module.addFilter(new CompressingFilter(), true);
+        module.setDoChain(true);
+        final AtomicInteger invocations = new AtomicInteger();
+        module.setServlet(new HttpServlet() {
+            @Override
+            public void doGet(HttpServletRequest request, HttpServletResponse response)
+                throws IOException {
+                invocations.incrementAndGet();
+                response.setHeader("Cache-Control", "max-age=60");
+                response.getWriter().print(CompressingFilterResponseTest.BIG_TEXT_DOCUMENT);
+            }
+        });
+        MockHttpServletRequest request = factory.getMockRequest();
+        request.setMethod("GET");
+        request.setRequestURI("/page");
+        request.setHeader("Accept-Encoding", "gzip");
+        MockHttpServletResponse response = factory.getMockResponse();
+        response.setCharacterEncoding("ISO-8859-1");
+        module.doGet();
+        byte[] body = CompressingFilterResponseTest.BIG_TEXT_DOCUMENT.getBytes("ISO-8859-1");
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        String eTag = "\"" + Long.toHexString(crc.getValue()) + '-'
+            + Integer.toHexString(body.length) + "-gzip\"";
+        assertEquals(eTag, response.getHeader("ETag"));
+
+        // answered from the response cache
+        request.clearAttributes();
+        request.setHeader("If-None-Match", eTag);
+        response.resetAll();
+        module.doGet();
+        assertEquals(HttpServletResponse.SC_NOT_MODIFIED, response.getStatusCode());
+        assertEquals(1, invocations.get());
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2004 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ziplet.filter.compression;
+
+import com.github.ziplet.filter.compression.statistics.CompressingFilterDetailedStats;
+import com.github.ziplet.filter.compression.statistics.CompressingFilterEmptyStats;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Compares lookups in {@link AcceptEncodingCache} with those in a synchronized map, as previously
+ * used, from 1 up to 64 threads. Total throughput of the former should grow with the number of
+ * threads up to the number of cores, and then stay flat rather than fall off under contention.
+ */
+public final class EncodingCacheBenchmark {
+
+    private static final int LOOKUPS_PER_THREAD = 2000000;
+    private static final String[] HEADERS = {
+        "gzip, deflate", "gzip, deflate, br", "gzip,deflate", "gzip", "deflate, gzip",
+        "gzip;q=1.0, identity; q=0.5, *;q=0", "br;q=1.0, gzip;q=0.8, *;q=0.1", "identity",
+        "gzip, deflate, sdch", "x-gzip", "compress, gzip", "*"
+    };
+
+    private EncodingCacheBenchmark() {
+        // do nothing
+    }
+
+    public static void main(String... args) throws InterruptedException {
+        final CompressingFilterDetailedStats stats = new CompressingFilterEmptyStats();
+        final AcceptEncodingCache cache = new AcceptEncodingCache(256);
+        final Map<String, String> synchronizedMap =
+            Collections.synchronizedMap(new HashMap<String, String>(101));
+        for (String header : HEADERS) {
+            cache.put(header, "gzip", stats);
+            synchronizedMap.put(header, "gzip");
+        }
+
+        Lookup cacheLookup = new Lookup() {
+            public String get(String header) {
+                return cache.get(header, stats);
+            }
+        };
+        Lookup mapLookup = new Lookup() {
+            public String get(String header) {
+                return synchronizedMap.get(header);
+            }
+        };
+
+        // warm up
+        run(cacheLookup, 4);
+        run(mapLookup, 4);
+
+        System.out.println("threads\tAcceptEncodingCache\tsynchronizedMap (lookups/ms)");
+        for (int threads = 1; threads <= 64; threads *= 2) {
+            System.out.println(threads + "\t" + run(cacheLookup, threads)
+                + '\t' + run(mapLookup, threads));
+        }
+    }
+
+    private static long run(final Lookup lookup, int numThreads) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(numThreads);
+        for (int i = 0; i < numThreads; i++) {
+            final int offset = i;
+            new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                    int found = 0;
+                    for (int j = 0; j < LOOKUPS_PER_THREAD; j++) {
+                        if (lookup.get(HEADERS[(j + offset) % HEADERS.length]) != null) {
+                            found++;
+                        }
+                    }
+                    if (found != LOOKUPS_PER_THREAD) {
+                        throw new IllegalStateException();
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        long startTime = System.nanoTime();
+        start.countDown();
+        done.await();
+        long millis = Math.max(1L, (System.nanoTime() - startTime) / 1000000L);
+        return (long) numThreads * LOOKUPS_PER_THREAD / millis;
+    }
+
+    private interface Lookup {
+
+        String get(String header);
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2004 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ziplet.filter.compression;
+
+import com.mockrunner.mock.web.WebMockObjectFactory;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link FlightRecorderEvents}.
+ */
+public final class FlightRecorderEventsTest extends TestCase {
+
+    private CompressingFilterContext context;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        context = new CompressingFilterContext(
+            new WebMockObjectFactory().getMockFilterConfig());
+    }
+
+    public void testCompressedResponseEvents() throws Exception {
+        Recording recording = startRecording();
+        ThresholdOutputStream tos = newThresholdOutputStream();
+        tos.write(CompressingFilterResponseTest.BIG_DOCUMENT.getBytes("ISO-8859-1"));
+        tos.close();
+        List<RecordedEvent> events = stopRecording(recording);
+
+        RecordedEvent decision = findEvent(events, "com.github.ziplet.ThresholdDecision");
+        assertTrue(decision.getBoolean("compressed"));
+        assertEquals(context.getCompressionThreshold(), decision.getInt("threshold"));
+        assertNotNull(findEvent(events, "com.github.ziplet.StreamSwitch"));
+        RecordedEvent finish = findEvent(events, "com.github.ziplet.Finish");
+        assertTrue(finish.getLong("compressionTime") > 0L);
+    }
+
+    public void testUncompressedResponseEvents() throws Exception {
+        Recording recording = startRecording();
+        ThresholdOutputStream tos = newThresholdOutputStream();
+        tos.write(CompressingFilterResponseTest.SMALL_DOCUMENT.getBytes("ISO-8859-1"));
+        tos.forceOutputStream1();
+        tos.close();
+        FlightRecorderEvents.compressionAborted("no-transform");
+        List<RecordedEvent> events = stopRecording(recording);
+
+        RecordedEvent decision = findEvent(events, "com.github.ziplet.ThresholdDecision");
+        assertFalse(decision.getBoolean("compressed"));
+        assertEquals(4, decision.getInt("bufferedBytes"));
+        assertEquals("no-transform",
+            findEvent(events, "com.github.ziplet.CompressionAborted").getString("reason"));
+        assertNull(findEvent(events, "com.github.ziplet.Finish"));
+    }
+
+    private ThresholdOutputStream newThresholdOutputStream() {
+        return new ThresholdOutputStream(new ByteArrayOutputStream(),
+            CompressingStreamFactory.getFactoryForContentEncoding("gzip"),
+            context,
+            new ThresholdOutputStream.BufferCommitmentCallback() {
+                public void rawStreamCommitted() {
+                }
+
+                public void compressingStreamCommitted() {
+                }
+
+                public void compressingStreamFinished(String entityTag, long compressedLength) {
+                }
+            });
+    }
+
+    private static Recording startRecording() {
+        Recording recording = new Recording();
+        recording.enable("com.github.ziplet.ThresholdDecision").withoutThreshold();
+        recording.enable("com.github.ziplet.CompressionAborted").withoutThreshold();
+        recording.enable("com.github.ziplet.StreamSwitch").withoutThreshold();
+        recording.enable("com.github.ziplet.Finish").withoutThreshold();
+        recording.start();
+        return recording;
+    }
+
+    private static List<RecordedEvent> stopRecording(Recording recording) throws Exception {
+        recording.stop();
+        File file = File.createTempFile("ziplet", ".jfr");
+        try {
+            recording.dump(file.toPath());
+            return new ArrayList<RecordedEvent>(RecordingFile.readAllEvents(file.toPath()));
+        } finally {
+            recording.close();
+            file.delete();
+        }
+    }
+
+    private static RecordedEvent findEvent(List<RecordedEvent> events, String name) {
+        for (RecordedEvent event : events) {
+            if (name.equals(event.getEventType().getName())) {
+                return event;
+            }
+        }
+        return null;
+    }
+}
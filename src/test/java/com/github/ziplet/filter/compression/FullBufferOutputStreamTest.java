@@ -0,0 +1,114 @@
+/*
+ * Copyright 2004 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ziplet.filter.compression;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link FullBufferOutputStream}.
+ */
+public final class FullBufferOutputStreamTest extends TestCase {
+
+    private ByteArrayOutputStream out;
+    private BufferPool bufferPool;
+    private File tempDirectory;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        out = new ByteArrayOutputStream();
+        bufferPool = new BufferPool(8, 4);
+        tempDirectory = File.createTempFile("fullbuffer", "");
+        assertTrue(tempDirectory.delete());
+        assertTrue(tempDirectory.mkdir());
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        assertTrue(tempDirectory.delete());
+        super.tearDown();
+    }
+
+    public void testHoldInMemory() throws Exception {
+        FullBufferOutputStream fbos = new FullBufferOutputStream(out, bufferPool, 20L, 0L,
+            tempDirectory);
+        byte[] data = bytes(20);
+        fbos.write(data[0]);
+        fbos.write(data, 1, 19);
+        fbos.flush();
+        assertEquals(0, out.size());
+        assertEquals(20L, fbos.getHeldLength());
+        fbos.close();
+        assertTrue(Arrays.equals(data, out.toByteArray()));
+    }
+
+    public void testSpillToFile() throws Exception {
+        FullBufferOutputStream fbos = new FullBufferOutputStream(out, bufferPool, 10L, 100L,
+            tempDirectory);
+        byte[] data = bytes(50);
+        fbos.write(data, 0, 25);
+        fbos.write(data, 25, 25);
+        assertEquals(0, out.size());
+        assertEquals(50L, fbos.getHeldLength());
+        assertEquals(1, tempDirectory.list().length);
+        fbos.close();
+        assertTrue(Arrays.equals(data, out.toByteArray()));
+        assertEquals(0, tempDirectory.list().length);
+        try {
+            fbos.write(1);
+            fail();
+        } catch (IOException ioe) {
+            // good
+        }
+    }
+
+    public void testPassThroughBeyondLimits() throws Exception {
+        FullBufferOutputStream fbos = new FullBufferOutputStream(out, bufferPool, 10L, 10L,
+            tempDirectory);
+        byte[] data = bytes(30);
+        fbos.write(data, 0, 15);
+        assertEquals(0, out.size());
+        fbos.write(data, 15, 10);
+        // gave up holding data back
+        assertEquals(25, out.size());
+        assertEquals(-1L, fbos.getHeldLength());
+        assertEquals(0, tempDirectory.list().length);
+        fbos.write(data, 25, 5);
+        fbos.close();
+        assertTrue(Arrays.equals(data, out.toByteArray()));
+    }
+
+    public void testRelease() throws Exception {
+        FullBufferOutputStream fbos = new FullBufferOutputStream(out, bufferPool, 10L, 100L,
+            tempDirectory);
+        fbos.write(bytes(50));
+        fbos.release();
+        assertEquals(0, tempDirectory.list().length);
+        assertEquals(0, out.size());
+    }
+
+    private static byte[] bytes(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) i;
+        }
+        return data;
+    }
+}
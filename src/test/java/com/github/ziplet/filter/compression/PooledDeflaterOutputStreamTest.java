@@ -0,0 +1,74 @@
+/*
+ * Copyright 2004 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ziplet.filter.compression;
+
+import com.github.ziplet.filter.compression.statistics.CompressingFilterStatsImpl;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.InflaterInputStream;
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link PooledDeflaterOutputStream}.
+ */
+public final class PooledDeflaterOutputStreamTest extends TestCase {
+
+    public void testAdaptiveStrategy() throws Exception {
+        CodecPool pool = new CodecPool(1, 0L);
+        int key = CodecPool.deflaterKey(Deflater.DEFAULT_COMPRESSION, Deflater.DEFAULT_STRATEGY,
+            false);
+        Deflater deflater = pool.borrowDeflater(key, new CompressingFilterStatsImpl());
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        PooledDeflaterOutputStream out =
+            new PooledDeflaterOutputStream(compressed, deflater, 8192, pool, key);
+        out.enableAdaptiveStrategy(1.1);
+
+        byte[] text = CompressingFilterResponseTest.BIG_TEXT_DOCUMENT.getBytes("ISO-8859-1");
+        byte[] random = new byte[256 * 1024];
+        new Random(1L).nextBytes(random);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        while (expected.size() < 256 * 1024) {
+            out.write(text, 0, text.length);
+            expected.write(text, 0, text.length);
+        }
+        assertFalse(out.isHuffmanOnly());
+        for (int i = 0; i < random.length; i += 8192) {
+            out.write(random, i, 8192);
+        }
+        expected.write(random, 0, random.length);
+        assertTrue(out.isHuffmanOnly());
+        while (expected.size() < 1024 * 1024) {
+            out.write(text, 0, text.length);
+            expected.write(text, 0, text.length);
+        }
+        assertFalse(out.isHuffmanOnly());
+        out.close();
+
+        InflaterInputStream in =
+            new InflaterInputStream(new ByteArrayInputStream(compressed.toByteArray()));
+        ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            inflated.write(buffer, 0, n);
+        }
+        assertTrue(Arrays.equals(expected.toByteArray(), inflated.toByteArray()));
+        pool.close();
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2004 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ziplet.filter.compression;
+
+import com.github.ziplet.filter.compression.statistics.CompressingFilterStatsImpl;
+import com.mockrunner.mock.web.MockHttpServletRequest;
+import com.mockrunner.mock.web.MockHttpServletResponse;
+import com.mockrunner.mock.web.MockServletContext;
+import com.mockrunner.mock.web.WebMockObjectFactory;
+import com.mockrunner.servlet.ServletTestModule;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link PrecompressedResources}.
+ */
+public final class PrecompressedResourcesTest extends TestCase {
+
+    private static final String TEST_ENCODING = "ISO-8859-1";
+    private File directory;
+    private WebMockObjectFactory factory;
+    private ServletTestModule module;
+    private AtomicInteger invocations;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        directory = Files.createTempDirectory("ziplet").toFile();
+        File original = write("app.js", "original", 1000000000L);
+        write("app.js.gz", "gzipped", 1000000000L);
+        write("app.js.br", "brotli", 1000000000L);
+        factory = new WebMockObjectFactory();
+        factory.getMockFilterConfig().setInitParameter("servePrecompressed", "true");
+        factory.getMockFilterConfig().setInitParameter("statsEnabled", "true");
+        MockServletContext servletContext = factory.getMockServletContext();
+        servletContext.setRealPath("/app.js", original.getPath());
+        servletContext.setMimeType("/app.js", "application/javascript");
+        module = new ServletTestModule(factory);
+        module.addFilter(new CompressingFilter(), true);
+        module.setDoChain(true);
+        invocations = new AtomicInteger();
+        module.setServlet(new HttpServlet() {
+            @Override
+            public void doGet(HttpServletRequest request, HttpServletResponse response)
+                throws IOException {
+                invocations.incrementAndGet();
+                response.getWriter().print("from servlet");
+            }
+        });
+        MockHttpServletRequest request = factory.getMockRequest();
+        request.setMethod("GET");
+        request.setRequestURI("/app.js");
+        request.setServletPath("/app.js");
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        for (File file : directory.listFiles()) {
+            assertTrue(file.delete());
+        }
+        assertTrue(directory.delete());
+        super.tearDown();
+    }
+
+    public void testServesPreferredVariant() throws Exception {
+        MockHttpServletResponse response = doGet("gzip, br");
+        assertEquals(0, invocations.get());
+        assertEquals("brotli", module.getOutput());
+        assertEquals("br", response.getHeader("Content-Encoding"));
+        assertEquals("application/javascript", response.getContentType());
+        assertEquals("6", response.getHeader("Content-Length"));
+        assertTrue(response.containsHeader(CompressingFilter.VARY_HEADER));
+
+        doGet("gzip, br;q=0.5");
+        assertEquals("gzipped", module.getOutput());
+        doGet("deflate");
+        assertEquals(1, invocations.get());
+    }
+
+    public void testStats() throws Exception {
+        doGet("br");
+        doGet("deflate");
+        CompressingFilterStatsImpl stats = (CompressingFilterStatsImpl) factory
+            .getMockServletContext().getAttribute(CompressingFilterStatsImpl.STATS_KEY);
+        assertEquals(2L, stats.getTotalRequestsNotCompressed());
+        assertEquals(0L, stats.getNumRequestsCompressed());
+        assertEquals(2L, stats.getNumResponsesCompressed());
+    }
+
+    public void testNotModified() throws Exception {
+        String eTag = doGet("br").getHeader("ETag");
+        assertTrue(eTag.endsWith("-br\""));
+        factory.getMockRequest().setHeader("If-None-Match", "\"other\", W/" + eTag);
+        assertEquals(HttpServletResponse.SC_NOT_MODIFIED, doGet("br").getStatusCode());
+        assertEquals("", module.getOutput());
+    }
+
+    public void testStaleVariantIsIgnored() throws Exception {
+        write("app.js.br", "brotli", 999000000L);
+        doGet("br, gzip;q=0.5");
+        assertEquals("gzipped", module.getOutput());
+    }
+
+    private MockHttpServletResponse doGet(String acceptEncoding) throws IOException {
+        MockHttpServletRequest request = factory.getMockRequest();
+        request.clearAttributes();
+        request.setHeader("Accept-Encoding", acceptEncoding);
+        MockHttpServletResponse response = factory.getMockResponse();
+        response.resetAll();
+        response.setCharacterEncoding(TEST_ENCODING);
+        module.doGet();
+        return response;
+    }
+
+    private File write(String name, String content, long lastModified) throws IOException {
+        File file = new File(directory, name);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes(TEST_ENCODING));
+        } finally {
+            out.close();
+        }
+        assertTrue(file.setLastModified(lastModified));
+        return file;
+    }
+}
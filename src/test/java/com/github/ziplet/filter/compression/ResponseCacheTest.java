@@ -0,0 +1,429 @@
+/*
+ * Copyright 2004 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ziplet.filter.compression;
+
+import com.github.ziplet.filter.compression.statistics.CompressingFilterStatsImpl;
+import com.mockrunner.mock.web.MockFilterConfig;
+import com.mockrunner.mock.web.MockHttpServletRequest;
+import com.mockrunner.mock.web.MockHttpServletResponse;
+import com.mockrunner.mock.web.WebMockObjectFactory;
+import com.mockrunner.servlet.ServletTestModule;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link ResponseCache}.
+ */
+public final class ResponseCacheTest extends TestCase {
+
+    private static final String TEST_ENCODING = "ISO-8859-1";
+    private BufferPool bufferPool;
+    private CompressingFilterStatsImpl stats;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        bufferPool = new BufferPool(1000, 4);
+        stats = new CompressingFilterStatsImpl();
+    }
+
+    public void testKey() {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setMethod("GET");
+        request.setScheme("http");
+        request.setServerName("example.com");
+        request.setServerPort(80);
+        request.setRequestURI("/foo");
+        assertEquals("gzip http://example.com:80/foo", ResponseCache.getKey(request, "gzip"));
+        request.setQueryString("a=b");
+        assertEquals("gzip http://example.com:80/foo?a=b", ResponseCache.getKey(request, "gzip"));
+        request.setScheme("https");
+        request.setServerName("other.example.com");
+        request.setServerPort(8443);
+        assertEquals("gzip https://other.example.com:8443/foo?a=b",
+            ResponseCache.getKey(request, "gzip"));
+        // revalidation is answered from the cache
+        request.setHeader("If-None-Match", "\"x\"");
+        assertEquals("gzip https://other.example.com:8443/foo?a=b",
+            ResponseCache.getKey(request, "gzip"));
+        request.setHeader("If-Modified-Since", "Thu, 01 Jan 1970 00:00:00 GMT");
+        assertNull(ResponseCache.getKey(request, "gzip"));
+        request.clearHeaders();
+        request.setHeader("Cookie", "session=a");
+        assertNull(ResponseCache.getKey(request, "gzip"));
+        request.clearHeaders();
+        request.setMethod("POST");
+        assertNull(ResponseCache.getKey(request, "gzip"));
+    }
+
+    public void testHit() throws Exception {
+        ResponseCache cache = new ResponseCache(64 * ResponseCache.BLOCK_SIZE, 0L, null);
+        String body = CompressingFilterResponseTest.BIG_DOCUMENT;
+        CapturingHttpServletResponse capture = capture(cache, "/a", body, "max-age=60");
+        capture.setHeader("ETag", "\"abc-gzip\"");
+        cache.put(capture, stats);
+        capture.release();
+        assertEquals(1, cache.getEntryCount());
+        assertEquals(3L * ResponseCache.BLOCK_SIZE, cache.getSize());
+
+        MockHttpServletResponse response = newResponse();
+        assertTrue(cache.serve("/a", null, response, bufferPool, stats));
+        assertEquals(body, response.getOutputStreamContent());
+        assertEquals("\"abc-gzip\"", response.getHeader("ETag"));
+        assertEquals("max-age=60", response.getHeader("Cache-Control"));
+        assertEquals("0", response.getHeader("Age"));
+
+        response = newResponse();
+        assertTrue(cache.serve("/a", "\"xyz\", W/\"abc-gzip\"", response, bufferPool, stats));
+        assertEquals(HttpServletResponse.SC_NOT_MODIFIED, response.getStatusCode());
+        assertEquals("", response.getOutputStreamContent());
+        assertEquals("\"abc-gzip\"", response.getHeader("ETag"));
+        assertNull(response.getHeader("Content-Length"));
+        assertFalse(cache.serve("/b", null, newResponse(), bufferPool, stats));
+        assertEquals(2L, stats.getResponseCacheHits());
+        assertEquals(1L, stats.getResponseCacheMisses());
+
+        cache.clear();
+        assertEquals(0L, cache.getSize());
+        assertFalse(cache.serve("/a", null, newResponse(), bufferPool, stats));
+    }
+
+    public void testNotCacheable() throws Exception {
+        ResponseCache cache = new ResponseCache(64 * ResponseCache.BLOCK_SIZE, 0L, null);
+        String body = CompressingFilterResponseTest.BIG_DOCUMENT;
+        // no lifetime, and no default
+        putAndRelease(cache, capture(cache, "/a", body, null));
+        putAndRelease(cache, capture(cache, "/b", body, "private, max-age=60"));
+        putAndRelease(cache, capture(cache, "/c", body, "max-age=0"));
+        CapturingHttpServletResponse capture = capture(cache, "/d", body, "max-age=60");
+        capture.addHeader("Vary", "Cookie");
+        putAndRelease(cache, capture);
+        capture = capture(cache, "/e", body, "max-age=60");
+        capture.addHeader("Set-Cookie", "a=b");
+        putAndRelease(cache, capture);
+        capture = capture(cache, "/f", body, "max-age=60");
+        capture.setStatus(HttpServletResponse.SC_NOT_FOUND);
+        putAndRelease(cache, capture);
+        assertEquals(0, cache.getEntryCount());
+
+        // the default lifetime applies to responses which don't declare one
+        cache = new ResponseCache(64 * ResponseCache.BLOCK_SIZE, 60000L, null);
+        putAndRelease(cache, capture(cache, "/a", body, null));
+        assertEquals(1, cache.getEntryCount());
+    }
+
+    public void testFrequentEntriesSurviveScan() throws Exception {
+        ResponseCache cache = new ResponseCache(100 * ResponseCache.BLOCK_SIZE, 60000L, null);
+        String body = "x";
+        for (int i = 0; i < 50; i++) {
+            putAndRelease(cache, capture(cache, "/hot" + i, body, null));
+        }
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 50; i++) {
+                assertTrue(cache.serve("/hot" + i, null, newResponse(), bufferPool, stats));
+            }
+        }
+        // many URLs requested once each
+        for (int i = 0; i < 1000; i++) {
+            String key = "/cold" + i;
+            assertFalse(cache.serve(key, null, newResponse(), bufferPool, stats));
+            putAndRelease(cache, capture(cache, key, body, null));
+        }
+        int hits = 0;
+        for (int i = 0; i < 50; i++) {
+            if (cache.serve("/hot" + i, null, newResponse(), bufferPool, stats)) {
+                hits++;
+            }
+        }
+        assertEquals(50, hits);
+        assertTrue(cache.getEntryCount() <= 100);
+        assertTrue(stats.getResponseCacheEvictions() >= 950L);
+    }
+
+    public void testCaptureStopsWhenUncacheable() throws Exception {
+        ResponseCache cache = new ResponseCache(64 * ResponseCache.BLOCK_SIZE, 0L, null);
+        String body = CompressingFilterResponseTest.BIG_DOCUMENT;
+        CapturingHttpServletResponse capture = capture(cache, "/a", body, null);
+        assertFalse(capture.isCacheable());
+        assertEquals(0, capture.getBodyLength());
+        assertTrue(capture.getBodyChunks().isEmpty());
+        capture = capture(cache, "/a", body, "max-age=0");
+        assertFalse(capture.isCacheable());
+        assertEquals(0, capture.getBodyLength());
+        capture = capture(cache, "/a", body, "max-age=60");
+        assertTrue(capture.isCacheable());
+        assertEquals(body.length(), capture.getBodyLength());
+        capture.release();
+    }
+
+    public void testStreamingResponseNotCached() throws Exception {
+        WebMockObjectFactory factory = new WebMockObjectFactory();
+        MockFilterConfig config = factory.getMockFilterConfig();
+        config.setInitParameter("responseCacheSize", "1000000");
+        config.setInitParameter("streamingContentTypes", "text/event-stream");
+        ServletTestModule module = new ServletTestModule(factory);
+        module.addFilter(new CompressingFilter(), true);
+        module.setDoChain(true);
+        final AtomicInteger invocations = new AtomicInteger();
+        module.setServlet(new HttpServlet() {
+            @Override
+            public void doGet(HttpServletRequest request, HttpServletResponse response)
+                throws IOException {
+                invocations.incrementAndGet();
+                response.setHeader("Cache-Control", "public, max-age=60");
+                response.getWriter().print(CompressingFilterResponseTest.BIG_TEXT_DOCUMENT);
+                response.setContentType("text/event-stream");
+            }
+        });
+        MockHttpServletRequest request = factory.getMockRequest();
+        request.setMethod("GET");
+        request.setRequestURI("/events");
+        request.setHeader("Accept-Encoding", "gzip");
+        for (int i = 0; i < 2; i++) {
+            request.clearAttributes();
+            factory.getMockResponse().resetAll();
+            factory.getMockResponse().setCharacterEncoding(TEST_ENCODING);
+            module.doGet();
+            assertEquals(i + 1, invocations.get());
+        }
+    }
+
+    public void testSingleFlight() throws Exception {
+        final ResponseCache cache = new ResponseCache(64 * ResponseCache.BLOCK_SIZE, 60000L, null);
+        assertTrue(cache.beginFlight("/a", 10000L));
+        final AtomicBoolean followerServed = new AtomicBoolean();
+        Thread follower = new Thread() {
+            @Override
+            public void run() {
+                if (!cache.beginFlight("/a", 10000L)) {
+                    try {
+                        followerServed.set(
+                            cache.serve("/a", null, newResponse(), bufferPool, stats));
+                    } catch (IOException ioe) {
+                        throw new IllegalStateException(ioe);
+                    }
+                }
+            }
+        };
+        follower.start();
+        while (follower.getState() != Thread.State.TIMED_WAITING) {
+            Thread.sleep(1L);
+        }
+        putAndRelease(cache, capture(cache, "/a", "x", null));
+        cache.endFlight("/a");
+        follower.join(10000L);
+        assertTrue(followerServed.get());
+
+        // without the leader finishing, waiting stops after the timeout
+        assertTrue(cache.beginFlight("/b", 10000L));
+        long start = System.nanoTime();
+        assertFalse(cache.beginFlight("/b", 50L));
+        assertTrue(System.nanoTime() - start >= 50000000L);
+        cache.endFlight("/b");
+        assertTrue(cache.beginFlight("/b", 50L));
+
+        // waiting stops as soon as the leader's response turns out not to be cacheable
+        CapturingHttpServletResponse capture = cache.capture(newResponse(), "/c", bufferPool);
+        assertTrue(cache.beginFlight("/c", 10000L));
+        capture.setLeadingFlight(true);
+        capture.sendError(HttpServletResponse.SC_NOT_FOUND);
+        assertFalse(capture.isLeadingFlight());
+        assertTrue(cache.beginFlight("/c", 10000L));
+    }
+
+    public void testFilter() throws Exception {
+        WebMockObjectFactory factory = new WebMockObjectFactory();
+        MockFilterConfig config = factory.getMockFilterConfig();
+        config.setInitParameter("statsEnabled", "true");
+        config.setInitParameter("responseCacheSize", "1000000");
+        ServletTestModule module = new ServletTestModule(factory);
+        module.addFilter(new CompressingFilter(), true);
+        module.setDoChain(true);
+        final AtomicInteger invocations = new AtomicInteger();
+        module.setServlet(new HttpServlet() {
+            @Override
+            public void doGet(HttpServletRequest request, HttpServletResponse response)
+                throws IOException {
+                invocations.incrementAndGet();
+                response.setHeader("Cache-Control", "public, max-age=60");
+                response.getWriter().print(CompressingFilterResponseTest.BIG_TEXT_DOCUMENT);
+            }
+        });
+        MockHttpServletRequest request = factory.getMockRequest();
+        request.setMethod("GET");
+        request.setRequestURI("/page");
+        request.setHeader("Accept-Encoding", "gzip");
+
+        factory.getMockResponse().setCharacterEncoding(TEST_ENCODING);
+        module.doGet();
+        String first = module.getOutput();
+        assertEquals("gzip", factory.getMockResponse().getHeader("Content-Encoding"));
+
+        request.clearAttributes();
+        factory.getMockResponse().resetAll();
+        factory.getMockResponse().setCharacterEncoding(TEST_ENCODING);
+        module.doGet();
+        assertEquals(1, invocations.get());
+        assertEquals(first, module.getOutput());
+        MockHttpServletResponse response = factory.getMockResponse();
+        assertEquals("gzip", response.getHeader("Content-Encoding"));
+        assertEquals("public, max-age=60", response.getHeader("Cache-Control"));
+        assertTrue(response.containsHeader(CompressingFilter.VARY_HEADER));
+
+        CompressingFilterStatsImpl stats = (CompressingFilterStatsImpl) factory
+            .getMockServletContext().getAttribute(CompressingFilterStatsImpl.STATS_KEY);
+        assertEquals(1L, stats.getResponseCacheHits());
+        assertEquals(1L, stats.getResponseCacheMisses());
+        assertEquals(2L, stats.getTotalRequestsNotCompressed());
+        assertEquals(2L, stats.getNumResponsesCompressed());
+    }
+
+    public void testSingleFlightFilter() throws Exception {
+        WebMockObjectFactory leaderFactory = new WebMockObjectFactory();
+        MockFilterConfig config = leaderFactory.getMockFilterConfig();
+        config.setInitParameter("responseCacheSize", "1000000");
+        config.setInitParameter("responseCacheSingleFlightTimeout", "10000");
+        CompressingFilter filter = new CompressingFilter();
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final AtomicInteger invocations = new AtomicInteger();
+        HttpServlet servlet = new HttpServlet() {
+            @Override
+            public void doGet(HttpServletRequest request, HttpServletResponse response)
+                throws IOException {
+                invocations.incrementAndGet();
+                entered.countDown();
+                try {
+                    proceed.await();
+                } catch (InterruptedException ie) {
+                    throw new IOException(ie);
+                }
+                response.setHeader("Cache-Control", "public, max-age=60");
+                response.getWriter().print(CompressingFilterResponseTest.BIG_TEXT_DOCUMENT);
+            }
+        };
+        final ServletTestModule leader = newModule(leaderFactory, filter, true, servlet);
+        WebMockObjectFactory followerFactory = new WebMockObjectFactory();
+        final ServletTestModule follower = newModule(followerFactory, filter, false, servlet);
+
+        Thread leaderThread = new Thread() {
+            @Override
+            public void run() {
+                leader.doGet();
+            }
+        };
+        leaderThread.start();
+        assertTrue(entered.await(10L, TimeUnit.SECONDS));
+        Thread followerThread = new Thread() {
+            @Override
+            public void run() {
+                follower.doGet();
+            }
+        };
+        followerThread.start();
+        while (followerThread.getState() != Thread.State.TIMED_WAITING) {
+            Thread.sleep(1L);
+        }
+        proceed.countDown();
+        leaderThread.join(10000L);
+        followerThread.join(10000L);
+        assertEquals(1, invocations.get());
+        assertEquals("gzip", followerFactory.getMockResponse().getHeader("Content-Encoding"));
+        assertEquals(leader.getOutput(), follower.getOutput());
+    }
+
+    public void testRequestsWithCookiesNotCached() throws Exception {
+        WebMockObjectFactory factory = new WebMockObjectFactory();
+        factory.getMockFilterConfig().setInitParameter("responseCacheSize", "1000000");
+        ServletTestModule module = new ServletTestModule(factory);
+        module.addFilter(new CompressingFilter(), true);
+        module.setDoChain(true);
+        final AtomicInteger invocations = new AtomicInteger();
+        module.setServlet(new HttpServlet() {
+            @Override
+            public void doGet(HttpServletRequest request, HttpServletResponse response)
+                throws IOException {
+                invocations.incrementAndGet();
+                // a hint for the browser's own cache only
+                response.setHeader("Cache-Control", "max-age=60");
+                response.getWriter().print(request.getHeader("Cookie"));
+                response.getWriter().print(CompressingFilterResponseTest.BIG_TEXT_DOCUMENT);
+            }
+        });
+        MockHttpServletRequest request = factory.getMockRequest();
+        request.setMethod("GET");
+        request.setRequestURI("/account");
+
+        String[] cookies = {"session=alice", "session=bob", null};
+        for (int i = 0; i < cookies.length; i++) {
+            request.clearAttributes();
+            request.clearHeaders();
+            request.setHeader("Accept-Encoding", "gzip");
+            if (cookies[i] != null) {
+                request.setHeader("Cookie", cookies[i]);
+            }
+            factory.getMockResponse().resetAll();
+            factory.getMockResponse().setCharacterEncoding(TEST_ENCODING);
+            module.doGet();
+            assertEquals(i + 1, invocations.get());
+            assertEquals("gzip", factory.getMockResponse().getHeader("Content-Encoding"));
+        }
+    }
+
+    private CapturingHttpServletResponse capture(ResponseCache cache, String key, String body,
+        String cacheControl) throws IOException {
+        CapturingHttpServletResponse capture = cache.capture(newResponse(), key, bufferPool);
+        if (cacheControl != null) {
+            capture.setHeader("Cache-Control", cacheControl);
+        }
+        capture.getOutputStream().write(body.getBytes(TEST_ENCODING));
+        return capture;
+    }
+
+    private static ServletTestModule newModule(WebMockObjectFactory factory,
+        CompressingFilter filter,
+        boolean initFilter,
+        HttpServlet servlet) {
+        ServletTestModule module = new ServletTestModule(factory);
+        module.addFilter(filter, initFilter);
+        module.setDoChain(true);
+        module.setServlet(servlet);
+        MockHttpServletRequest request = factory.getMockRequest();
+        request.setMethod("GET");
+        request.setRequestURI("/page");
+        request.setHeader("Accept-Encoding", "gzip");
+        factory.getMockResponse().setCharacterEncoding(TEST_ENCODING);
+        return module;
+    }
+
+    private void putAndRelease(ResponseCache cache, CapturingHttpServletResponse capture) {
+        cache.put(capture, stats);
+        capture.release();
+    }
+
+    private static MockHttpServletResponse newResponse() {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        response.setCharacterEncoding(TEST_ENCODING);
+        return response;
+    }
+}
@@ -42,12 +42,20 @@ public final class StatsInputStreamTest extends TestCase {
 
     public void testStats() throws Exception {
         assertEquals(0, statsIn.read());
-        assertEquals(1, statsIn.getTotalBytesRead());
         assertEquals(10, statsIn.read(new byte[10]));
-        assertEquals(11, statsIn.getTotalBytesRead());
         assertEquals(5, statsIn.read(new byte[10], 0, 5));
+        assertEquals(0, statsIn.getTotalBytesRead());
+        statsIn.close();
         assertEquals(16, statsIn.getTotalBytesRead());
+    }
+
+    public void testStatsAtEnd() throws Exception {
+        assertEquals(100, statsIn.read(new byte[200]));
+        assertEquals(0, statsIn.getTotalBytesRead());
+        assertEquals(-1, statsIn.read());
+        assertEquals(100, statsIn.getTotalBytesRead());
         statsIn.close();
+        assertEquals(100, statsIn.getTotalBytesRead());
     }
 
     private static final class MockStatsInputStream extends StatsInputStream {
@@ -40,21 +40,23 @@ public final class StatsOutputStreamTest extends TestCase {
     }
 
     public void testStats() throws Exception {
-        assertBytesWritten(0);
+        assertBytesWritten(0, 0);
         statsOut.write(0);
-        assertBytesWritten(1);
+        assertBytesWritten(1, 0);
         statsOut.write(new byte[10]);
-        assertBytesWritten(11);
+        assertBytesWritten(11, 0);
         statsOut.write(new byte[10], 0, 5);
-        assertBytesWritten(16);
+        assertBytesWritten(16, 0);
         statsOut.flush();
-        assertBytesWritten(16);
+        assertBytesWritten(16, 16);
+        statsOut.write(new byte[10]);
+        assertBytesWritten(26, 16);
         statsOut.close();
-        assertBytesWritten(16);
+        assertBytesWritten(26, 26);
     }
 
-    private void assertBytesWritten(int numBytes) {
-        assertEquals(numBytes, statsOut.getTotalBytesWritten());
+    private void assertBytesWritten(int numBytes, int numBytesReported) {
+        assertEquals(numBytesReported, statsOut.getTotalBytesWritten());
         assertEquals(numBytes, baos.size());
     }
 
@@ -15,9 +15,17 @@
  */
 package com.github.ziplet.filter.compression;
 
+import com.github.ziplet.filter.compression.statistics.CompressingFilterStatsImpl;
 import com.mockrunner.mock.web.WebMockObjectFactory;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
 import javax.servlet.FilterConfig;
 import junit.framework.TestCase;
 
@@ -115,6 +123,212 @@ public final class ThresholdOutputStreamTest extends TestCase {
         assertTrue(callback.compressingStreamCommitted);
     }
 
+    public void testAbortReturnsDeflater() throws Exception {
+        WebMockObjectFactory factory = new WebMockObjectFactory();
+        factory.getMockFilterConfig().setInitParameter("codecPoolSize", "1");
+        factory.getMockFilterConfig().setInitParameter("codecPoolTimeout", "0");
+        CompressingFilterContext context =
+            new CompressingFilterContext(factory.getMockFilterConfig());
+        for (int i = 0; i < 3; i++) {
+            ThresholdOutputStream stream = new ThresholdOutputStream(new ByteArrayOutputStream(),
+                CompressingStreamFactory.getFactoryForContentEncoding("gzip"),
+                context,
+                new Callback());
+            stream.write(CompressingFilterResponseTest.BIG_DOCUMENT.getBytes());
+            // as when a late header rules out compression
+            stream.forceOutputStream1();
+            stream.close();
+        }
+        int key = CodecPool.deflaterKey(context.getCompressionLevel(), Deflater.DEFAULT_STRATEGY,
+            true);
+        assertNotNull(context.getCodecPool().borrowDeflater(key, context.getStats()));
+        context.destroy();
+    }
+
+    public void testAutoFlush() throws Exception {
+        TimerWheel timerWheel = new TimerWheel(5L, 16);
+        try {
+            tos.enableAutoFlush(timerWheel, 20L);
+            byte[] bytes = CompressingFilterResponseTest.SMALL_DOCUMENT.getBytes();
+            // below the threshold, and never flushed explicitly
+            tos.write(bytes);
+            long deadline = System.currentTimeMillis() + 5000L;
+            while (baos.size() <= 10 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10L);
+            }
+            byte[] flushed = baos.toByteArray();
+            assertTrue(flushed.length > 10);
+            Inflater inflater = new Inflater(true);
+            inflater.setInput(flushed, 10, flushed.length - 10); // skip gzip header
+            byte[] inflated = new byte[bytes.length];
+            assertEquals(bytes.length, inflater.inflate(inflated));
+            inflater.end();
+            assertTrue(Arrays.equals(bytes, inflated));
+            tos.close();
+        } finally {
+            timerWheel.stop();
+        }
+    }
+
+    public void testStartStreaming() throws Exception {
+        TimerWheel timerWheel = new TimerWheel(5L, 16);
+        try {
+            WebMockObjectFactory factory = new WebMockObjectFactory();
+            factory.getMockFilterConfig().setInitParameter("fullBufferSize", "100000");
+            CompressingFilterContext context =
+                new CompressingFilterContext(factory.getMockFilterConfig());
+            ThresholdOutputStream stream = new ThresholdOutputStream(baos,
+                CompressingStreamFactory.getFactoryForContentEncoding("gzip"),
+                context,
+                callback);
+            stream.enableFullBuffering();
+            stream.enableBestOf(100000L);
+            byte[] first = CompressingFilterResponseTest.BIG_TEXT_DOCUMENT.getBytes();
+            stream.write(first);
+            // compressed, but held back, and not yet committed to
+            assertEquals(0, baos.size());
+            assertFalse(callback.compressingStreamCommitted);
+
+            stream.startStreaming(timerWheel, 20L);
+            assertTrue(callback.compressingStreamCommitted);
+            int sent = baos.size();
+            byte[] second = CompressingFilterResponseTest.SMALL_DOCUMENT.getBytes();
+            stream.write(second);
+            // flushed automatically, without being held back until closed
+            long deadline = System.currentTimeMillis() + 5000L;
+            while (baos.size() <= sent && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10L);
+            }
+            assertTrue(baos.size() > sent);
+            stream.close();
+
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            expected.write(first);
+            expected.write(second);
+            GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(baos.toByteArray()));
+            ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+            byte[] chunk = new byte[1024];
+            int read;
+            while ((read = in.read(chunk)) > 0) {
+                inflated.write(chunk, 0, read);
+            }
+            assertTrue(Arrays.equals(expected.toByteArray(), inflated.toByteArray()));
+        } finally {
+            timerWheel.stop();
+        }
+    }
+
+    public void testBestOfReportsStats() throws Exception {
+        WebMockObjectFactory factory = new WebMockObjectFactory();
+        factory.getMockFilterConfig().setInitParameter("statsEnabled", "true");
+        CompressingFilterContext context =
+            new CompressingFilterContext(factory.getMockFilterConfig());
+        ThresholdOutputStream stream = new ThresholdOutputStream(baos,
+            CompressingStreamFactory.getFactoryForContentEncoding("gzip"),
+            context,
+            callback);
+        stream.enableBestOf(100000L);
+        // random, so compressing makes it larger
+        byte[] bytes = CompressingFilterResponseTest.BIG_DOCUMENT.getBytes("ISO-8859-1");
+        stream.write(bytes);
+        stream.close();
+        assertTrue(Arrays.equals(bytes, baos.toByteArray()));
+        CompressingFilterStatsImpl stats = (CompressingFilterStatsImpl) context.getStats();
+        assertEquals(bytes.length, stats.getResponseInputBytes());
+        assertTrue(stats.getResponseCompressedBytes() > bytes.length);
+    }
+
+    public void testSlowClientsDontDelayOthers() throws Exception {
+        TimerWheel timerWheel = new TimerWheel(5L, 16);
+        final CountDownLatch unblock = new CountDownLatch(1);
+        try {
+            WebMockObjectFactory factory = new WebMockObjectFactory();
+            CompressingFilterContext context =
+                new CompressingFilterContext(factory.getMockFilterConfig());
+            byte[] bytes = CompressingFilterResponseTest.SMALL_DOCUMENT.getBytes();
+            // more clients which never read than there are idle timer threads
+            for (int i = 0; i < 4; i++) {
+                ThresholdOutputStream blocked = new ThresholdOutputStream(new OutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        write(new byte[] {(byte) b}, 0, 1);
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        try {
+                            unblock.await();
+                        } catch (InterruptedException ie) {
+                            throw new IOException(ie);
+                        }
+                    }
+                }, CompressingStreamFactory.getFactoryForContentEncoding("gzip"),
+                    context,
+                    new Callback());
+                blocked.enableAutoFlush(timerWheel, 20L);
+                blocked.write(bytes);
+            }
+            Thread.sleep(100L);
+            tos.enableThresholdHold(timerWheel, 20L, false);
+            tos.write(bytes);
+            long deadline = System.currentTimeMillis() + 5000L;
+            while (baos.size() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10L);
+            }
+            assertTrue(Arrays.equals(bytes, baos.toByteArray()));
+            tos.close();
+        } finally {
+            unblock.countDown();
+            timerWheel.stop();
+        }
+    }
+
+    public void testThresholdHold() throws Exception {
+        TimerWheel timerWheel = new TimerWheel(5L, 16);
+        try {
+            tos.enableThresholdHold(timerWheel, 20L, true);
+            byte[] bytes = CompressingFilterResponseTest.SMALL_DOCUMENT.getBytes();
+            // below the threshold, and never flushed
+            tos.write(bytes);
+            long deadline = System.currentTimeMillis() + 5000L;
+            while (baos.size() <= 10 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10L);
+            }
+            assertTrue(callback.compressingStreamCommitted);
+            byte[] flushed = baos.toByteArray();
+            Inflater inflater = new Inflater(true);
+            inflater.setInput(flushed, 10, flushed.length - 10); // skip gzip header
+            byte[] inflated = new byte[bytes.length];
+            assertEquals(bytes.length, inflater.inflate(inflated));
+            inflater.end();
+            assertTrue(Arrays.equals(bytes, inflated));
+            // writing on doesn't need another timeout
+            tos.write(bytes);
+            tos.close();
+        } finally {
+            timerWheel.stop();
+        }
+    }
+
+    public void testThresholdHoldRaw() throws Exception {
+        TimerWheel timerWheel = new TimerWheel(5L, 16);
+        try {
+            tos.enableThresholdHold(timerWheel, 20L, false);
+            byte[] bytes = CompressingFilterResponseTest.SMALL_DOCUMENT.getBytes();
+            tos.write(bytes);
+            long deadline = System.currentTimeMillis() + 5000L;
+            while (baos.size() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10L);
+            }
+            assertTrue(callback.rawStreamCommitted);
+            assertFalse(callback.compressingStreamCommitted);
+            assertTrue(Arrays.equals(bytes, baos.toByteArray()));
+            tos.close();
+        } finally {
+            timerWheel.stop();
+        }
+    }
+
     private static final class Callback implements ThresholdOutputStream.BufferCommitmentCallback {
 
         private boolean rawStreamCommitted;
@@ -127,5 +341,8 @@ public final class ThresholdOutputStreamTest extends TestCase {
         public void compressingStreamCommitted() {
             compressingStreamCommitted = true;
         }
+
+        public void compressingStreamFinished(String entityTag, long compressedLength) {
+        }
     }
 }
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2004 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ziplet.filter.compression.statistics;
+
+import com.mockrunner.mock.web.WebMockObjectFactory;
+import com.mockrunner.servlet.ServletTestModule;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import javax.servlet.http.HttpServletResponse;
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link CompressingFilterStatsServlet}.
+ */
+public final class CompressingFilterStatsServletTest extends TestCase {
+
+    private CompressingFilterStatsImpl stats;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        stats = new CompressingFilterStatsImpl();
+        stats.incrementNumResponsesCompressed();
+        stats.incrementNumResponsesCompressed();
+        stats.incrementTotalResponsesNotCompressed();
+        stats.notifyResponseBytesWritten(1000L);
+        stats.notifyCompressedResponseBytesWritten(400L);
+        stats.notifyResponseCompressed("gzip", 300000L, 2000000L);
+        stats.notifyResponseCompressed("gzip", 20000000L, 30000000L);
+    }
+
+    public void testPrometheus() {
+        StringWriter out = new StringWriter();
+        CompressingFilterStatsServlet.writePrometheus(stats, new PrintWriter(out));
+        String text = out.toString();
+        assertTrue(text.contains("# TYPE ziplet_responses_total counter\n"));
+        assertTrue(text.contains("ziplet_responses_total{compressed=\"true\"} 2\n"));
+        assertTrue(text.contains("ziplet_responses_total{compressed=\"false\"} 1\n"));
+        assertTrue(text.contains("ziplet_response_bytes_total{stage=\"compressed\"} 400\n"));
+        assertTrue(text.contains("# TYPE ziplet_response_compression_seconds histogram\n"));
+        assertTrue(text.contains(
+            "ziplet_response_compression_seconds_bucket{encoding=\"gzip\",le=\"0.0001\"} 0\n"));
+        assertTrue(text.contains(
+            "ziplet_response_compression_seconds_bucket{encoding=\"gzip\",le=\"0.0005\"} 1\n"));
+        assertTrue(text.contains(
+            "ziplet_response_compression_seconds_bucket{encoding=\"gzip\",le=\"+Inf\"} 2\n"));
+        assertTrue(
+            text.contains("ziplet_response_compression_seconds_count{encoding=\"gzip\"} 2\n"));
+        assertFalse(text.contains("ziplet_request_decompression_seconds_bucket"));
+    }
+
+    public void testJson() {
+        StringWriter out = new StringWriter();
+        CompressingFilterStatsServlet.writeJson(stats, new PrintWriter(out));
+        String json = out.toString();
+        assertTrue(json.startsWith("{\"responses\":{\"compressed\":2,\"notCompressed\":1,"));
+        assertTrue(json.contains("\"responseCompressionTimes\":{\"gzip\":{\"count\":2,"));
+        assertTrue(json.contains("\"requestDecompressionTimes\":{}"));
+    }
+
+    public void testDoGet() throws Exception {
+        WebMockObjectFactory factory = new WebMockObjectFactory();
+        ServletTestModule module = new ServletTestModule(factory);
+        module.createServlet(CompressingFilterStatsServlet.class);
+        module.doGet();
+        assertEquals(HttpServletResponse.SC_NOT_FOUND, factory.getMockResponse().getErrorCode());
+
+        factory.getMockServletContext().setAttribute(CompressingFilterStatsImpl.STATS_KEY, stats);
+        factory.getMockResponse().resetAll();
+        module.addRequestParameter("format", "json");
+        module.doGet();
+        assertEquals(HttpServletResponse.SC_OK, factory.getMockResponse().getStatusCode());
+        assertTrue(module.getOutput().startsWith("{\"responses\""));
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2004 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ziplet.filter.compression.statistics;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link LatencyHistogram}.
+ */
+public final class LatencyHistogramTest extends TestCase {
+
+    public void testBuckets() {
+        for (long value = 0L; value < 100000L; value++) {
+            int index = LatencyHistogram.indexOf(value);
+            long highest = LatencyHistogram.highestValueAt(index);
+            assertTrue(value <= highest);
+            // precise to about 3%
+            assertTrue(highest - value <= value / 32L);
+            if (index > 0) {
+                assertTrue(value > LatencyHistogram.highestValueAt(index - 1));
+            }
+        }
+    }
+
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0L, histogram.getValueAtPercentile(50.0));
+        for (long value = 1L; value <= 1000L; value++) {
+            histogram.record(value * 1000L);
+        }
+        assertEquals(1000L, histogram.getCount());
+        assertEquals(1000000L, histogram.getMaxNanos());
+        assertEquals(500500.0, histogram.getMeanNanos(), 0.001);
+        assertEquals(500000.0, histogram.getValueAtPercentile(50.0), 500000.0 / 32.0);
+        assertEquals(990000.0, histogram.getValueAtPercentile(99.0), 990000.0 / 32.0);
+        assertEquals(1000000L, histogram.getValueAtPercentile(100.0));
+        assertEquals(500L, histogram.getCountAtOrBelow(500000L), 16L);
+    }
+
+    public void testOutOfRange() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-1L);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(2L, histogram.getCount());
+        assertEquals(0L, histogram.getValueAtPercentile(50.0));
+        assertEquals(histogram.getMaxNanos(), histogram.getValueAtPercentile(100.0));
+    }
+}